@@ -0,0 +1,160 @@
+package org.zyni;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+import org.zeromq.ZThread;
+import org.zyni.message.Common.VersionedValue;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip through a running ZyniAgent loop. The command path goes over
+ * the inproc pipe, the callback path comes in through the agent inbox and
+ * is answered over the pipe. With workers the handler runs on the agent
+ * worker pool (or virtual threads) and its answer is handed back to the
+ * agent thread.
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class AgentDispatchBenchmark
+{
+    private static final String BIND = "127.0.0.1:5671";
+    private static final String PING = "BENCH.PING";
+    private static final String PONG = "BENCH.PONG";
+
+    @Param ({"0", "2", "virtual"})
+    public String workers;
+
+    private ZContext ctx;
+    private Socket pipe;
+    private Socket dealer;
+    private VersionedValue body;
+
+    static class EchoHandler implements IAgentHandler
+    {
+        private ZyniAgent agent;
+
+        @Override
+        public void initialize (ZyniAgent agent, Object ... args)
+        {
+            this.agent = agent;
+        }
+
+        @Override
+        public int getSignature ()
+        {
+            int signature = "bench".hashCode ();
+            ZyniMsg.registerBuilder (signature, VersionedValue.newBuilder ());
+            return signature;
+        }
+
+        @Override
+        public void processCommand (String command, ZMsg msg)
+        {
+            agent.sendCommand (PONG);
+        }
+
+        @Override
+        public void onEvent (ZyniEvent event, Object ... params)
+        {
+        }
+
+        @Override
+        public void processCallback (ZyniMsg msg)
+        {
+            agent.sendCommand (PONG);
+        }
+
+        @Override
+        public long processTimer (long interval)
+        {
+            return interval;
+        }
+
+        @Override
+        public void destroy ()
+        {
+        }
+    }
+
+    @Setup (Level.Trial)
+    public void setup ()
+    {
+        ctx = new ZContext ();
+        Properties conf = BenchmarkSupport.config (BIND);
+        conf.setProperty ("agent.workers", workers);
+        ZyniAgent agent = new ZyniAgent (conf);
+        EchoHandler handler = new EchoHandler ();
+        agent.registerCommand (PING, handler);
+        agent.registerCallback (handler.getSignature (), handler);
+
+        pipe = ZThread.fork (ctx, agent);
+
+        dealer = ctx.createSocket (ZMQ.DEALER);
+        dealer.setIdentity ("127.0.0.1:5672".getBytes ());
+        dealer.connect ("tcp://" + BIND);
+
+        body = VersionedValue.newBuilder ()
+                .setKey ("key")
+                .setValue ("value")
+                .setVersion (1)
+                .build ();
+    }
+
+    @TearDown (Level.Trial)
+    public void tearDown ()
+    {
+        pipe.send (ZyniEvent.SYSTEM_EXIT.toString ());
+        while (true) {
+            ZMsg msg = ZMsg.recvMsg (pipe);
+            if (msg == null || msg.popString ().equals (ZyniEvent.AGENT_EXIT.toString ()))
+                break;
+        }
+        ctx.destroy ();
+    }
+
+    private void awaitPong ()
+    {
+        while (true) {
+            ZMsg msg = ZMsg.recvMsg (pipe);
+            String command = msg.popString ();
+            msg.destroy ();
+            if (command.equals (PONG))
+                return;
+        }
+    }
+
+    @Benchmark
+    public void command ()
+    {
+        pipe.send (PING);
+        awaitPong ();
+    }
+
+    @Benchmark
+    public void callback ()
+    {
+        new ZyniMsg (body).send (dealer);
+        awaitPong ();
+    }
+}
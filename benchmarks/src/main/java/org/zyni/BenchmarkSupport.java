@@ -0,0 +1,47 @@
+package org.zyni;
+
+import org.zeromq.ZContext;
+
+import java.util.Properties;
+
+/**
+ * Helpers shared by the benchmarks. Lives in org.zyni to reach the
+ * package private parts of ZyniAgent.
+ */
+public class BenchmarkSupport
+{
+    public static Properties config (String bind)
+    {
+        Properties conf = new Properties ();
+        conf.setProperty ("bind", bind);
+        conf.setProperty ("heartbeat.strategy", "gossip");
+        conf.setProperty ("heartbeat.endpoints", "");
+        conf.setProperty ("heartbeat.args.0", "1");
+
+        return conf;
+    }
+
+    /**
+     * Create an agent whose sockets are bound but whose loop is not running,
+     * so handlers can be driven directly from the benchmark thread.
+     */
+    public static ZyniAgent createAgent (ZContext ctx, String bind)
+    {
+        return createAgent (ctx, config (bind));
+    }
+
+    public static ZyniAgent createAgent (ZContext ctx, Properties conf)
+    {
+        String bind = conf.getProperty ("bind");
+        ZyniAgent agent = new ZyniAgent (conf);
+        if (!agent.initialize (ctx, null))
+            throw new IllegalStateException ("cannot bind " + bind);
+
+        return agent;
+    }
+
+    public static String endpoint (int idx)
+    {
+        return String.format ("10.%d.%d.%d:5670", (idx >> 16) & 0xff, (idx >> 8) & 0xff, idx & 0xff);
+    }
+}
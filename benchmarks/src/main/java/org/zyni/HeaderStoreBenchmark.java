@@ -0,0 +1,74 @@
+package org.zyni;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zyni.ZyniMsg.VersionedMap;
+import org.zyni.message.Common.VersionedValue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Peer header updates as received from gossip, and the scan for the
+ * values newer than a version, on the hash and the arena store
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class HeaderStoreBenchmark
+{
+    @Param ({"hash", "arena"})
+    public String store;
+
+    @Param ({"16", "64"})
+    public int headers;
+
+    private VersionedMap map;
+    private List <VersionedValue> [] updates;
+    private int next;
+
+    @SuppressWarnings ("unchecked")
+    @Setup (Level.Trial)
+    public void setup ()
+    {
+        map = store.equals ("arena") ? new VersionedMap (new ArenaHeaderStore ()) : new VersionedMap ();
+        for (int i = 0; i < headers; i++)
+            map.put ("HEADER." + i, "value-" + i);
+
+        updates = new List [1024];
+        for (int i = 0; i < updates.length; i++)
+            updates [i] = Collections.singletonList (VersionedValue.newBuilder ()
+                    .setKey ("HEADER." + (i % headers))
+                    .setVersion (headers + i + 1)
+                    .setValue ("0.42,0.17," + i + ",3")
+                    .build ());
+    }
+
+    @Benchmark
+    public int update ()
+    {
+        next = (next + 1) & (updates.length - 1);
+        map.update (updates [next]);
+        return map.size ();
+    }
+
+    @Benchmark
+    public List <VersionedValue> newer ()
+    {
+        return map.newer (map.getMaxVersion () - 1);
+    }
+}
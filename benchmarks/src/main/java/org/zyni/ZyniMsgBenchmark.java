@@ -0,0 +1,88 @@
+package org.zyni;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Socket;
+import org.zyni.heartbeat.Gossiper;
+import org.zyni.message.Common.VersionedValue;
+import org.zyni.message.Gossip;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode/decode throughput of ZyniMsg over an inproc DEALER/ROUTER pair.
+ * Run with "-prof gc" to get the allocation per message.
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class ZyniMsgBenchmark
+{
+    @Param ({"1", "10", "100"})
+    public int digests;
+
+    private ZContext ctx;
+    private Socket dealer;
+    private Socket router;
+    private Gossip.Ping ping;
+
+    @Setup (Level.Trial)
+    public void setup ()
+    {
+        //  Registers the gossip message family
+        new Gossiper ("", 5000, 10000, "1").getSignature ();
+
+        ctx = new ZContext ();
+        router = ctx.createSocket (ZMQ.ROUTER);
+        router.bind ("inproc://zyni-msg-bench");
+        dealer = ctx.createSocket (ZMQ.DEALER);
+        dealer.setIdentity ("127.0.0.1:5670".getBytes ());
+        dealer.connect ("inproc://zyni-msg-bench");
+
+        Gossip.Ping.Builder builder = Gossip.Ping.newBuilder ();
+        for (int i = 0; i < digests; i++) {
+            builder.addDigest (Gossip.State.newBuilder ()
+                    .setAddress (ZyniMsg.stringToAddress (BenchmarkSupport.endpoint (i)))
+                    .setGeneration (1)
+                    .setMaxVersion (i)
+                    .addExtra (VersionedValue.newBuilder ()
+                            .setKey ("STATUS")
+                            .setValue ("RUNNING")
+                            .setVersion (i)
+                            .build ())
+                    .build ());
+        }
+        ping = builder.build ();
+    }
+
+    @TearDown (Level.Trial)
+    public void tearDown ()
+    {
+        ctx.destroy ();
+    }
+
+    @Benchmark
+    public ZyniMsg sendRecv ()
+    {
+        new ZyniMsg (ping).send (dealer);
+        ZyniMsg msg = ZyniMsg.recv (router);
+        msg.destroy ();
+        return msg;
+    }
+}
@@ -0,0 +1,85 @@
+package org.zyni.heartbeat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zyni.BenchmarkSupport;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the failure detector in one gossip round: interpret every known
+ * peer, each with a full window of samples.
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class FailureDetectorBenchmark
+{
+    private static final long INTERVAL = 1000;
+    private static final int SAMPLES = 1000;
+
+    @Param ({"10", "100", "1000"})
+    public int peers;
+
+    @Param ({"exponential", "normal"})
+    public String phi;
+
+    private FailureDetector detector;
+    private String [] endpoints;
+    private long now;
+    private int next;
+
+    @Setup (Level.Trial)
+    public void setup ()
+    {
+        detector = new FailureDetector (INTERVAL, phi.equals ("normal"));
+        endpoints = new String [peers];
+        for (int i = 0; i < peers; i++)
+            endpoints [i] = BenchmarkSupport.endpoint (i);
+
+        //  Jittered arrivals, enough to fill every window
+        Random rand = new Random (1);
+        now = 1;
+        for (int s = 0; s <= SAMPLES; s++) {
+            for (String endpoint : endpoints)
+                detector.report (endpoint, now + rand.nextInt ((int) INTERVAL / 5));
+            now += INTERVAL;
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public int round ()
+    {
+        int convicted = 0;
+        for (String endpoint : endpoints) {
+            if (detector.interpret (endpoint, now))
+                convicted++;
+        }
+        return convicted;
+    }
+
+    @Benchmark
+    public void report ()
+    {
+        detector.report (endpoints [next], now);
+        if (++next == endpoints.length) {
+            next = 0;
+            now += INTERVAL;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.zyni.heartbeat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Simulates how many gossip rounds it takes for one state change to reach
+ * every node, with the same target selection as Gossiper. Each round every
+ * node runs a push-pull exchange (Ping, PingAck, PingEnd) with its targets.
+ *
+ * Usage: GossipConvergence [trials] [nodes ...]
+ */
+public class GossipConvergence
+{
+    private static final int [] FANOUTS = {1, 2, 3};
+
+    private final int nodes;
+    private final int fanout;
+    private final boolean roundRobin;
+    private final Random rand;
+
+    public GossipConvergence (int nodes, int fanout, boolean roundRobin, long seed)
+    {
+        this.nodes = nodes;
+        this.fanout = fanout;
+        this.roundRobin = roundRobin;
+        this.rand = new Random (seed);
+    }
+
+    public int run ()
+    {
+        EndpointSet [] members = new EndpointSet [nodes];
+        for (int i = 0; i < nodes; i++) {
+            members [i] = new EndpointSet (rand);
+            for (int j = 0; j < nodes; j++)
+                if (i != j)
+                    members [i].add (String.valueOf (j));
+        }
+
+        boolean [] informed = new boolean [nodes];
+        boolean [] next = new boolean [nodes];
+        informed [rand.nextInt (nodes)] = true;
+        int count = 1;
+        int rounds = 0;
+
+        List <String> targets = new ArrayList <String> ();
+        while (count < nodes) {
+            rounds++;
+            System.arraycopy (informed, 0, next, 0, nodes);
+            for (int i = 0; i < nodes; i++) {
+                targets.clear ();
+                if (roundRobin)
+                    members [i].next (fanout, targets);
+                else
+                    members [i].sample (fanout, targets);
+
+                for (String target : targets) {
+                    int j = Integer.parseInt (target);
+                    if (informed [i] || informed [j]) {
+                        next [i] = true;
+                        next [j] = true;
+                    }
+                }
+            }
+            count = 0;
+            for (int i = 0; i < nodes; i++) {
+                informed [i] = next [i];
+                if (informed [i])
+                    count++;
+            }
+        }
+        return rounds;
+    }
+
+    public static void main (String [] args)
+    {
+        int trials = args.length > 0 ? Integer.parseInt (args [0]) : 20;
+        int [] sizes = {50, 500, 2000};
+        if (args.length > 1) {
+            sizes = new int [args.length - 1];
+            for (int i = 1; i < args.length; i++)
+                sizes [i - 1] = Integer.parseInt (args [i]);
+        }
+
+        System.out.printf ("%6s %6s %-10s %6s %6s %6s%n",
+                "nodes", "fanout", "selection", "mean", "p95", "max");
+        for (int nodes : sizes) {
+            for (int fanout : FANOUTS) {
+                for (boolean roundRobin : new boolean [] {false, true}) {
+                    int [] rounds = new int [trials];
+                    long sum = 0;
+                    for (int t = 0; t < trials; t++) {
+                        rounds [t] = new GossipConvergence (nodes, fanout, roundRobin, t).run ();
+                        sum += rounds [t];
+                    }
+                    Arrays.sort (rounds);
+                    System.out.printf ("%6d %6d %-10s %6.1f %6d %6d%n",
+                            nodes, fanout, roundRobin ? "roundrobin" : "random",
+                            (double) sum / trials,
+                            rounds [(int) Math.ceil (trials * 0.95) - 1],
+                            rounds [trials - 1]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.zyni.heartbeat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zeromq.ZContext;
+import org.zyni.BenchmarkSupport;
+import org.zyni.ZyniAgent;
+import org.zyni.ZyniMsg;
+import org.zyni.ZyniPeer;
+import org.zyni.message.Gossip;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one gossip round (Ping, PingAck, PingEnd) on a node that knows
+ * a given number of simulated peers. Peers are never connected, so only
+ * the Gossiper work is measured.
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class GossipRoundBenchmark
+{
+    @Param ({"10", "100", "1000"})
+    public int peers;
+
+    @Param ({"4"})
+    public int headers;
+
+    private ZContext ctx;
+    private Gossiper gossiper;
+    private Gossip.Ping remotePing;
+    private Gossip.PingAck remoteAck;
+
+    @Setup (Level.Trial)
+    public void setup ()
+    {
+        ctx = new ZContext ();
+        Properties conf = BenchmarkSupport.config ("127.0.0.1:5670");
+        conf.setProperty ("heartbeat.digest", "delta");
+        ZyniAgent agent = BenchmarkSupport.createAgent (ctx, conf);
+
+        gossiper = new Gossiper ("", 5000, 10000, "1");
+        gossiper.getSignature ();
+        gossiper.initialize (agent, 1000L);
+
+        Gossip.Ping.Builder ping = Gossip.Ping.newBuilder ();
+        Gossip.PingAck.Builder ack = Gossip.PingAck.newBuilder ();
+
+        for (int i = 0; i < peers; i++) {
+            String endpoint = BenchmarkSupport.endpoint (i);
+            ZyniPeer peer = ZyniPeer.create (ctx, endpoint, agent.getPeers ());
+            for (int h = 0; h < headers; h++)
+                peer.getHeaders ().put ("header-" + h, "value-" + i);
+
+            Gossiper.State state = new Gossiper.State (endpoint, 1, headers, peer.getHeaders ());
+            state.setAlive (true);
+            peer.attach (state);
+
+            //  Half of the remote digests are ahead of us, half behind
+            Gossip.State remote = Gossip.State.newBuilder ()
+                    .setAddress (ZyniMsg.stringToAddress (endpoint))
+                    .setGeneration (1)
+                    .setMaxVersion (i % 2 == 0 ? headers + 1 : 0)
+                    .build ();
+            ping.addDigest (remote);
+            ack.addRequest (remote);
+        }
+        remotePing = ping.build ();
+        remoteAck = ack.build ();
+    }
+
+    @TearDown (Level.Trial)
+    public void tearDown ()
+    {
+        ctx.destroy ();
+    }
+
+    @Benchmark
+    public Gossip.Ping ping ()
+    {
+        return gossiper.buildDigest (-1);
+    }
+
+    /**
+     * Steady state delta digest, nothing changed since the last Ping
+     */
+    @Benchmark
+    public Gossip.Ping pingDelta ()
+    {
+        return gossiper.buildPing (BenchmarkSupport.endpoint (0));
+    }
+
+    @Benchmark
+    public Gossip.PingAck pingAck ()
+    {
+        return gossiper.buildPingOk (remotePing);
+    }
+
+    @Benchmark
+    public Gossip.PingEnd pingEnd ()
+    {
+        return gossiper.buildPingEnd (remoteAck);
+    }
+}
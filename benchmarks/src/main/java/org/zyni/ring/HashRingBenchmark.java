@@ -0,0 +1,70 @@
+package org.zyni.ring;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zyni.BenchmarkSupport;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Key lookup and membership change on a ring of a given number of nodes
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class HashRingBenchmark
+{
+    @Param ({"10", "100", "1000"})
+    public int nodes;
+
+    @Param ({"128"})
+    public int vnodes;
+
+    private HashRing ring;
+    private String [] keys;
+    private int next;
+
+    @Setup (Level.Trial)
+    public void setup ()
+    {
+        ring = new HashRing (vnodes);
+        for (int i = 0; i < nodes; i++)
+            ring.add (BenchmarkSupport.endpoint (i), 1);
+
+        keys = new String [1024];
+        for (int i = 0; i < keys.length; i++)
+            keys [i] = "key-" + i;
+    }
+
+    @Benchmark
+    public String lookup ()
+    {
+        next = (next + 1) & (keys.length - 1);
+        return ring.lookup (keys [next]);
+    }
+
+    /**
+     * One node leaving and coming back
+     */
+    @Benchmark
+    public List <Range> change ()
+    {
+        String endpoint = BenchmarkSupport.endpoint (0);
+        ring.remove (endpoint);
+        return ring.add (endpoint, 1);
+    }
+}
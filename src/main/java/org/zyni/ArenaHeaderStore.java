@@ -0,0 +1,417 @@
+package org.zyni;
+
+import org.zyni.message.Common.VersionedValue;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Header store without an object per header. Keys are interned once per
+ * JVM into small ids, since every peer publishes the same few names, and
+ * values are UTF-8 bytes appended to one byte array. Entries are parallel
+ * primitive arrays, found through an open addressing index by key id.
+ *
+ * A replaced value is overwritten in place when it fits, else appended,
+ * and the arena is compacted once more than half of it is garbage.
+ * VersionedValue objects are only built for get and the newer scans.
+ *
+ * The entries are also kept sorted by version, so a newer scan is a binary
+ * search and a copy of the k entries found, whatever the size of the map.
+ */
+public class ArenaHeaderStore implements HeaderStore
+{
+    private static final Charset UTF8 = Charset.forName ("UTF-8");
+
+    //  Interned keys, never released, there are only so many header names
+    private static final ConcurrentHashMap <String, Integer> keyIds
+            = new ConcurrentHashMap <String, Integer> ();
+    private static volatile String [] keyNames = new String [64];
+    private static int keyCount;                //  Guarded by keyIds
+
+    private int [] index;                       //  Entry + 1 by key id, 0 if free
+    private int mask;
+    private int [] keys;
+    private int [] versions;
+    private int [] offsets;
+    private int [] lengths;
+    private int [] order;                       //  Entries by version, then key id
+    private int size;
+
+    private byte [] arena;
+    private int used;                           //  Bytes appended so far
+    private int garbage;                        //  Of them, bytes no entry uses
+
+    public ArenaHeaderStore ()
+    {
+        this (8);
+    }
+
+    public ArenaHeaderStore (int capacity)
+    {
+        capacity = Math.max (1, capacity);
+        int slots = Integer.highestOneBit (Math.max (4, capacity) * 2 - 1) * 2;
+        index = new int [slots];
+        mask = slots - 1;
+        keys = new int [capacity];
+        versions = new int [capacity];
+        offsets = new int [capacity];
+        lengths = new int [capacity];
+        order = new int [capacity];
+        arena = new byte [capacity * 16];
+    }
+
+    private ArenaHeaderStore (ArenaHeaderStore other)
+    {
+        index = other.index.clone ();
+        mask = other.mask;
+        keys = other.keys.clone ();
+        versions = other.versions.clone ();
+        offsets = other.offsets.clone ();
+        lengths = other.lengths.clone ();
+        order = other.order.clone ();
+        size = other.size;
+        arena = other.arena.clone ();
+        used = other.used;
+        garbage = other.garbage;
+    }
+
+    static int intern (String key)
+    {
+        Integer id = keyIds.get (key);
+        if (id != null)
+            return id;
+
+        synchronized (keyIds) {
+            id = keyIds.get (key);
+            if (id != null)
+                return id;
+            if (keyCount == keyNames.length)
+                keyNames = Arrays.copyOf (keyNames, keyCount * 2);
+            keyNames [keyCount] = key;
+            //  Published after the name, a reader of the id sees it
+            keyIds.put (key, keyCount);
+            return keyCount++;
+        }
+    }
+
+    private int home (int id)
+    {
+        int h = id * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    //  Slot of the key id, or the free slot where it would go
+    private int slot (int id)
+    {
+        int idx = home (id);
+        while (index [idx] != 0 && keys [index [idx] - 1] != id)
+            idx = (idx + 1) & mask;
+        return idx;
+    }
+
+    //  Entry of the key, -1 if absent
+    private int entry (Object key)
+    {
+        Integer id = keyIds.get (key);
+        if (id == null)
+            return -1;
+        return index [slot (id)] - 1;
+    }
+
+    @Override
+    public int size ()
+    {
+        return size;
+    }
+
+    @Override
+    public boolean contains (String key)
+    {
+        return entry (key) >= 0;
+    }
+
+    @Override
+    public VersionedValue get (String key)
+    {
+        int e = entry (key);
+        return e < 0 ? null : value (e);
+    }
+
+    @Override
+    public String getValue (String key)
+    {
+        int e = entry (key);
+        return e < 0 ? null : new String (arena, offsets [e], lengths [e], UTF8);
+    }
+
+    private VersionedValue value (int e)
+    {
+        return VersionedValue.newBuilder ()
+                .setKey (keyNames [keys [e]])
+                .setVersion (versions [e])
+                .setValue (new String (arena, offsets [e], lengths [e], UTF8))
+                .build ();
+    }
+
+    @Override
+    public VersionedValue put (VersionedValue value)
+    {
+        VersionedValue old = get (value.getKey ());
+        set (value);
+        return old;
+    }
+
+    @Override
+    public void set (VersionedValue value)
+    {
+        if ((size + 1) * 4 > index.length * 3)
+            rehash (index.length * 2);
+
+        int id = intern (value.getKey ());
+        int idx = slot (id);
+        int e;
+        if (index [idx] == 0) {
+            if (size == keys.length)
+                growEntries ();
+            e = size++;
+            keys [e] = id;
+            offsets [e] = 0;
+            lengths [e] = 0;
+            index [idx] = e + 1;
+            versions [e] = value.getVersion ();
+            link (e);
+        }
+        else {
+            e = index [idx] - 1;
+            if (versions [e] != value.getVersion ()) {
+                unlink (e);
+                versions [e] = value.getVersion ();
+                link (e);
+            }
+        }
+
+        write (e, value.getValue ());
+    }
+
+    private void write (int e, String value)
+    {
+        //  Header values are mostly ASCII, copied without an encoder
+        byte [] encoded = null;
+        int length = value.length ();
+        for (int i = 0; i < value.length (); i++) {
+            if (value.charAt (i) >= 0x80) {
+                encoded = value.getBytes (UTF8);
+                length = encoded.length;
+                break;
+            }
+        }
+
+        if (length > lengths [e]) {
+            garbage += lengths [e];
+            lengths [e] = 0;            //  Not copied by a compaction
+            reserve (length);
+            offsets [e] = used;
+            used += length;
+        }
+        else
+            garbage += lengths [e] - length;
+        lengths [e] = length;
+
+        int offset = offsets [e];
+        if (encoded != null)
+            System.arraycopy (encoded, 0, arena, offset, length);
+        else {
+            for (int i = 0; i < length; i++)
+                arena [offset + i] = (byte) value.charAt (i);
+        }
+    }
+
+    private void reserve (int length)
+    {
+        if (used + length <= arena.length)
+            return;
+
+        int live = used - garbage;
+        int capacity = arena.length;
+        if (garbage <= used / 2 || live + length > capacity)
+            capacity = Math.max (capacity * 2, live + length);
+
+        //  Copy the live values only
+        byte [] compacted = new byte [capacity];
+        int offset = 0;
+        for (int e = 0; e < size; e++) {
+            System.arraycopy (arena, offsets [e], compacted, offset, lengths [e]);
+            offsets [e] = offset;
+            offset += lengths [e];
+        }
+        arena = compacted;
+        used = offset;
+        garbage = 0;
+    }
+
+    private void growEntries ()
+    {
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf (keys, capacity);
+        versions = Arrays.copyOf (versions, capacity);
+        offsets = Arrays.copyOf (offsets, capacity);
+        lengths = Arrays.copyOf (lengths, capacity);
+        order = Arrays.copyOf (order, capacity);
+    }
+
+    //  Position in the first count entries of order of the first entry
+    //  at or above version and key id
+    private int search (int version, int id, int count)
+    {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int e = order [mid];
+            if (versions [e] < version || versions [e] == version && keys [e] < id)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    //  Sort the entry into order, which holds every other entry
+    private void link (int e)
+    {
+        int count = size - 1;
+        int pos = search (versions [e], keys [e], count);
+        System.arraycopy (order, pos, order, pos + 1, count - pos);
+        order [pos] = e;
+    }
+
+    //  Take the entry out of order, which holds every entry
+    private void unlink (int e)
+    {
+        int pos = search (versions [e], keys [e], size);
+        System.arraycopy (order, pos + 1, order, pos, size - pos - 1);
+    }
+
+    private void rehash (int slots)
+    {
+        index = new int [slots];
+        mask = slots - 1;
+        for (int e = 0; e < size; e++)
+            index [slot (keys [e])] = e + 1;
+    }
+
+    @Override
+    public VersionedValue remove (String key)
+    {
+        int e = entry (key);
+        if (e < 0)
+            return null;
+
+        VersionedValue old = value (e);
+        removeEntry (e);
+        return old;
+    }
+
+    //  Free the index slot, and move the last entry into the hole
+    private void removeEntry (int e)
+    {
+        int free = slot (keys [e]);
+        index [free] = 0;
+
+        //  Move back the entries of the chain that could not sit in the freed slot
+        int idx = (free + 1) & mask;
+        while (index [idx] != 0) {
+            int home = home (keys [index [idx] - 1]);
+            if (((idx - home) & mask) >= ((idx - free) & mask)) {
+                index [free] = index [idx];
+                index [idx] = 0;
+                free = idx;
+            }
+            idx = (idx + 1) & mask;
+        }
+
+        garbage += lengths [e];
+        unlink (e);
+        int last = --size;
+        if (e != last) {
+            order [search (versions [last], keys [last], size)] = e;
+            keys [e] = keys [last];
+            versions [e] = versions [last];
+            offsets [e] = offsets [last];
+            lengths [e] = lengths [last];
+            index [slot (keys [e])] = e + 1;
+        }
+    }
+
+    @Override
+    public void clear ()
+    {
+        Arrays.fill (index, 0);
+        size = 0;
+        used = 0;
+        garbage = 0;
+    }
+
+    @Override
+    public void newer (int version, List <VersionedValue> out)
+    {
+        if (version == Integer.MAX_VALUE)
+            return;
+        for (int pos = search (version + 1, Integer.MIN_VALUE, size); pos < size; pos++)
+            out.add (value (order [pos]));
+    }
+
+    @Override
+    public Iterator <VersionedValue> iterator ()
+    {
+        return new Iterator <VersionedValue> ()
+        {
+            private int next;
+            private int last = -1;
+
+            @Override
+            public boolean hasNext ()
+            {
+                return next < size;
+            }
+
+            @Override
+            public VersionedValue next ()
+            {
+                if (next >= size)
+                    throw new NoSuchElementException ();
+                last = next++;
+                return value (last);
+            }
+
+            @Override
+            public void remove ()
+            {
+                if (last < 0)
+                    throw new IllegalStateException ();
+                //  The last entry moves into the hole, visit it next
+                removeEntry (last);
+                next = last;
+                last = -1;
+            }
+        };
+    }
+
+    @Override
+    public HeaderStore copy ()
+    {
+        return new ArenaHeaderStore (this);
+    }
+
+    /**
+     * @return bytes held by the arena, live or garbage
+     */
+    public int getArenaSize ()
+    {
+        return arena.length;
+    }
+}
@@ -0,0 +1,51 @@
+package org.zyni;
+
+import org.zyni.message.Common.VersionedValue;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Storage behind a ZyniMsg.VersionedMap, which keeps the max version and
+ * the Map views on top of it. Not thread safe, like the map.
+ */
+public interface HeaderStore
+{
+    int size ();
+
+    boolean contains (String key);
+
+    VersionedValue get (String key);
+
+    /**
+     * @return the value alone, without building a VersionedValue
+     */
+    String getValue (String key);
+
+    /**
+     * @return the value replaced, null if the key was absent
+     */
+    VersionedValue put (VersionedValue value);
+
+    /**
+     * Like put when the replaced value is not needed
+     */
+    void set (VersionedValue value);
+
+    VersionedValue remove (String key);
+
+    void clear ();
+
+    /**
+     * Add the values with a version above version to out, by version.
+     * Stores keep a version index, so this is O(log n + k)
+     */
+    void newer (int version, List <VersionedValue> out);
+
+    /**
+     * @return iterator over the values, which can remove
+     */
+    Iterator <VersionedValue> iterator ();
+
+    HeaderStore copy ();
+}
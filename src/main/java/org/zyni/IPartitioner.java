@@ -0,0 +1,15 @@
+package org.zyni;
+
+import java.util.List;
+
+/**
+ * Maps a key to the endpoints owning it, for ZyniAgent.sendToKey
+ */
+public interface IPartitioner
+{
+    /**
+     * @return up to count distinct endpoints owning the key, preferred first.
+     * Asking for more extends the same list
+     */
+    List <String> owners (String key, int count);
+}
@@ -0,0 +1,275 @@
+package org.zyni;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Named counters, gauges and histograms of an agent.
+ *
+ * Metrics are created on first use and can be updated from any thread.
+ * Latencies are recorded in microseconds, names end with ".us".
+ */
+public class Metrics
+{
+    public static class Counter
+    {
+        private final AtomicLong value = new AtomicLong ();
+
+        public void inc ()
+        {
+            value.incrementAndGet ();
+        }
+
+        public void add (long delta)
+        {
+            value.addAndGet (delta);
+        }
+
+        public long get ()
+        {
+            return value.get ();
+        }
+
+        @Override
+        public String toString ()
+        {
+            return String.valueOf (value.get ());
+        }
+    }
+
+    /**
+     * Value read when the metrics are dumped
+     */
+    public interface Gauge
+    {
+        double value ();
+    }
+
+    /**
+     * Distribution of non negative values in power of two buckets, so
+     * percentiles are upper bounds within a factor of two
+     */
+    public static class Histogram
+    {
+        private final AtomicLongArray buckets = new AtomicLongArray (64);
+        private final AtomicLong count = new AtomicLong ();
+        private final AtomicLong sum = new AtomicLong ();
+        private final AtomicLong max = new AtomicLong ();
+
+        public void record (long value)
+        {
+            if (value < 0)
+                value = 0;
+
+            buckets.incrementAndGet ((64 - Long.numberOfLeadingZeros (value)) & 63);
+            count.incrementAndGet ();
+            sum.addAndGet (value);
+
+            long current = max.get ();
+            while (value > current && !max.compareAndSet (current, value))
+                current = max.get ();
+        }
+
+        public long getCount ()
+        {
+            return count.get ();
+        }
+
+        public long getSum ()
+        {
+            return sum.get ();
+        }
+
+        public double getMean ()
+        {
+            long count = this.count.get ();
+            return count == 0 ? 0 : (double) sum.get () / count;
+        }
+
+        public long getMax ()
+        {
+            return max.get ();
+        }
+
+        /**
+         * @return upper bound of the given quantile (0..1)
+         */
+        public long getQuantile (double quantile)
+        {
+            long count = this.count.get ();
+            if (count == 0)
+                return 0;
+
+            long rank = (long) Math.ceil (quantile * count);
+            long seen = 0;
+            for (int idx = 0; idx < 64; idx++) {
+                seen += buckets.get (idx);
+                if (seen >= rank && seen > 0)
+                    return Math.min (idx == 0 ? 0 : (1L << idx) - 1, max.get ());
+            }
+            return max.get ();
+        }
+
+        @Override
+        public String toString ()
+        {
+            return String.format ("count=%d mean=%.1f p50=%d p99=%d max=%d",
+                    getCount (), getMean (), getQuantile (0.5), getQuantile (0.99), getMax ());
+        }
+    }
+
+    /**
+     * Message and byte counters of one traffic direction
+     */
+    public static class Traffic
+    {
+        private final Counter msgs;
+        private final Counter bytes;
+
+        Traffic (Counter msgs, Counter bytes)
+        {
+            this.msgs = msgs;
+            this.bytes = bytes;
+        }
+
+        public void add (int size)
+        {
+            msgs.inc ();
+            bytes.add (size);
+        }
+
+        public Counter getMsgs ()
+        {
+            return msgs;
+        }
+
+        public Counter getBytes ()
+        {
+            return bytes;
+        }
+    }
+
+    private final ConcurrentMap <String, Object> metrics;
+    private final ConcurrentMap <Integer, Traffic> signatureSent;
+    private final ConcurrentMap <Integer, Traffic> signatureReceived;
+
+    public Metrics ()
+    {
+        metrics = new ConcurrentSkipListMap <String, Object> ();
+        signatureSent = new ConcurrentHashMap <Integer, Traffic> ();
+        signatureReceived = new ConcurrentHashMap <Integer, Traffic> ();
+    }
+
+    public Counter counter (String name)
+    {
+        return get (name, Counter.class);
+    }
+
+    public Histogram histogram (String name)
+    {
+        return get (name, Histogram.class);
+    }
+
+    public Traffic traffic (String name)
+    {
+        return new Traffic (counter (name + ".msgs"), counter (name + ".bytes"));
+    }
+
+    /**
+     * Register the gauge, replacing any gauge of the same name
+     */
+    public void gauge (String name, Gauge gauge)
+    {
+        metrics.put (name, gauge);
+    }
+
+    public Object get (String name)
+    {
+        return metrics.get (name);
+    }
+
+    public void remove (String name)
+    {
+        metrics.remove (name);
+    }
+
+    /**
+     * Remove every metric under the prefix, like a departed peer
+     */
+    public void removeAll (String prefix)
+    {
+        for (String name : metrics.keySet ()) {
+            if (name.startsWith (prefix))
+                metrics.remove (name);
+        }
+    }
+
+    public Traffic sent (int signature)
+    {
+        return signature (signatureSent, signature, ".sent");
+    }
+
+    public Traffic received (int signature)
+    {
+        return signature (signatureReceived, signature, ".received");
+    }
+
+    private Traffic signature (ConcurrentMap <Integer, Traffic> cache, int signature, String suffix)
+    {
+        Traffic traffic = cache.get (signature);
+        if (traffic == null) {
+            traffic = traffic ("signature." + signature + suffix);
+            Traffic old = cache.putIfAbsent (signature, traffic);
+            if (old != null)
+                traffic = old;
+        }
+        return traffic;
+    }
+
+    private <T> T get (String name, Class <T> type)
+    {
+        Object metric = metrics.get (name);
+        if (metric == null) {
+            try {
+                metric = type.newInstance ();
+            } catch (Exception e) {
+                throw new IllegalStateException (e);
+            }
+            Object old = metrics.putIfAbsent (name, metric);
+            if (old != null)
+                metric = old;
+        }
+        if (!type.isInstance (metric))
+            throw new IllegalArgumentException (name + " is not a " + type.getSimpleName ());
+
+        return type.cast (metric);
+    }
+
+    /**
+     * @return one line per metric, sorted by name
+     */
+    public String dump ()
+    {
+        StringBuilder builder = new StringBuilder ();
+        for (Map.Entry <String, Object> entry : metrics.entrySet ()) {
+            Object metric = entry.getValue ();
+            builder.append (entry.getKey ()).append (' ');
+            if (metric instanceof Gauge)
+                builder.append (((Gauge) metric).value ());
+            else
+                builder.append (metric);
+            builder.append ('\n');
+        }
+        return builder.toString ();
+    }
+
+    @Override
+    public String toString ()
+    {
+        return dump ();
+    }
+}
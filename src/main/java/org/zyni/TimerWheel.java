@@ -0,0 +1,293 @@
+package org.zyni;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hierarchical hashed timer wheel driven by a monotonic clock.
+ *
+ * Timers are intrusive list nodes, so schedule and cancel are O(1) and
+ * a fired timer can be scheduled again without any allocation. Each level
+ * has 64 slots; a timer lives in level 0 when it is due within 64 ticks,
+ * otherwise it sits in a coarser level and is cascaded down as the wheel
+ * turns. Deadlines beyond the last level are parked in it and re-placed
+ * on cascade.
+ */
+public class TimerWheel
+{
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_TICKS = (1L << (WHEEL_BITS * LEVELS)) - 1;
+
+    //  Marker for timers sitting in the expired list
+    private static final Timer [] EXPIRED = new Timer [0];
+
+    private final long tickNanos;
+    private final long origin;
+    private final Timer [][] wheels;
+
+    private long current;          //  Next tick to be processed
+    private Timer expired;         //  Due timers waiting to be polled
+    private int size;
+
+    public static class Timer
+    {
+        private final IAgentHandler handler;
+        private long interval;
+        private long deadline;
+        private Timer prev;
+        private Timer next;
+        private Timer [] slots;
+        private int slot;
+
+        Timer (IAgentHandler handler, long interval)
+        {
+            this.handler = handler;
+            this.interval = interval;
+        }
+
+        public IAgentHandler getHandler ()
+        {
+            return handler;
+        }
+
+        public long getInterval ()
+        {
+            return interval;
+        }
+
+        void setInterval (long interval)
+        {
+            this.interval = interval;
+        }
+
+        public boolean isActive ()
+        {
+            return slots != null;
+        }
+    }
+
+    public TimerWheel ()
+    {
+        this (TimeUnit.MILLISECONDS.toNanos (1), System.nanoTime ());
+    }
+
+    public TimerWheel (long tickNanos, long origin)
+    {
+        assert (tickNanos > 0);
+        this.tickNanos = tickNanos;
+        this.origin = origin;
+
+        wheels = new Timer [LEVELS][WHEEL_SIZE];
+        expired = null;
+        current = 0;
+        size = 0;
+    }
+
+    public Timer newTimer (IAgentHandler handler, long interval)
+    {
+        return new Timer (handler, interval);
+    }
+
+    /**
+     * (Re)schedule the timer to fire delay milliseconds after now.
+     * A timer already scheduled is moved.
+     */
+    public void schedule (Timer timer, long delay, long now)
+    {
+        cancel (timer);
+
+        long ticks = (TimeUnit.MILLISECONDS.toNanos (delay) + tickNanos - 1) / tickNanos;
+        long deadline = tick (now) + ticks;
+        if (deadline < current)
+            deadline = current;
+
+        timer.deadline = deadline;
+        place (timer);
+        size++;
+    }
+
+    public boolean cancel (Timer timer)
+    {
+        if (timer.slots == null)
+            return false;
+
+        unlink (timer);
+        size--;
+        return true;
+    }
+
+    public int size ()
+    {
+        return size;
+    }
+
+    /**
+     * @return time the timer is or was last due, on the clock of now
+     */
+    public long getDeadline (Timer timer)
+    {
+        return origin + timer.deadline * tickNanos;
+    }
+
+    public boolean isEmpty ()
+    {
+        return size == 0;
+    }
+
+    /**
+     * @return the next timer due at now, or null. The returned timer is no
+     * longer scheduled.
+     */
+    public Timer poll (long now)
+    {
+        if (expired == null) {
+            long target = tick (now);
+            while (expired == null && current <= target)
+                turn ();
+        }
+
+        Timer timer = expired;
+        if (timer != null) {
+            unlink (timer);
+            size--;
+        }
+        return timer;
+    }
+
+    /**
+     * @return milliseconds until the wheel needs to be turned, 0 if timers
+     * are already due, -1 if no timer is scheduled
+     */
+    public long timeout (long now)
+    {
+        if (size == 0)
+            return -1;
+        if (expired != null)
+            return 0;
+
+        long next = Long.MAX_VALUE;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            if (wheels [0][(int) ((current + i) & WHEEL_MASK)] != null) {
+                next = current + i;
+                break;
+            }
+        }
+
+        for (int level = 1; level < LEVELS; level++) {
+            int shift = WHEEL_BITS * level;
+            long base = (current + (1L << shift) - 1) >> shift;
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                if (wheels [level][(int) ((base + i) & WHEEL_MASK)] != null) {
+                    next = Math.min (next, (base + i) << shift);
+                    break;
+                }
+            }
+        }
+
+        long nanos = origin + next * tickNanos - now;
+        if (nanos <= 0)
+            return 0;
+
+        return TimeUnit.NANOSECONDS.toMillis (nanos + TimeUnit.MILLISECONDS.toNanos (1) - 1);
+    }
+
+    private long tick (long now)
+    {
+        long elapsed = now - origin;
+        if (elapsed < 0)
+            return 0;
+        return elapsed / tickNanos;
+    }
+
+    //  Process one tick: cascade coarser levels on their boundary and move
+    //  the level 0 slot to the expired list
+    private void turn ()
+    {
+        int idx = (int) (current & WHEEL_MASK);
+        for (int level = 1; idx == 0 && level < LEVELS; level++) {
+            idx = (int) ((current >> (WHEEL_BITS * level)) & WHEEL_MASK);
+            cascade (level, idx);
+        }
+
+        Timer [] slots = wheels [0];
+        int slot = (int) (current & WHEEL_MASK);
+        Timer head = slots [slot];
+        current++;
+
+        if (head == null)
+            return;
+
+        //  Hand the whole slot list over, poll only turns on an empty list
+        slots [slot] = null;
+        expired = head;
+        for (Timer timer = head; timer != null; timer = timer.next)
+            timer.slots = EXPIRED;
+    }
+
+    private void cascade (int level, int idx)
+    {
+        Timer timer = wheels [level][idx];
+        wheels [level][idx] = null;
+
+        while (timer != null) {
+            Timer next = timer.next;
+            timer.prev = null;
+            timer.next = null;
+            timer.slots = null;
+            place (timer);
+            timer = next;
+        }
+    }
+
+    private void place (Timer timer)
+    {
+        long deadline = timer.deadline;
+        long delta = deadline - current;
+
+        if (delta > MAX_TICKS) {
+            //  Park at the far end of the last level, re-placed on cascade
+            deadline = current + MAX_TICKS;
+            delta = MAX_TICKS;
+        }
+
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1))))
+            level++;
+
+        int slot = (int) ((deadline >> (WHEEL_BITS * level)) & WHEEL_MASK);
+        link (timer, wheels [level], slot);
+    }
+
+    private void link (Timer timer, Timer [] slots, int slot)
+    {
+        Timer head = slots [slot];
+
+        timer.prev = null;
+        timer.next = head;
+        if (head != null)
+            head.prev = timer;
+
+        slots [slot] = timer;
+        timer.slots = slots;
+        timer.slot = slot;
+    }
+
+    private void unlink (Timer timer)
+    {
+        if (timer.prev != null)
+            timer.prev.next = timer.next;
+        else if (timer.slots == EXPIRED)
+            expired = timer.next;
+        else
+            timer.slots [timer.slot] = timer.next;
+
+        if (timer.next != null)
+            timer.next.prev = timer.prev;
+
+        timer.prev = null;
+        timer.next = null;
+        timer.slots = null;
+    }
+}
@@ -0,0 +1,331 @@
+package org.zyni;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Socket;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs application handlers off the agent thread.
+ *
+ * With a fixed size every worker is a single thread, and a task goes to the
+ * worker picked by the hash of its key. In VIRTUAL mode every key gets its
+ * own serial queue drained by a virtual thread, so a blocking handler only
+ * holds up its own key. Either way tasks sharing a key run in submission
+ * order, a null key runs unordered.
+ *
+ * Sockets are owned by the agent thread, workers hand work needing them
+ * back with post (), which wakes the agent through an inproc PUSH socket.
+ */
+class WorkerPool
+{
+    private static final Logger LOG = LoggerFactory.getLogger (WorkerPool.class);
+
+    static final int VIRTUAL = -1;
+
+    private static final AtomicInteger ids = new AtomicInteger ();
+    private static final byte [] WAKEUP = new byte [0];
+
+    private final ZContext ctx;
+    private final String endpoint;
+    private final Socket wakeup;                //  PULL, polled by the agent
+    private final Socket [] signals;            //  PUSH, one per worker or one shared
+    private final ExecutorService [] workers;
+    private final Map <Object, Serial> serials; //  Keys with queued tasks, VIRTUAL only
+    private final Queue <Runnable> posted;
+    private final ThreadLocal <Socket> signal;
+    private int next;                           //  Worker for unordered tasks
+    private int serialQueued;                   //  Guarded by serials
+    private volatile boolean closed;
+
+    //  Tasks of one key, run one after another on the virtual executor
+    private class Serial implements Runnable
+    {
+        private final Object key;
+        private final Queue <Runnable> tasks;
+        private boolean running;
+
+        Serial (Object key)
+        {
+            this.key = key;
+            tasks = new ArrayDeque <Runnable> ();
+        }
+
+        @Override
+        public void run ()
+        {
+            while (true) {
+                Runnable task;
+                synchronized (serials) {
+                    task = tasks.poll ();
+                    if (task != null)
+                        serialQueued--;
+                    else {
+                        running = false;
+                        serials.remove (key);
+                        return;
+                    }
+                }
+                try {
+                    task.run ();
+                } catch (RuntimeException e) {
+                    LOG.error ("handler failed for " + key, e);
+                }
+            }
+        }
+    }
+
+    WorkerPool (ZContext ctx, int size, String name)
+    {
+        this.ctx = ctx;
+
+        endpoint = "inproc://zyni-workers-" + ids.incrementAndGet ();
+        wakeup = ctx.createSocket (ZMQ.PULL);
+        wakeup.bind (endpoint);
+
+        posted = new ConcurrentLinkedQueue <Runnable> ();
+        signal = new ThreadLocal <Socket> ();
+
+        if (size == VIRTUAL) {
+            signals = new Socket [] { connect () };
+            workers = new ExecutorService [] { newVirtualExecutor (signals [0], name) };
+            serials = new HashMap <Object, Serial> ();
+        }
+        else {
+            assert (size > 0);
+            signals = new Socket [size];
+            workers = new ExecutorService [size];
+            serials = null;
+            for (int i = 0; i < size; i++) {
+                signals [i] = connect ();
+                //  A single thread executor whose queue can be measured
+                workers [i] = new ThreadPoolExecutor (1, 1, 0L, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue <Runnable> (),
+                        threadFactory (signals [i], name + "-worker-" + i));
+            }
+        }
+    }
+
+    private Socket connect ()
+    {
+        Socket socket = ctx.createSocket (ZMQ.PUSH);
+        socket.connect (endpoint);
+        return socket;
+    }
+
+    //  Every pool thread knows the socket to wake the agent with
+    private ThreadFactory threadFactory (final Socket socket, final String name)
+    {
+        return new ThreadFactory ()
+        {
+            private final AtomicInteger count = new AtomicInteger ();
+
+            @Override
+            public Thread newThread (final Runnable runnable)
+            {
+                Thread t = new Thread (new Runnable ()
+                {
+                    @Override
+                    public void run ()
+                    {
+                        signal.set (socket);
+                        runnable.run ();
+                    }
+                }, serials == null ? name : name + "-" + count.getAndIncrement ());
+                t.setDaemon (true);
+                return t;
+            }
+        };
+    }
+
+    //  Virtual threads need JDK 21, load them reflectively and fall back to
+    //  a cached thread pool on older runtimes
+    private ExecutorService newVirtualExecutor (final Socket socket, String name)
+    {
+        try {
+            Object builder = Thread.class.getMethod ("ofVirtual").invoke (null);
+            Class <?> type = Class.forName ("java.lang.Thread$Builder");
+            builder = type.getMethod ("name", String.class, long.class).invoke (builder, name + "-virtual-", 0L);
+            final ThreadFactory factory = (ThreadFactory) type.getMethod ("factory").invoke (builder);
+
+            //  One fresh virtual thread per task, nothing to pool
+            return (ExecutorService) Executors.class.getMethod ("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke (null, new ThreadFactory ()
+            {
+                @Override
+                public Thread newThread (final Runnable runnable)
+                {
+                    return factory.newThread (new Runnable ()
+                    {
+                        @Override
+                        public void run ()
+                        {
+                            signal.set (socket);
+                            runnable.run ();
+                        }
+                    });
+                }
+            });
+        } catch (Exception e) {
+            LOG.warn ("Virtual threads are not available, using platform threads");
+            return Executors.newCachedThreadPool (threadFactory (socket, name + "-worker"));
+        }
+    }
+
+    Socket getWakeup ()
+    {
+        return wakeup;
+    }
+
+    /**
+     * Run the task after the other tasks of key
+     * @return false if the pool is shut down
+     */
+    boolean submit (Object key, Runnable task)
+    {
+        try {
+            if (serials != null)
+                submitSerial (key, task);
+            else if (key == null) {
+                if (++next == workers.length)
+                    next = 0;
+                workers [next].execute (task);
+            }
+            else {
+                int hash = key.hashCode ();
+                hash ^= (hash >>> 16);
+                workers [(hash & 0x7fffffff) % workers.length].execute (task);
+            }
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private void submitSerial (Object key, Runnable task)
+    {
+        if (key == null) {
+            workers [0].execute (task);
+            return;
+        }
+
+        Serial serial;
+        synchronized (serials) {
+            serial = serials.get (key);
+            if (serial == null) {
+                serial = new Serial (key);
+                serials.put (key, serial);
+            }
+            serial.tasks.add (task);
+            serialQueued++;
+            if (serial.running)
+                return;
+            serial.running = true;
+        }
+        workers [0].execute (serial);
+    }
+
+    /**
+     * @return tasks waiting for a worker, keyed ones only in VIRTUAL mode
+     */
+    int queued ()
+    {
+        if (serials != null) {
+            synchronized (serials) {
+                return serialQueued;
+            }
+        }
+
+        int queued = 0;
+        for (ExecutorService worker : workers)
+            queued += ((ThreadPoolExecutor) worker).getQueue ().size ();
+        return queued;
+    }
+
+    /**
+     * Queue the task to the agent thread
+     * @return false if not called from a worker thread
+     */
+    boolean post (Runnable task)
+    {
+        Socket socket = signal.get ();
+        if (socket == null)
+            return false;
+
+        //  Shared by all virtual threads. A full pipe means the agent has
+        //  wakeups pending anyway. Checked under the lock shutdown closes
+        //  with, so a task is either run by shutdown or refused
+        synchronized (socket) {
+            if (closed)
+                return false;
+            posted.add (task);
+            socket.send (WAKEUP, ZMQ.DONTWAIT);
+        }
+        return true;
+    }
+
+    /**
+     * Run the posted tasks, on the agent thread
+     */
+    void runPosted ()
+    {
+        while (wakeup.recv (ZMQ.DONTWAIT) != null)
+            ;
+
+        Runnable task;
+        while ((task = posted.poll ()) != null)
+            task.run ();
+    }
+
+    /**
+     * Let the workers finish their queued tasks, then run what they posted.
+     * Workers still busy after timeout milliseconds are interrupted and
+     * cannot post anymore.
+     */
+    void shutdown (long timeout)
+    {
+        for (ExecutorService worker : workers)
+            worker.shutdown ();
+
+        long deadline = System.currentTimeMillis () + timeout;
+        try {
+            for (ExecutorService worker : workers)
+                worker.awaitTermination (
+                        Math.max (0, deadline - System.currentTimeMillis ()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread ().interrupt ();
+        }
+        for (ExecutorService worker : workers)
+            worker.shutdownNow ();
+
+        //  Once past every lock, no post can add a task anymore
+        for (Socket socket : signals) {
+            synchronized (socket) {
+                closed = true;
+            }
+        }
+        runPosted ();
+
+        for (Socket socket : signals) {
+            synchronized (socket) {
+                ctx.destroySocket (socket);
+            }
+        }
+        ctx.destroySocket (wakeup);
+    }
+}
@@ -25,6 +25,7 @@
 
 package org.zyni;
 
+import com.google.protobuf.Message;
 import org.zeromq.ZContext;
 import org.zeromq.ZMQ.Poller;
 import org.zeromq.ZMQ.Socket;
@@ -81,12 +82,12 @@ public class Zyni
     }
 
 
-    public void registerTimer (long interval, IAgentHandler handler)
+    public TimerWheel.Timer registerTimer (long interval, IAgentHandler handler)
     {
         if (handler == null)
-            return;
+            return null;
 
-        agent.registerTimer (interval, handler);
+        return agent.registerTimer (interval, handler);
     }
 
     /**
@@ -106,6 +107,72 @@ public class Zyni
         return false;
     }
 
+    /**
+     * Ask the agent for its metrics. They come back in an AGENT.METRICS
+     * command callback, as one frame of text with one metric per line
+     * @return true if send succeeds
+     */
+    public boolean requestMetrics ()
+    {
+        return sendCommand (ZyniEvent.AGENT_METRICS.toString (), null);
+    }
+
+    /**
+     * Have the agent send the message to the first replicas owners of the
+     * key, see ZyniAgent.sendToKey. Needs a partitioner on the agent, like
+     * a registered RingHandler, without one the agent drops the message
+     * and counts it in route.failed
+     * @return true if send succeeds
+     */
+    public boolean sendToKey (String key, Message body, int replicas)
+    {
+        ZyniMsg msg = new ZyniMsg (body);
+        ZMsg frames = new ZMsg ();
+        frames.add (key);
+        frames.add (String.valueOf (replicas));
+        frames.add (msg.getHeaderData ());
+        frames.add (msg.getBodyData ());
+        return sendCommand (ZyniEvent.AGENT_SEND_KEY.toString (), frames);
+    }
+
+    public boolean sendToKey (String key, Message body)
+    {
+        return sendToKey (key, body, 1);
+    }
+
+    /**
+     * Join the group, needs a GroupHandler registered on the agent
+     * @return true if send succeeds
+     */
+    public boolean join (String group)
+    {
+        ZMsg frames = new ZMsg ();
+        frames.add (group);
+        return sendCommand (ZyniEvent.GROUP_JOIN.toString (), frames);
+    }
+
+    public boolean leave (String group)
+    {
+        ZMsg frames = new ZMsg ();
+        frames.add (group);
+        return sendCommand (ZyniEvent.GROUP_LEAVE.toString (), frames);
+    }
+
+    /**
+     * Have the agent send the message to the members of the group, see
+     * GroupHandler.shout
+     * @return true if send succeeds
+     */
+    public boolean shout (String group, Message body)
+    {
+        ZyniMsg msg = new ZyniMsg (body);
+        ZMsg frames = new ZMsg ();
+        frames.add (group);
+        frames.add (msg.getHeaderData ());
+        frames.add (msg.getBodyData ());
+        return sendCommand (ZyniEvent.GROUP_SHOUT.toString (), frames);
+    }
+
     public void loop ()
     {
         pipe = ZThread.fork (ctx, agent);
@@ -1,6 +1,8 @@
 package org.zyni;
 
+import com.google.protobuf.Message;
 import org.zeromq.ZContext;
+import org.zeromq.ZFrame;
 import org.zeromq.ZMQ;
 import org.zeromq.ZMQ.Poller;
 import org.zeromq.ZMQ.Socket;
@@ -8,17 +10,23 @@ import org.zeromq.ZMsg;
 import org.zeromq.ZThread;
 import org.zyni.ZyniMsg.VersionedMap;
 import org.zyni.handler.SystemHandler;
+import org.zyni.heartbeat.FailureDetector;
 import org.zyni.heartbeat.HeartBeatFactory;
 import org.zyni.message.Common.VersionedValue;
+import org.zyni.message.Flow;
+import org.zyni.message.Flow.Grant;
 
 import java.net.InetAddress;
 import java.util.*;
 import java.net.UnknownHostException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ZyniAgent implements ZThread.IAttachedRunnable
 {
+    private static final long WORKER_SHUTDOWN = 3000;
+
     private ZContext ctx;
     private Socket pipe;
 
@@ -27,28 +35,85 @@ public class ZyniAgent implements ZThread.IAttachedRunnable
 
     private final Properties conf;
     private final int sendHWM;
-
-    private final TreeSet<TimerInfo> timers;
+    private final boolean batch;
+    private final int batchCount;
+    private final int batchBytes;
+    private final int workerCount;
+    private final String partition;
+    private final boolean instrumented;
+    private final double routePhi;          //  Below 0, the convict threshold
+    private final boolean arenaHeaders;     //  Peer headers in an ArenaHeaderStore
+    private final int creditWindow;         //  Messages a sender can have in flight, 0 if unlimited
+    private final int creditQueue;          //  Messages waiting for credit per peer
+    private final int grantSignature;
+
+    private final TimerWheel timers;
     private final Map<String, ZyniPeer> peers;
     private final VersionedMap headers;
     private final ConcurrentHashMap<String, List<IAgentHandler>> commands;
     private final List <IAgentHandler> subscribers;
     private final ConcurrentHashMap <Integer, IAgentHandler> callbacks;
     private final HashSet<IAgentHandler> handlers;
+    private final Set <IAgentHandler> systemHandlers;
+    private final List <ZyniPeer> flushQueue;
+    private final List <ZyniMsg> received;
+    private final Set <Integer> unmetered;  //  Signatures sent without credit
+    private final Map <String, AtomicLong> taken;   //  Messages processed by sender
+
+    private final Metrics metrics;
+    private final Map <IAgentHandler, HandlerMetrics> handlerMetrics;
+    private final Metrics.Histogram loopTime;
+    private final Metrics.Histogram timerLateness;
+    private final Metrics.Counter routeSkipped;
+    private final Metrics.Counter routeFailed;
+
+    private IPartitioner partitioner;       //  Owners of keys, null until set
+    private FailureDetector failureDetector;
+
+    private WorkerPool workers;             //  Runs application handlers, null if single threaded
+    private Thread thread;                  //  Agent thread
 
     private volatile boolean stop = false;
 
+    //  Time spent in each entry point of a handler
+    private static class HandlerMetrics
+    {
+        private final Metrics.Histogram callback;
+        private final Metrics.Histogram command;
+        private final Metrics.Histogram timer;
+
+        private HandlerMetrics (Metrics metrics, IAgentHandler handler)
+        {
+            String name = handler.getClass ().getSimpleName ();
+            if (name.isEmpty ())
+                name = handler.getClass ().getName ();
+            String prefix = "handler." + name;
+
+            callback = metrics.histogram (prefix + ".callback.us");
+            command = metrics.histogram (prefix + ".command.us");
+            timer = metrics.histogram (prefix + ".timer.us");
+        }
+    }
+
     public ZyniAgent (Properties conf)
     {
         this.conf = conf;
         sendHWM = Integer.parseInt (conf.getProperty ("send.hwm", "1000"));
-
-        timers = new TreeSet <TimerInfo> (new Comparator<TimerInfo> () {
-            @Override
-            public int compare (TimerInfo h1, TimerInfo h2)
-            {
-                return h1.expire <= h2.expire ? -1 : 1;
-            }});
+        batch = Boolean.parseBoolean (conf.getProperty ("peer.batch", "false"));
+        batchCount = Integer.parseInt (conf.getProperty ("peer.batch.count", "64"));
+        batchBytes = Integer.parseInt (conf.getProperty ("peer.batch.bytes", "65536"));
+        String pool = conf.getProperty ("agent.workers", "0");
+        workerCount = pool.equals ("virtual") ? WorkerPool.VIRTUAL : Integer.parseInt (pool);
+        partition = conf.getProperty ("agent.partition", "peer");
+        instrumented = Boolean.parseBoolean (conf.getProperty ("agent.metrics", "true"));
+        routePhi = Double.parseDouble (conf.getProperty ("route.phi", "-1"));
+        arenaHeaders = conf.getProperty ("agent.headers", "hash").equals ("arena");
+        creditWindow = Integer.parseInt (conf.getProperty ("peer.credit", "0"));
+        creditQueue = Integer.parseInt (conf.getProperty ("peer.queue", "1000"));
+        grantSignature = Flow.getDescriptor ().getName ().hashCode ();
+        ZyniMsg.registerBuilder (grantSignature, Grant.newBuilder ());
+
+        timers = new TimerWheel ();
 
         headers = new VersionedMap ();
         peers = new HashMap <String, ZyniPeer> ();
@@ -57,11 +122,41 @@ public class ZyniAgent implements ZThread.IAttachedRunnable
         callbacks = new ConcurrentHashMap <Integer, IAgentHandler> ();
 
         handlers = new HashSet <IAgentHandler> ();
+        systemHandlers = new HashSet <IAgentHandler> ();
+        flushQueue = new ArrayList <ZyniPeer> ();
+        received = new ArrayList <ZyniMsg> ();
+        unmetered = new HashSet <Integer> ();
+        unmetered.add (grantSignature);
+        taken = new HashMap <String, AtomicLong> ();
+
+        metrics = new Metrics ();
+        handlerMetrics = new ConcurrentHashMap <IAgentHandler, HandlerMetrics> ();
+        loopTime = metrics.histogram ("agent.loop.us");
+        timerLateness = metrics.histogram ("agent.timer.lateness.us");
+        routeSkipped = metrics.counter ("route.skipped");
+        routeFailed = metrics.counter ("route.failed");
+        metrics.gauge ("agent.peers", new Metrics.Gauge ()
+        {
+            @Override
+            public double value ()
+            {
+                return peers.size ();
+            }
+        });
+        metrics.gauge ("agent.timers", new Metrics.Gauge ()
+        {
+            @Override
+            public double value ()
+            {
+                return timers.size ();
+            }
+        });
     }
 
-    private boolean initialize (ZContext ctx, Socket pipe) {
+    boolean initialize (ZContext ctx, Socket pipe) {
         this.ctx = ctx;
         this.pipe = pipe;
+        thread = Thread.currentThread ();
         inbox = ctx.createSocket (ZMQ.ROUTER);
 
         if (inbox == null) //  Interrupted
@@ -81,15 +176,38 @@ public class ZyniAgent implements ZThread.IAttachedRunnable
 
         address = String.format ("%s:%d", addr.getHostAddress (), port);
 
+        //  Every node can unbatch, peers only batch to us once they see this
+        putHeader (ZyniPeer.BATCH_HEADER, "1");
+        if (creditWindow > 0)
+            putHeader (ZyniPeer.CREDIT_HEADER, String.valueOf (creditWindow));
+
         registerSystemHandler ();
 
+        if (workerCount != 0) {
+            workers = new WorkerPool (ctx, workerCount, address);
+            metrics.gauge ("agent.workers.queued", new Metrics.Gauge ()
+            {
+                @Override
+                public double value ()
+                {
+                    WorkerPool pool = workers;
+                    return pool == null ? 0 : pool.queued ();
+                }
+            });
+        }
+
         return true;
     }
 
     public void destroy ()
     {
+        if (workers != null) {
+            workers.shutdown (WORKER_SHUTDOWN);
+            workers = null;
+        }
         for (IAgentHandler handler: handlers)
             handler.destroy ();
+        flushPeers ();
 
         sendCommand (ZyniEvent.AGENT_EXIT.toString ());
     }
@@ -116,9 +234,18 @@ public class ZyniAgent implements ZThread.IAttachedRunnable
                 Long.parseLong (conf.getProperty ("heartbeat.interval", "1000")),
                 heartbeat);
         registerCallback (heartbeat.getSignature (), heartbeat);
+        //  Membership must not wait for credit
+        unmetered.add (heartbeat.getSignature ());
 
         registerCommand ("*", handler);
         registerEventHandler (handler);
+        //  A lost grant would stall its sender for good
+        if (creditWindow > 0)
+            registerTimer (Long.parseLong (conf.getProperty ("peer.credit.regrant", "1000")), handler);
+
+        //  Always run on the agent thread, away from application handlers
+        systemHandlers.add (heartbeat);
+        systemHandlers.add (handler);
     }
 
     public void registerCommand (String command, IAgentHandler handler)
@@ -141,29 +268,48 @@ public class ZyniAgent implements ZThread.IAttachedRunnable
         callbacks.put (signature, handler);
     }
 
-    public void registerTimer (long interval, IAgentHandler handler)
+    /**
+     * Schedule handler.processTimer after interval milliseconds
+     * @return timer handle, can be passed to cancelTimer
+     */
+    public TimerWheel.Timer registerTimer (long interval, IAgentHandler handler)
     {
         initializeHandler (handler, interval);
 
-        long now = System.currentTimeMillis ();
-        timers.add (new TimerInfo (interval, now, handler));
+        TimerWheel.Timer timer = timers.newTimer (handler, interval);
+        timers.schedule (timer, 0, System.nanoTime ());
+        return timer;
+    }
+
+    /**
+     * @return true if the timer was scheduled
+     */
+    public boolean cancelTimer (TimerWheel.Timer timer)
+    {
+        return timers.cancel (timer);
     }
 
     private void initializeHandler (IAgentHandler handler, Object ... args)
     {
-        if (handlers.add (handler))
+        if (handlers.add (handler)) {
+            if (instrumented)
+                handlerMetrics.put (handler, new HandlerMetrics (metrics, handler));
             handler.initialize (this, args);
+        }
     }
 
     @Override
     public void run (Object[] args, ZContext ctx, Socket pipe)
     {
         initialize (ctx, pipe);
+        onEvent (ZyniEvent.AGENT_START, address);
 
-        Poller poller = new Poller (2);
+        Poller poller = new Poller (3);
 
         poller.register (pipe, Poller.POLLIN);
         poller.register (inbox, Poller.POLLIN);
+        if (workers != null)
+            poller.register (workers.getWakeup (), Poller.POLLIN);
 
         while (!stop && !Thread.currentThread ().isInterrupted ()) {
 
@@ -171,6 +317,8 @@ public class ZyniAgent implements ZThread.IAttachedRunnable
             if (poller.poll (timeout) < 0)
                 break;
 
+            long start = instrumented ? System.nanoTime () : 0;
+
             if (poller.pollin (0)) {
                 handleCommand ();
             }
@@ -179,7 +327,16 @@ public class ZyniAgent implements ZThread.IAttachedRunnable
                 handleCallback ();
             }
 
+            if (workers != null && poller.pollin (2)) {
+                workers.runPosted ();
+            }
+
             handleTimer ();
+
+            flushPeers ();
+
+            if (instrumented)
+                loopTime.record ((System.nanoTime () - start) / 1000);
         }
         destroy ();
     }
@@ -193,31 +350,245 @@ public class ZyniAgent implements ZThread.IAttachedRunnable
 
         if (handlers != null) {
             for (IAgentHandler handler : handlers) {
-                handler.processCommand (command, msg);
+                dispatchCommand (handler, command, msg);
             }
         }
 
         handlers = commands.get ("*");
         if (handlers != null) {
             for (IAgentHandler handler : handlers) {
-                handler.processCommand (command, msg);
+                dispatchCommand (handler, command, msg);
             }
         }
     }
 
+    private void dispatchCommand (final IAgentHandler handler, final String command, ZMsg msg)
+    {
+        if (workers == null || systemHandlers.contains (handler)) {
+            processCommand (handler, command, msg);
+            return;
+        }
+
+        //  Handlers on the agent thread still read the message
+        final ZMsg copy = msg.duplicate ();
+        workers.submit (partition.equals ("message") ? null : command, new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                processCommand (handler, command, copy);
+            }
+        });
+    }
+
     private void handleCallback ()
     {
-        ZyniMsg msg = ZyniMsg.recv (inbox);
+        ZyniMsg.recv (inbox, received);
+
+        //  A batch holds several messages, dispatch them in order
+        for (ZyniMsg msg : received) {
+            if (instrumented)
+                countReceived (msg);
+
+            if (msg.getSignature () == grantSignature) {
+                handleGrant (msg);
+                continue;
+            }
+
+            IAgentHandler handler = callbacks.get (msg.getSignature ());
+            AtomicLong counter = creditWindow > 0 ? meter (msg) : null;
+
+            if (handler != null)
+                dispatchCallback (handler, msg, counter);
+            else if (counter != null)
+                taken (msg.getIdentityString (), counter);
+        }
+        received.clear ();
+    }
+
+    //  Counter of the messages taken from the sender, null if the sender
+    //  does not meter this one
+    private AtomicLong meter (ZyniMsg msg)
+    {
+        if (msg.getIdentity () == null || unmetered.contains (msg.getSignature ()))
+            return null;
+
+        String identity = msg.getIdentityString ();
+        AtomicLong counter = taken.get (identity);
+        if (counter == null) {
+            counter = new AtomicLong ();
+            taken.put (identity, counter);
+        }
+        return counter;
+    }
+
+    //  Once the handler is done with a message, grant the sender more
+    //  credit every half window
+    private void taken (final String identity, final AtomicLong counter)
+    {
+        if (counter.incrementAndGet () % Math.max (1, creditWindow / 2) != 0)
+            return;
+
+        execute (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                if (taken.get (identity) == counter)
+                    grant (identity, counter.get ());
+            }
+        });
+    }
+
+    private void grant (String identity, long granted)
+    {
+        ZyniPeer peer = peers.get (identity);
+        if (peer != null && peer.getHandle () != null)
+            peer.send (new ZyniMsg (Grant.newBuilder ().setGranted (granted).build ()));
+    }
+
+    /**
+     * Grant every sender what it has taken so far again, on the agent
+     * thread. Grants are cumulative, so this makes up for any lost one.
+     */
+    public void regrant ()
+    {
+        for (Map.Entry <String, AtomicLong> entry : taken.entrySet ()) {
+            long granted = entry.getValue ().get ();
+            if (granted > 0)
+                grant (entry.getKey (), granted);
+        }
+    }
 
-        IAgentHandler handler = callbacks.get (msg.getSignature ());
+    private void handleGrant (ZyniMsg msg)
+    {
+        String identity = msg.getIdentityString ();
+        ZyniPeer peer = peers.get (identity);
+        if (peer != null && peer.grant (((Grant) msg.getBody ()).getGranted ()))
+            onEvent (ZyniEvent.PEER_WRITABLE, identity);
+    }
 
-        if (handler != null)
+    private void dispatchCallback (IAgentHandler handler, ZyniMsg msg)
+    {
+        dispatchCallback (handler, msg, null);
+    }
+
+    private void dispatchCallback (final IAgentHandler handler, final ZyniMsg msg, final AtomicLong counter)
+    {
+        final String identity = counter == null ? null : msg.getIdentityString ();
+        if (workers == null || systemHandlers.contains (handler)) {
+            try {
+                processCallback (handler, msg);
+            } finally {
+                if (counter != null)
+                    taken (identity, counter);
+            }
+            return;
+        }
+
+        Object key;
+        if (partition.equals ("signature"))
+            key = msg.getSignature ();
+        else if (partition.equals ("message"))
+            key = null;
+        else
+            key = msg.getIdentityString ();
+        workers.submit (key, new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                //  A failed message is taken all the same, or its credit
+                //  would never come back
+                try {
+                    processCallback (handler, msg);
+                } finally {
+                    if (counter != null)
+                        taken (identity, counter);
+                }
+            }
+        });
+    }
+
+    private void processCallback (IAgentHandler handler, ZyniMsg msg)
+    {
+        HandlerMetrics stats = handlerMetrics.get (handler);
+        if (stats == null) {
             handler.processCallback (msg);
+            return;
+        }
+
+        long start = System.nanoTime ();
+        handler.processCallback (msg);
+        stats.callback.record ((System.nanoTime () - start) / 1000);
+    }
+
+    private void processCommand (IAgentHandler handler, String command, ZMsg msg)
+    {
+        HandlerMetrics stats = handlerMetrics.get (handler);
+        if (stats == null) {
+            handler.processCommand (command, msg);
+            return;
+        }
+
+        long start = System.nanoTime ();
+        handler.processCommand (command, msg);
+        stats.command.record ((System.nanoTime () - start) / 1000);
+    }
+
+    private long processTimer (IAgentHandler handler, long interval)
+    {
+        HandlerMetrics stats = handlerMetrics.get (handler);
+        if (stats == null)
+            return handler.processTimer (interval);
+
+        long start = System.nanoTime ();
+        long next = handler.processTimer (interval);
+        stats.timer.record ((System.nanoTime () - start) / 1000);
+        return next;
+    }
+
+    private void countReceived (ZyniMsg msg)
+    {
+        int size = msg.size ();
+        metrics.received (msg.getSignature ()).add (size);
+
+        if (msg.getIdentity () != null) {
+            ZyniPeer peer = peers.get (msg.getIdentityString ());
+            if (peer != null)
+                peer.received (size);
+        }
+    }
+
+    /**
+     * Run the task on the agent thread, which owns the peer sockets.
+     * Handlers running on workers (agent.workers > 0) must reach peers
+     * through it.
+     */
+    public void execute (Runnable task)
+    {
+        if (Thread.currentThread () == thread)
+            task.run ();
+        else if (workers == null || !workers.post (task))
+            throw new IllegalStateException ("not on an agent or worker thread");
+    }
 
+    /**
+     * Send what peers have batched during this loop iteration
+     */
+    private void flushPeers ()
+    {
+        for (ZyniPeer peer : flushQueue)
+            peer.flushQueued ();
+        flushQueue.clear ();
     }
 
     public void onEvent (ZyniEvent event, Object ... params)
     {
+        //  A new incarnation counts what it sent from zero
+        if (event == ZyniEvent.PEER_RESTART || event == ZyniEvent.PEER_EXIT)
+            taken.remove (params [0]);
+
         for (IAgentHandler handler : subscribers) {
             handler.onEvent (event, params);
         }
@@ -228,18 +599,18 @@ public class ZyniAgent implements ZThread.IAttachedRunnable
      */
     private void handleTimer ()
     {
-        long now = System.currentTimeMillis ();
+        long now = System.nanoTime ();
         while (true) {
-            TimerInfo t = timers.pollFirst ();
+            TimerWheel.Timer t = timers.poll (now);
             if (t == null)
                 break;
-            if (t.expire <= now) {
-                long next = t.handler.processTimer (t.interval);
-                if (next > 0)
-                    timers.add (new TimerInfo (next, now + next, t.handler));
-            } else {
-                timers.add (t);
-                break;
+            if (instrumented)
+                timerLateness.record ((now - timers.getDeadline (t)) / 1000);
+
+            long next = processTimer (t.getHandler (), t.getInterval ());
+            if (next > 0) {
+                t.setInterval (next);
+                timers.schedule (t, next, now);
             }
         }
     }
@@ -250,14 +621,7 @@ public class ZyniAgent implements ZThread.IAttachedRunnable
      */
     private long getTimeout ()
     {
-        if (timers.isEmpty ())
-            return -1;
-
-        long timeout = timers.first ().expire - System.currentTimeMillis ();
-        if (timeout < 0)
-            timeout = 0;
-
-        return timeout;
+        return timers.timeout (System.nanoTime ());
     }
 
     public void stop ()
@@ -266,27 +630,19 @@ public class ZyniAgent implements ZThread.IAttachedRunnable
     }
 
 
-    class TimerInfo
-    {
-        private long interval;
-        private long expire;
-        private IAgentHandler handler;
-
-        private TimerInfo (long interval, long expire, IAgentHandler handler)
-        {
-            this.interval = interval;
-            this.expire = expire;
-            this.handler = handler;
-        }
-    }
-
-
     public ZyniPeer connectPeer (String endpoint)
     {
         ZyniPeer peer = findPeer (endpoint);
-        if (peer == null)
-            peer = ZyniPeer.create (ctx, endpoint, peers);
+        if (peer == null) {
+            peer = ZyniPeer.create (ctx, endpoint, peers, arenaHeaders
+                    ? new VersionedMap (new ArenaHeaderStore ()) : new VersionedMap ());
+            if (instrumented)
+                peer.setMetrics (metrics);
+        }
         peer.connect (address, sendHWM);
+        peer.setCredit (creditQueue, unmetered);
+        if (batch)
+            peer.setBatch (batchCount, batchBytes, flushQueue);
 
         return peer;
     }
@@ -313,8 +669,21 @@ public class ZyniAgent implements ZThread.IAttachedRunnable
         return peer;
     }
 
-    public void sendCommand (String command, String ... args)
+    public void sendCommand (final String command, final String ... args)
     {
+        if (workers != null && Thread.currentThread () != thread) {
+            //  The pipe belongs to the agent thread
+            execute (new Runnable ()
+            {
+                @Override
+                public void run ()
+                {
+                    sendCommand (command, args);
+                }
+            });
+            return;
+        }
+
         ZMsg outgoing = new ZMsg ();
         outgoing.add (command);
 
@@ -324,11 +693,139 @@ public class ZyniAgent implements ZThread.IAttachedRunnable
         outgoing.send (pipe);
     }
 
+    /**
+     * Partitioning of keys for sendToKey, a RingHandler sets its ring
+     */
+    public void setPartitioner (IPartitioner partitioner)
+    {
+        this.partitioner = partitioner;
+    }
+
+    public boolean hasPartitioner ()
+    {
+        return partitioner != null;
+    }
+
+    /**
+     * Failure detector of the heartbeat strategy, sendToKey skips owners
+     * whose phi is above route.phi
+     */
+    public void setFailureDetector (FailureDetector failureDetector)
+    {
+        this.failureDetector = failureDetector;
+    }
+
+    /**
+     * Send to the owner of the key
+     * @return true if an owner got it
+     */
+    public boolean sendToKey (String key, Message body)
+    {
+        return sendToKey (key, body, 1) > 0;
+    }
+
+    /**
+     * Send to the first replicas owners of the key. Owners not connected
+     * or suspected by the failure detector are passed over for the next
+     * ones, and a key owned by this agent goes to the local callback.
+     * Like any send, call it on the agent thread or through execute.
+     * @return number of owners the message went to
+     * @throws IllegalStateException without a partitioner
+     */
+    public int sendToKey (String key, Message body, int replicas)
+    {
+        if (partitioner == null)
+            throw new IllegalStateException ("no partitioner, register a RingHandler");
+
+        int sent = 0;
+        ZyniMsg shared = null;                  //  Encoded once for the replicas
+        for (String owner : route (key, replicas)) {
+            if (owner.equals (address)) {
+                ZyniMsg msg = new ZyniMsg (body);
+                IAgentHandler handler = callbacks.get (msg.getSignature ());
+                if (handler == null)
+                    continue;
+                msg.setIdentity (new ZFrame (address));
+                dispatchCallback (handler, msg);
+                sent++;
+                continue;
+            }
+            if (shared == null)
+                shared = new ZyniMsg (body);
+            if (peers.get (owner).send (shared))
+                sent++;
+        }
+        if (sent == 0)
+            routeFailed.inc ();
+        return sent;
+    }
+
+    /**
+     * Send the message to every peer of endpoints. It is encoded once and
+     * the same frames go to every mailbox, so a broadcast costs its bytes
+     * once plus a send per peer. Unknown endpoints, this agent included,
+     * are skipped. Like any send, call it on the agent thread or through
+     * execute.
+     * @return number of peers the message went to
+     */
+    public int multicast (Message body, Collection <String> endpoints)
+    {
+        ZyniMsg msg = new ZyniMsg (body);
+        int sent = 0;
+        for (String endpoint : endpoints) {
+            ZyniPeer peer = peers.get (endpoint);
+            if (peer != null && peer.send (msg))
+                sent++;
+        }
+        return sent;
+    }
+
+    //  First count live owners of the key, asking the partitioner for more
+    //  candidates as long as some are passed over
+    private List <String> route (String key, int count)
+    {
+        List <String> owners = new ArrayList <String> (count);
+        int want = count;
+        int checked = 0;
+        while (true) {
+            List <String> candidates = partitioner.owners (key, want);
+            for (; checked < candidates.size (); checked++) {
+                String candidate = candidates.get (checked);
+                if (!isLive (candidate)) {
+                    routeSkipped.inc ();
+                    continue;
+                }
+                owners.add (candidate);
+                if (owners.size () == count)
+                    return owners;
+            }
+            if (candidates.size () < want)
+                return owners;          //  Every member was tried
+            want += count - owners.size ();
+        }
+    }
+
+    private boolean isLive (String endpoint)
+    {
+        if (endpoint.equals (address))
+            return true;
+
+        ZyniPeer peer = peers.get (endpoint);
+        if (peer == null || peer.getHandle () == null)
+            return false;
+        if (failureDetector == null)
+            return true;
+
+        double threshold = routePhi < 0 ? failureDetector.getThreshold () : routePhi;
+        return failureDetector.phi (endpoint) <= threshold;
+    }
+
     public void removePeer (String ... peerIdentities)
     {
         for (String peerIdentity : peerIdentities) {
             ZyniPeer peer = peers.remove (peerIdentity);
             peer.destory ();
+            metrics.removeAll ("peer." + peerIdentity + ".");
         }
     }
 
@@ -339,6 +836,14 @@ public class ZyniAgent implements ZThread.IAttachedRunnable
         }
     }
 
+    /**
+     * @return metrics of this agent, handlers can register their own
+     */
+    public Metrics getMetrics ()
+    {
+        return metrics;
+    }
+
     public VersionedMap getHeaders ()
     {
         return headers;
@@ -4,15 +4,25 @@ public enum ZyniEvent
 {
     SYSTEM_EXIT ("SYSTEM.EXIT"),
 
+    AGENT_START ("AGENT.START"),
     AGENT_EXIT ("AGENT.EXIT"),
     AGENT_HEADER ("AGENT.HEADER"),
+    AGENT_METRICS ("AGENT.METRICS"),
+    AGENT_SEND_KEY ("AGENT.SENDKEY"),
 
     PEER_ENTER ("PEER.ENTER"),
     PEER_EXIT ("PEER.EXIT"),
     PEER_DEAD ("PEER.DEAD"),
     PEER_HEADER ("PEER.HEADER"),
     PEER_RESTART ("PEER.RESTART"),
-    PEER_ALIVE ("PEER.ALIVE");
+    PEER_ALIVE ("PEER.ALIVE"),
+    PEER_WRITABLE ("PEER.WRITABLE"),
+
+    GROUP_JOIN ("GROUP.JOIN"),
+    GROUP_LEAVE ("GROUP.LEAVE"),
+    GROUP_SHOUT ("GROUP.SHOUT"),
+
+    RING_CHANGE ("RING.CHANGE");
 
     private String command;
 
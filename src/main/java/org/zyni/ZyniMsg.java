@@ -1,6 +1,8 @@
 package org.zyni;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,39 +15,102 @@ import org.zyni.message.Common.VersionedValue;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class ZyniMsg
 {
     private static Logger LOG = LoggerFactory.getLogger (ZyniMsg.class);
 
-    private static final Map<Integer, Message.Builder> builders
-            = new HashMap<Integer, Message.Builder> ();
-    private static final Map<Integer, Integer> builderSignatures
-            = new HashMap<Integer, Integer> ();
+    private static final ConcurrentMap<Integer, MessageType> types
+            = new ConcurrentHashMap<Integer, MessageType> ();
+
+    //  Envelope of several messages sent as one multipart message
+    private static final int BATCH_TYPE = "zyni.Batch".hashCode ();
+    private static final byte [] BATCH_HEADER = Header.newBuilder ()
+                                                    .setType (BATCH_TYPE)
+                                                    .setSignature (0)
+                                                    .build ()
+                                                    .toByteArray ();
 
     //  Structure of our class
     private ZFrame identity;           //  Address of peer if any
     private Header header;             //  Message Headeer
+    private byte [] headerData;        //  Encoded header, shared per type
     private Message body;              //  Message Body
+    private byte [] bodyData;          //  Encoded body, once serialized
+
+    //  Registered message type. The default instance is the prototype every
+    //  inbound message of this type is parsed from
+    private static class MessageType
+    {
+        private final String name;
+        private final Message prototype;
+        private final Header header;
+        private final byte [] headerData;
+
+        private MessageType (int type, int signature, Message prototype)
+        {
+            this.name = prototype.getDescriptorForType ().getFullName ();
+            this.prototype = prototype;
+            this.header = Header.newBuilder ()
+                            .setType (type)
+                            .setSignature (signature)
+                            .build ();
+            //  Frames are never modified once sent, so every message of this
+            //  type can hand the same header bytes to the socket
+            this.headerData = header.toByteArray ();
+        }
+    }
+
+    /**
+     * Type id carried in the message header. It is derived from the full
+     * protobuf name, so it is the same on every node
+     */
+    public static int typeOf (Descriptor descriptor)
+    {
+        return descriptor.getFullName ().hashCode ();
+    }
 
-    private static Message.Builder getBuilder (int type)
+    /**
+     * Register a message type under the handler signature
+     * @throws IllegalArgumentException if another message type or another
+     * signature already owns the type id
+     */
+    public static void register (int signature, Message prototype)
     {
-        Message.Builder builder = builders.get (type);
-        if (builder != null)
-            builder = builder.clone ();
+        prototype = prototype.getDefaultInstanceForType ();
+        int type = typeOf (prototype.getDescriptorForType ());
 
-        return builder;
+        if (type == BATCH_TYPE)
+            throw new IllegalArgumentException ("Reserved message type " + type);
+
+        MessageType registered = new MessageType (type, signature, prototype);
+        MessageType old = types.putIfAbsent (type, registered);
+
+        if (old != null && (!old.name.equals (registered.name)
+                            || old.header.getSignature () != signature))
+            throw new IllegalArgumentException (String.format (
+                    "%s (signature %d) collides with %s (signature %d) on type %d",
+                    registered.name, signature, old.name,
+                    old.header.getSignature (), type));
     }
 
     public static void registerBuilder (int signature, Message.Builder builder)
     {
-        int type = builder.getDescriptorForType ().hashCode ();
-        builders.put (type, builder);
-        builderSignatures.put (type, signature);
+        register (signature, builder.getDefaultInstanceForType ());
     }
 
     //  --------------------------------------------------------------------------
@@ -53,11 +118,13 @@ public class ZyniMsg
 
     public ZyniMsg (Message body)
     {
-        int type = body.getDescriptorForType ().hashCode ();
-        this.header = Header.newBuilder ()
-                        .setType (type)
-                        .setSignature (builderSignatures.get (type))
-                        .build ();
+        MessageType type = types.get (typeOf (body.getDescriptorForType ()));
+        if (type == null)
+            throw new IllegalArgumentException ("Unregistered message "
+                    + body.getDescriptorForType ().getFullName ());
+
+        this.header = type.header;
+        this.headerData = type.headerData;
         this.body = body;
     }
 
@@ -68,6 +135,15 @@ public class ZyniMsg
         this.body = body;
     }
 
+    //  Received message, the frames are kept as its encoding
+    private ZyniMsg (ZFrame identity, Header header, byte [] headerData,
+                     Message body, byte [] bodyData)
+    {
+        this (identity, header, body);
+        this.headerData = headerData;
+        this.bodyData = bodyData;
+    }
+
     //  --------------------------------------------------------------------------
     //  Destroy the JiniMsg
 
@@ -82,58 +158,171 @@ public class ZyniMsg
     //  --------------------------------------------------------------------------
     //  Receive and parse a ZyniMsg from the socket. Returns new object or
     //  null if error. Will block if there's no message waiting.
+    //  Batches are not accepted here, see recv (Socket, List)
 
     public static ZyniMsg recv (Socket input)
+    {
+        List <ZyniMsg> msgs = new ArrayList <ZyniMsg> (1);
+        if (recv (input, msgs, false) == 0)
+            return null;
+
+        return msgs.get (0);
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Receive a ZyniMsg or a batch of them from the socket and append them
+    //  to msgs. Returns the number of messages received, 0 if error. A batch
+    //  with a malformed part is dropped whole.
+
+    public static int recv (Socket input, List <ZyniMsg> msgs)
+    {
+        return recv (input, msgs, true);
+    }
+
+    private static int recv (Socket input, List <ZyniMsg> msgs, boolean unbatch)
     {
         assert (input != null);
         ZFrame identity = null;
-        ZFrame frame = null;
+        byte [] data = null;
+        List <ZyniMsg> batch = null;
 
         try {
             //  If we're reading from a ROUTER socket, get address
             if (input.getType () == ZMQ.ROUTER) {
                 identity = ZFrame.recvFrame (input);
                 if (identity == null)
-                    return null;         //  Interrupted
+                    return 0;            //  Interrupted
 
                 if (!input.hasReceiveMore ())
                     throw new IllegalArgumentException ();
             }
-            //  Read and parse command in frame
-            frame = ZFrame.recvFrame (input);
-            if (frame == null)
-                return null;             //  Interrupted
+            //  Read and parse command in frame. Frames are parsed straight
+            //  from the received data, without a ZFrame in between
+            data = input.recv (0);
+            if (data == null)
+                return 0;                //  Interrupted
 
             if (!input.hasReceiveMore ())
                 throw new IllegalArgumentException ();
 
             //  Get and check protocol signature
-            Header header = Header.parseFrom (frame.getData ());
+            Header header = Header.parseFrom (data);
 
-            Message.Builder builder = getBuilder (header.getType ());
-            if (builder == null) {
-                //  Protocol assertion, drop message
+            if (header.getType () == BATCH_TYPE && unbatch) {
+                //  Header and body frame pairs follow the batch header. A
+                //  malformed pair drops the whole batch
+                batch = new ArrayList <ZyniMsg> ();
                 while (input.hasReceiveMore ()) {
-                    frame.destroy ();
-                    frame = ZFrame.recvFrame (input);
+                    data = input.recv (0);
+                    header = Header.parseFrom (data);
+                    if (!input.hasReceiveMore ())
+                        throw new IllegalArgumentException ();
+
+                    byte [] bodyData = input.recv (0);
+                    Message body = parse (header, bodyData);
+                    if (body != null)
+                        batch.add (new ZyniMsg (
+                                identity == null ? null : identity.duplicate (),
+                                header, data, body, bodyData));
                 }
+                msgs.addAll (batch);
+                return batch.size ();
+            }
+
+            if (!types.containsKey (header.getType ())) {
+                //  Protocol assertion, drop message
+                LOG.error ("unknown message type {}", header.getType ());
+                return 0;
             }
 
-            frame = ZFrame.recvFrame (input);
-            if (frame == null)
-                return null;             //  Interrupted
+            byte [] bodyData = input.recv (0);
+            if (bodyData == null)
+                return 0;                //  Interrupted
 
             if (input.hasReceiveMore ())   //  Must be last part
                 throw new IllegalArgumentException ();
 
-            Message body = builder.mergeFrom (frame.getData ()).build ();
-
-            return new ZyniMsg (identity, header, body);
+            msgs.add (new ZyniMsg (identity, header, data, parse (header, bodyData), bodyData));
+            identity = null;            //  Owned by the message
+            return 1;
 
         } catch (Exception e) {
             LOG.error ("malformed message", e);
+            if (batch != null) {
+                for (ZyniMsg msg : batch)
+                    msg.destroy ();
+            }
+            return 0;
+        } finally {
+            //  Never leave the rest of a multipart for the next recv
+            while (input.hasReceiveMore ())
+                input.recv (0);
+            if (identity != null)
+                identity.destroy ();
+        }
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Parse a message from its header and body frames, as sent by send.
+    //  Returns null if the message is malformed or of an unknown type
+
+    public static ZyniMsg decode (byte [] headerData, byte [] bodyData)
+    {
+        try {
+            Header header = Header.parseFrom (headerData);
+            Message body = parse (header, bodyData);
+            if (body == null)
+                return null;
+
+            return new ZyniMsg (null, header, headerData, body, bodyData);
+        } catch (InvalidProtocolBufferException e) {
+            LOG.error ("malformed message", e);
+            return null;
+        }
+    }
+
+    private static Message parse (Header header, byte [] data)
+            throws InvalidProtocolBufferException
+    {
+        MessageType type = types.get (header.getType ());
+        if (type == null) {
+            LOG.error ("unknown message type {}", header.getType ());
             return null;
         }
+
+        return type.prototype.newBuilderForType ()
+                    .mergeFrom (data)
+                    .build ();
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Send the messages as one batch to a DEALER socket, and destroy them.
+    //  The receiver must unbatch with recv (Socket, List)
+
+    public static boolean sendBatch (Socket socket, List <ZyniMsg> msgs)
+    {
+        assert (socket != null);
+        assert (socket.getType () != ZMQ.ROUTER);
+
+        boolean ret = socket.send (BATCH_HEADER, ZMQ.SNDMORE);
+        int last = msgs.size () - 1;
+        for (int idx = 0; idx <= last; idx++) {
+            ZyniMsg msg = msgs.get (idx);
+            if (ret)
+                ret = socket.send (msg.getHeaderData (), ZMQ.SNDMORE)
+                        && socket.send (msg.getBodyData (), idx < last ? ZMQ.SNDMORE : 0);
+            msg.destroy ();
+        }
+
+        return ret;
+    }
+
+    //  --------------------------------------------------------------------------
+    //  Serialized size of the message frames
+
+    public int size ()
+    {
+        return getHeaderData ().length + getBodyData ().length;
     }
 
     //  --------------------------------------------------------------------------
@@ -154,14 +343,14 @@ public class ZyniMsg
             }
         }
 
-        //  Now send the data frame
-        if (!socket.send (header.toByteArray (), ZMQ.SNDMORE)) {
+        //  Now send the header frame
+        if (!socket.send (getHeaderData (), ZMQ.SNDMORE)) {
             destroy ();
             return false;
         }
 
         //  Now send the data frame
-        if (!socket.send (body.toByteArray (), 0)) {
+        if (!socket.send (getBodyData (), 0)) {
             destroy ();
             return false;
         }
@@ -171,6 +360,24 @@ public class ZyniMsg
         return ret;
     }
 
+    //  --------------------------------------------------------------------------
+    //  Encoded header and body frames, encoded once. The socket takes the
+    //  arrays as they are
+
+    protected byte [] getHeaderData ()
+    {
+        if (headerData == null)
+            headerData = header.toByteArray ();
+        return headerData;
+    }
+
+    protected byte [] getBodyData ()
+    {
+        if (bodyData == null)
+            bodyData = body.toByteArray ();
+        return bodyData;
+    }
+
     //  --------------------------------------------------------------------------
     //  Get/set the message address
 
@@ -205,6 +412,7 @@ public class ZyniMsg
         header = header.toBuilder ()
                         .setType (id)
                         .build ();
+        headerData = null;
     }
 
     //  --------------------------------------------------------------------------
@@ -254,41 +462,47 @@ public class ZyniMsg
         return builder.build ();
     }
 
+    /**
+     * Headers of a node by key. The values live in a HeaderStore, a hash map
+     * by default or an ArenaHeaderStore for nodes keeping many peers.
+     */
     public static class VersionedMap implements Map <String, VersionedValue> {
 
-        private Map <String, VersionedValue> data;
+        private final HeaderStore data;
         private int maxVersion;
 
         public VersionedMap ()
+        {
+            this (new HashHeaderStore ());
+        }
+
+        public VersionedMap (HeaderStore data)
         {
             maxVersion = 0;
-            data = new HashMap<String, VersionedValue> ();
+            this.data = data;
         }
 
         public VersionedMap (VersionedMap old)
         {
             maxVersion = old.maxVersion;
-            data = new HashMap<String, VersionedValue> (old.data);
+            data = old.data.copy ();
         }
 
         public VersionedValue put (String key, int version, String value)
         {
             VersionedValue vvalue = VersionedValue.newBuilder()
+                                        .setKey (key)
                                         .setVersion (version)
                                         .setValue (value)
                                     .build ();
             return put (key, vvalue);
         }
 
+        //  Local updates take the next version of the whole map, so a peer
+        //  that knows our max version knows every value up to it
         public VersionedValue put (String key, String value)
         {
-            int version = 0;
-
-            VersionedValue ovalue = get (key);
-            if (ovalue != null)
-                version = ovalue.getVersion () + 1;
-
-            return put (key, version, value);
+            return put (key, nextVersion (), value);
         }
 
         public int getMaxVersion ()
@@ -296,6 +510,11 @@ public class ZyniMsg
             return maxVersion;
         }
 
+        public int nextVersion ()
+        {
+            return ++maxVersion;
+        }
+
         @Override
         public int size ()
         {
@@ -305,47 +524,71 @@ public class ZyniMsg
         @Override
         public boolean isEmpty ()
         {
-            return data.isEmpty ();
+            return data.size () == 0;
         }
 
         @Override
         public boolean containsKey (Object key)
         {
-            return data.containsKey (key);
+            return key instanceof String && data.contains ((String) key);
         }
 
         @Override
         public boolean containsValue (Object value)
         {
-            //  TODO: implement this precisely
-            return containsValue (value);
+            return values ().contains (value);
         }
 
         @Override
         public VersionedValue get (Object key)
         {
-            return data.get (key);
+            return key instanceof String ? data.get ((String) key) : null;
         }
 
         @Override
         public VersionedValue put (String key, VersionedValue value)
         {
+            assert (key.equals (value.getKey ()));
             if (value.getVersion () > maxVersion)
                 maxVersion = value.getVersion ();
 
-            return data.put (key, value);
+            return data.put (value);
+        }
+
+        /**
+         * Put the values received from a peer
+         */
+        public void update (List <VersionedValue> values)
+        {
+            for (VersionedValue value : values) {
+                if (value.getVersion () > maxVersion)
+                    maxVersion = value.getVersion ();
+                data.set (value);
+            }
+        }
+
+        /**
+         * @return the values with a version above version, by version
+         */
+        public List <VersionedValue> newer (int version)
+        {
+            List <VersionedValue> values = new ArrayList <VersionedValue> ();
+            if (version < maxVersion)
+                data.newer (version, values);
+            return values;
         }
 
         @Override
         public VersionedValue remove (Object key)
         {
-            return data.remove (key);
+            return key instanceof String ? data.remove ((String) key) : null;
         }
 
         @Override
         public void putAll (Map<? extends String, ? extends VersionedValue> m)
         {
-            data.putAll (m);
+            for (Map.Entry <? extends String, ? extends VersionedValue> entry : m.entrySet ())
+                put (entry.getKey (), entry.getValue ());
         }
 
         @Override
@@ -358,27 +601,248 @@ public class ZyniMsg
         @Override
         public Set<String> keySet ()
         {
-            return data.keySet ();
+            return new AbstractSet <String> ()
+            {
+                @Override
+                public Iterator <String> iterator ()
+                {
+                    final Iterator <VersionedValue> it = data.iterator ();
+                    return new Iterator <String> ()
+                    {
+                        @Override
+                        public boolean hasNext ()
+                        {
+                            return it.hasNext ();
+                        }
+
+                        @Override
+                        public String next ()
+                        {
+                            return it.next ().getKey ();
+                        }
+
+                        @Override
+                        public void remove ()
+                        {
+                            it.remove ();
+                        }
+                    };
+                }
+
+                @Override
+                public boolean contains (Object key)
+                {
+                    return containsKey (key);
+                }
+
+                @Override
+                public int size ()
+                {
+                    return data.size ();
+                }
+            };
         }
 
         @Override
         public Collection<VersionedValue> values ()
         {
-            return data.values ();
+            return new AbstractCollection <VersionedValue> ()
+            {
+                @Override
+                public Iterator <VersionedValue> iterator ()
+                {
+                    return data.iterator ();
+                }
+
+                @Override
+                public int size ()
+                {
+                    return data.size ();
+                }
+            };
         }
 
         @Override
         public Set<Entry<String, VersionedValue>> entrySet ()
         {
-            return data.entrySet ();
+            return new AbstractSet <Entry <String, VersionedValue>> ()
+            {
+                @Override
+                public Iterator <Entry <String, VersionedValue>> iterator ()
+                {
+                    final Iterator <VersionedValue> it = data.iterator ();
+                    return new Iterator <Entry <String, VersionedValue>> ()
+                    {
+                        @Override
+                        public boolean hasNext ()
+                        {
+                            return it.hasNext ();
+                        }
+
+                        @Override
+                        public Entry <String, VersionedValue> next ()
+                        {
+                            VersionedValue value = it.next ();
+                            return new AbstractMap.SimpleImmutableEntry <String, VersionedValue> (
+                                    value.getKey (), value);
+                        }
+
+                        @Override
+                        public void remove ()
+                        {
+                            it.remove ();
+                        }
+                    };
+                }
+
+                @Override
+                public int size ()
+                {
+                    return data.size ();
+                }
+            };
         }
 
         public String getValue (String key)
         {
-            VersionedValue vvalue = get (key);
+            return data.getValue (key);
+        }
+    }
+
+    //  Default store, a VersionedValue per header in a hash map, and the
+    //  same values sorted by version for the newer scans
+    static class HashHeaderStore implements HeaderStore
+    {
+        private static final Comparator <VersionedValue> BY_VERSION = new Comparator <VersionedValue> ()
+        {
+            @Override
+            public int compare (VersionedValue v1, VersionedValue v2)
+            {
+                if (v1.getVersion () != v2.getVersion ())
+                    return v1.getVersion () < v2.getVersion () ? -1 : 1;
+                return v1.getKey ().compareTo (v2.getKey ());
+            }
+        };
+
+        private final Map <String, VersionedValue> values;
+        private final TreeSet <VersionedValue> byVersion;
+
+        HashHeaderStore ()
+        {
+            values = new HashMap <String, VersionedValue> ();
+            byVersion = new TreeSet <VersionedValue> (BY_VERSION);
+        }
+
+        @Override
+        public int size ()
+        {
+            return values.size ();
+        }
+
+        @Override
+        public boolean contains (String key)
+        {
+            return values.containsKey (key);
+        }
+
+        @Override
+        public VersionedValue get (String key)
+        {
+            return values.get (key);
+        }
+
+        @Override
+        public String getValue (String key)
+        {
+            VersionedValue vvalue = values.get (key);
             if (vvalue != null)
                 return vvalue.getValue ();
             return null;
         }
+
+        @Override
+        public VersionedValue put (VersionedValue value)
+        {
+            VersionedValue old = values.put (value.getKey (), value);
+            if (old != null)
+                byVersion.remove (old);
+            byVersion.add (value);
+            return old;
+        }
+
+        @Override
+        public void set (VersionedValue value)
+        {
+            put (value);
+        }
+
+        @Override
+        public VersionedValue remove (String key)
+        {
+            VersionedValue old = values.remove (key);
+            if (old != null)
+                byVersion.remove (old);
+            return old;
+        }
+
+        @Override
+        public void clear ()
+        {
+            values.clear ();
+            byVersion.clear ();
+        }
+
+        @Override
+        public void newer (int version, List <VersionedValue> out)
+        {
+            if (version == Integer.MAX_VALUE)
+                return;
+            //  Sorts before any value of the next version
+            VersionedValue from = VersionedValue.newBuilder ()
+                    .setKey ("")
+                    .setVersion (version + 1)
+                    .setValue ("")
+                    .build ();
+            out.addAll (byVersion.tailSet (from));
+        }
+
+        @Override
+        public Iterator <VersionedValue> iterator ()
+        {
+            final Iterator <VersionedValue> it = values.values ().iterator ();
+            return new Iterator <VersionedValue> ()
+            {
+                private VersionedValue last;
+
+                @Override
+                public boolean hasNext ()
+                {
+                    return it.hasNext ();
+                }
+
+                @Override
+                public VersionedValue next ()
+                {
+                    last = it.next ();
+                    return last;
+                }
+
+                @Override
+                public void remove ()
+                {
+                    it.remove ();
+                    byVersion.remove (last);
+                }
+            };
+        }
+
+        @Override
+        public HeaderStore copy ()
+        {
+            HashHeaderStore copy = new HashHeaderStore ();
+            copy.values.putAll (values);
+            copy.byVersion.addAll (byVersion);
+            return copy;
+        }
     }
 }
@@ -7,11 +7,22 @@ import org.zyni.ZyniMsg;
 import org.zyni.ZyniMsg.VersionedMap;
 import org.zyni.message.Common.VersionedValue;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class ZyniPeer
 {
+    //  Header a node publishes when it can unbatch messages
+    public static final String BATCH_HEADER = "ZYNI.BATCH";
+    //  Header a node publishes with the messages it lets each sender have
+    //  in flight before it grants more
+    public static final String CREDIT_HEADER = "ZYNI.CREDIT";
+
     private final ZContext ctx;          //  ZMQ context
     private Socket mailbox;              //  Socket through to peer
     private final String endpoint;       //  Endpoint connected to
@@ -24,7 +35,29 @@ public class ZyniPeer
     private final VersionedMap headers;
     private Object attached;
 
-    private ZyniPeer (ZContext ctx, String endpoint)
+    private List <ZyniMsg> batch;        //  Messages waiting for flush
+    private int batchBytes;              //  Serialized size of the batch
+    private int batchCount;              //  Flush when batch has this many
+    private int batchMaxBytes;           //  Flush when batch is this large
+    private int batchMetered;            //  Messages of the batch that need credit
+    private Collection <ZyniPeer> flushQueue;
+    private boolean queued;              //  Sits in flushQueue
+
+    private Set <Integer> unmetered;     //  Signatures sent without credit, null if no flow control
+    private int queueMax;                //  Messages waiting for credit before send fails
+    private long window;                 //  Of the peer, -1 until it published CREDIT_HEADER
+    private long granted;                //  Messages the peer took so far
+    private long metered;                //  Messages gone out that need credit
+    private Deque <ZyniMsg> waiting;     //  Messages waiting for credit
+    private boolean blocked;             //  Refused a message since the queue drained
+
+    private Metrics metrics;             //  Null if not instrumented
+    private Metrics.Traffic sent;
+    private Metrics.Traffic received;
+    private Metrics.Counter failed;
+    private Metrics.Counter rejected;
+
+    private ZyniPeer (ZContext ctx, String endpoint, VersionedMap headers)
     {
         this.ctx = ctx;
         this.endpoint = endpoint;
@@ -32,14 +65,22 @@ public class ZyniPeer
         connected = false;
         sequence = 0;
 
-        headers = new VersionedMap ();
+        this.headers = headers;
+        window = -1;
     }
 
     //  ---------------------------------------------------------------------
     //  Construct new peer object
     public static ZyniPeer create (ZContext ctx, String endpoint, Map<String, ZyniPeer> container)
     {
-        ZyniPeer peer = new ZyniPeer (ctx, endpoint);
+        return create (ctx, endpoint, container, new VersionedMap ());
+    }
+
+    //  Keep the headers of the peer in the given, empty map
+    public static ZyniPeer create (ZContext ctx, String endpoint, Map<String, ZyniPeer> container,
+                                   VersionedMap headers)
+    {
+        ZyniPeer peer = new ZyniPeer (ctx, endpoint, headers);
 
         if (container != null)
             container.put (endpoint, peer);
@@ -109,9 +150,244 @@ public class ZyniPeer
         disconnect ();
     }
 
+    //  ---------------------------------------------------------------------
+    //  Coalesce messages sent to this peer until flush, or until count
+    //  messages or maxBytes are queued. A peer with pending messages adds
+    //  itself to flushQueue. Messages are only batched once the peer has
+    //  published BATCH_HEADER, older nodes keep getting single messages.
+    public void setBatch (int count, int maxBytes, Collection <ZyniPeer> flushQueue)
+    {
+        this.batchCount = count;
+        this.batchMaxBytes = maxBytes;
+        this.flushQueue = flushQueue;
+        if (batch == null)
+            batch = new ArrayList <ZyniMsg> (count);
+    }
+
+    public boolean isBatching ()
+    {
+        return batch != null && headers.containsKey (BATCH_HEADER);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Send messages of signatures other than unmetered only as far as the
+    //  peer granted credit, once it published CREDIT_HEADER. Up to queueMax
+    //  messages wait for credit, send fails beyond that.
+    public void setCredit (int queueMax, Set <Integer> unmetered)
+    {
+        this.queueMax = queueMax;
+        this.unmetered = unmetered;
+        if (waiting == null)
+            waiting = new ArrayDeque <ZyniMsg> ();
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Count messages and bytes to and from this peer, and send failures,
+    //  under peer.<endpoint>
+    public void setMetrics (Metrics metrics)
+    {
+        this.metrics = metrics;
+        String prefix = "peer." + endpoint;
+        sent = metrics.traffic (prefix + ".sent");
+        received = metrics.traffic (prefix + ".received");
+        failed = metrics.counter (prefix + ".send.failed");
+        rejected = metrics.counter (prefix + ".send.rejected");
+        metrics.gauge (prefix + ".queued", new Metrics.Gauge ()
+        {
+            @Override
+            public double value ()
+            {
+                return getQueued ();
+            }
+        });
+    }
+
+    //  Called by the agent for every message received from this peer
+    void received (int size)
+    {
+        if (metrics != null)
+            received.add (size);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Send the message, or queue it until the peer grants credit
+    //  Returns false if it was lost, or refused because the peer is not
+    //  keeping up. Callers should then hold back until PEER_WRITABLE.
     public boolean send (ZyniMsg msg)
     {
-        return msg.send (mailbox);
+        if (unmetered == null || unmetered.contains (msg.getSignature ()))
+            return transmit (msg, false);
+
+        //  The peer counts what it takes even before we know its window
+        if (!hasWindow () || waiting.isEmpty () && getCredit () > 0)
+            return meter (msg);
+
+        if (waiting.size () >= queueMax) {
+            blocked = true;
+            msg.destroy ();
+            if (metrics != null)
+                rejected.inc ();
+            return false;
+        }
+        waiting.add (msg);
+        return true;
+    }
+
+    private boolean hasWindow ()
+    {
+        if (window < 0) {
+            String value = headers.getValue (CREDIT_HEADER);
+            if (value == null)
+                return false;
+            window = Long.parseLong (value);
+        }
+        return true;
+    }
+
+    private boolean meter (ZyniMsg msg)
+    {
+        return transmit (msg, true);
+    }
+
+    //  ---------------------------------------------------------------------
+    //  The peer took granted messages so far, send what waited for it
+    //  Returns true if the peer refused messages and has room again.
+    boolean grant (long granted)
+    {
+        if (granted > this.granted)
+            this.granted = granted;
+
+        while (!waiting.isEmpty () && getCredit () > 0)
+            meter (waiting.poll ());
+
+        if (blocked && waiting.size () <= queueMax / 2) {
+            blocked = false;
+            return true;
+        }
+        return false;
+    }
+
+    //  Messages that can be sent right away, only bounded once the peer
+    //  published its window
+    public long getCredit ()
+    {
+        if (window < 0)
+            return Long.MAX_VALUE;
+        //  A batch not flushed yet uses credit already
+        return window + granted - metered - batchMetered;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Messages waiting for credit
+    public int getQueued ()
+    {
+        return waiting == null ? 0 : waiting.size ();
+    }
+
+    //  False while the peer does not keep up, sends may be refused
+    public boolean isWritable ()
+    {
+        return waiting == null || !blocked && waiting.size () < queueMax;
+    }
+
+    private void resetCredit ()
+    {
+        if (waiting != null) {
+            for (ZyniMsg msg : waiting)
+                msg.destroy ();
+            waiting.clear ();
+        }
+        window = -1;
+        granted = 0;
+        metered = 0;
+        blocked = false;
+    }
+
+    //  Metered messages are only counted once they went out, the peer
+    //  never takes nor grants back those lost
+    private boolean transmit (ZyniMsg msg, boolean metered)
+    {
+        if (mailbox == null) {
+            msg.destroy ();
+            return failed ();
+        }
+
+        if (!isBatching ()) {
+            if (!msg.send (mailbox))
+                return failed ();
+            if (metered)
+                this.metered++;
+            countSent (msg);
+            return true;
+        }
+
+        if (!queued) {
+            queued = true;
+            flushQueue.add (this);
+        }
+
+        batch.add (msg);
+        batchBytes += msg.size ();
+        if (metered)
+            batchMetered++;
+
+        if (batch.size () >= batchCount || batchBytes >= batchMaxBytes)
+            return flush ();
+
+        return true;
+    }
+
+    //  Only messages that went out, failures are counted apart
+    private void countSent (ZyniMsg msg)
+    {
+        if (metrics != null) {
+            int size = msg.size ();
+            sent.add (size);
+            metrics.sent (msg.getSignature ()).add (size);
+        }
+    }
+
+    private boolean failed ()
+    {
+        if (metrics != null)
+            failed.inc ();
+        return false;
+    }
+
+    //  ---------------------------------------------------------------------
+    //  Send pending messages as one batch
+    public boolean flush ()
+    {
+        if (batch == null || batch.isEmpty ())
+            return true;
+
+        boolean ret;
+        if (batch.size () == 1)
+            ret = batch.get (0).send (mailbox);
+        else
+            ret = ZyniMsg.sendBatch (mailbox, batch);
+
+        if (ret) {
+            metered += batchMetered;
+            for (ZyniMsg msg : batch)
+                countSent (msg);
+        }
+        batch.clear ();
+        batchBytes = 0;
+        batchMetered = 0;
+        return ret || failed ();
+    }
+
+    //  Called by the owner of flushQueue after removing the peer from it
+    boolean flushQueued ()
+    {
+        queued = false;
+        return flush ();
+    }
+
+    public int getPending ()
+    {
+        return batch == null ? 0 : batch.size ();
     }
 
     public boolean getReady ()
@@ -149,20 +425,27 @@ public class ZyniPeer
         this.attached = attached;
     }
 
+    //  The peer restarted, its window and what it took start over too
     public void clearHeaders ()
     {
         headers.clear ();
+        resetCredit ();
     }
 
     public void updateHeaders (List<VersionedValue> headers)
     {
-        for (VersionedValue value: headers)
-            this.headers.put (value.getKey (), value);
+        this.headers.update (headers);
     }
 
 
     public void disconnect ()
     {
+        resetCredit ();
+        if (batch != null) {
+            batch.clear ();
+            batchBytes = 0;
+            batchMetered = 0;
+        }
         if (connected)
             ctx.destroySocket (mailbox);
         mailbox = null;
@@ -0,0 +1,70 @@
+package org.zyni.cursor;
+
+/**
+ * Consumer end of a stream from a remote source, see CursorHandler.open
+ */
+public class Cursor
+{
+    private final CursorHandler handler;
+    private final long id;
+    private final String endpoint;
+    private final String name;
+    final ICursorListener listener;
+
+    long next;                  //  Offset of the next record to deliver
+    long granted;               //  Records below may be sent
+    long reopened = -1;         //  Offset asked again, until its batch comes
+    long heard;                 //  Last batch or request, in ms
+    boolean resent;             //  Credit sent again since the last batch
+
+    Cursor (CursorHandler handler, long id, String endpoint, String name, long offset,
+            ICursorListener listener)
+    {
+        this.handler = handler;
+        this.id = id;
+        this.endpoint = endpoint;
+        this.name = name;
+        this.next = offset;
+        this.listener = listener;
+    }
+
+    public long getId ()
+    {
+        return id;
+    }
+
+    /**
+     * @return producer endpoint
+     */
+    public String getEndpoint ()
+    {
+        return endpoint;
+    }
+
+    public String getName ()
+    {
+        return name;
+    }
+
+    /**
+     * @return offset of the next record, every record below was delivered
+     */
+    public long getOffset ()
+    {
+        return next;
+    }
+
+    /**
+     * Stop streaming, on the agent thread
+     */
+    public void close ()
+    {
+        handler.close (this);
+    }
+
+    @Override
+    public String toString ()
+    {
+        return String.format ("cursor %d %s@%s:%d", id, name, endpoint, next);
+    }
+}
@@ -0,0 +1,426 @@
+package org.zyni.cursor;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zeromq.ZMsg;
+import org.zyni.IAgentHandler;
+import org.zyni.Metrics;
+import org.zyni.ZyniAgent;
+import org.zyni.ZyniEvent;
+import org.zyni.ZyniMsg;
+import org.zyni.ZyniPeer;
+import org.zyni.message.Cursor.Batch;
+import org.zyni.message.Cursor.Close;
+import org.zyni.message.Cursor.Credit;
+import org.zyni.message.Cursor.Open;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams records between peers through cursors with credit based flow
+ * control.
+ *
+ * A consumer opens a cursor on a named source of a producer, granting a
+ * window of cursor.window records. The producer reads from its source only
+ * as much as the credit left, cursor.batch records at a time, so nothing
+ * piles up in its mailbox whatever the size of the result, as long as
+ * cursor.window / cursor.batch stays below send.hwm. As the consumer
+ * processes records it grants credit back. When the producer restarts, or
+ * records went missing, its cursors are opened again from the last
+ * processed offset. When it leaves they end incomplete.
+ *
+ * Any message of a cursor can be lost on the way. A cursor that heard
+ * nothing for cursor.resend milliseconds grants its credit again, and
+ * opens again if that did not help either.
+ *
+ * Register it with register (agent), every node streams and consumes.
+ */
+public class CursorHandler implements IAgentHandler
+{
+    private final static Logger LOG = LoggerFactory.getLogger (CursorHandler.class);
+
+    private final Map <String, ICursorSource> sources;
+    private final Map <Long, Cursor> cursors;           //  Consumer side
+    private final Map <String, Stream> streams;         //  Producer side, by consumer and cursor
+    private long nextId;
+
+    private ZyniAgent agent;
+    private boolean inline;
+    private int window;
+    private int batch;
+    private long resend;
+
+    private Metrics.Traffic sent;
+    private Metrics.Traffic received;
+
+    //  A cursor served to a consumer
+    private static class Stream
+    {
+        private final String consumer;
+        private final long cursor;
+        private final String name;
+        private final ICursorSource source;
+        private long offset;                //  Next record to send
+        private long limit;                 //  Granted up to
+
+        private Stream (String consumer, long cursor, String name, ICursorSource source)
+        {
+            this.consumer = consumer;
+            this.cursor = cursor;
+            this.name = name;
+            this.source = source;
+        }
+    }
+
+    public CursorHandler ()
+    {
+        sources = new HashMap <String, ICursorSource> ();
+        cursors = new HashMap <Long, Cursor> ();
+        streams = new HashMap <String, Stream> ();
+    }
+
+    public void register (ZyniAgent agent)
+    {
+        agent.registerCallback (getSignature (), this);
+        agent.registerEventHandler (this);
+        agent.registerTimer (Long.parseLong (agent.getConfig ("cursor.poll", "10")), this);
+    }
+
+    /**
+     * Serve the source to consumers opening cursors on name
+     */
+    public void registerSource (String name, ICursorSource source)
+    {
+        sources.put (name, source);
+    }
+
+    @Override
+    public void initialize (ZyniAgent agent, Object ... args)
+    {
+        this.agent = agent;
+        inline = agent.getConfig ("agent.workers", "0").equals ("0");
+        window = Integer.parseInt (agent.getConfig ("cursor.window", "1024"));
+        batch = Integer.parseInt (agent.getConfig ("cursor.batch", "64"));
+        resend = Long.parseLong (agent.getConfig ("cursor.resend", "1000"));
+
+        sent = agent.getMetrics ().traffic ("cursor.sent");
+        received = agent.getMetrics ().traffic ("cursor.received");
+        agent.getMetrics ().gauge ("cursor.streams", new Metrics.Gauge ()
+        {
+            @Override
+            public double value ()
+            {
+                return streams.size ();
+            }
+        });
+    }
+
+    @Override
+    public int getSignature ()
+    {
+        int signature = org.zyni.message.Cursor.getDescriptor ().getName ().hashCode ();
+        ZyniMsg.registerBuilder (signature, Open.newBuilder ());
+        ZyniMsg.registerBuilder (signature, Credit.newBuilder ());
+        ZyniMsg.registerBuilder (signature, Batch.newBuilder ());
+        ZyniMsg.registerBuilder (signature, Close.newBuilder ());
+        return signature;
+    }
+
+    /**
+     * Open a cursor on the source name of the producer, on the agent thread
+     */
+    public Cursor open (String endpoint, String name, long offset, ICursorListener listener)
+    {
+        Cursor cursor = new Cursor (this, ++nextId, endpoint, name, offset, listener);
+        cursors.put (cursor.getId (), cursor);
+        reopen (cursor);
+        return cursor;
+    }
+
+    public Cursor open (String endpoint, String name, ICursorListener listener)
+    {
+        return open (endpoint, name, 0, listener);
+    }
+
+    //  Ask for the records from the last delivered one, with a full window.
+    //  Batches of the former stream still on their way are dropped until
+    //  the first one of the new stream comes
+    private void reopen (Cursor cursor)
+    {
+        cursor.granted = cursor.next + window;
+        cursor.reopened = cursor.next;
+        cursor.heard = System.currentTimeMillis ();
+        cursor.resent = false;
+        send (cursor.getEndpoint (), Open.newBuilder ()
+                .setCursor (cursor.getId ())
+                .setName (cursor.getName ())
+                .setOffset (cursor.next)
+                .setCredit (window)
+                .build ());
+    }
+
+    private void grant (Cursor cursor)
+    {
+        send (cursor.getEndpoint (), Credit.newBuilder ()
+                .setCursor (cursor.getId ())
+                .setLimit (cursor.granted)
+                .build ());
+    }
+
+    void close (Cursor cursor)
+    {
+        if (cursors.remove (cursor.getId ()) != null)
+            send (cursor.getEndpoint (), Close.newBuilder ().setCursor (cursor.getId ()).build ());
+    }
+
+    //  Package private so that tests can lose messages
+    boolean send (String endpoint, Message body)
+    {
+        ZyniPeer peer = agent.findPeer (endpoint);
+        if (peer == null)
+            peer = agent.connectPeer (endpoint);
+        return peer.send (new ZyniMsg (body));
+    }
+
+    @Override
+    public void processCallback (final ZyniMsg msg)
+    {
+        if (inline) {
+            process (msg);
+            return;
+        }
+
+        //  Cursors belong to the agent thread
+        agent.execute (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                process (msg);
+            }
+        });
+    }
+
+    private void process (ZyniMsg msg)
+    {
+        String endpoint = msg.getIdentityString ();
+        Message body = msg.getBody ();
+
+        if (body instanceof Batch)
+            processBatch ((Batch) body);
+        else if (body instanceof Credit) {
+            Credit credit = (Credit) body;
+            Stream stream = streams.get (key (endpoint, credit.getCursor ()));
+            if (stream != null) {
+                stream.limit = Math.max (stream.limit, credit.getLimit ());
+                pump (stream);
+            }
+        }
+        else if (body instanceof Open)
+            processOpen (endpoint, (Open) body);
+        else if (body instanceof Close)
+            streams.remove (key (endpoint, ((Close) body).getCursor ()));
+    }
+
+    private static String key (String consumer, long cursor)
+    {
+        return consumer + "/" + cursor;
+    }
+
+    //  Producer side. Opening again resets the stream to the offset asked
+    private void processOpen (String consumer, Open open)
+    {
+        ICursorSource source = sources.get (open.getName ());
+        if (source == null) {
+            send (consumer, Batch.newBuilder ()
+                    .setCursor (open.getCursor ())
+                    .setOffset (open.getOffset ())
+                    .setEnd (true)
+                    .setError ("no source " + open.getName ())
+                    .build ());
+            return;
+        }
+
+        Stream stream = new Stream (consumer, open.getCursor (), open.getName (), source);
+        stream.offset = open.getOffset ();
+        stream.limit = open.getOffset () + open.getCredit ();
+        streams.put (key (consumer, open.getCursor ()), stream);
+        pump (stream);
+    }
+
+    //  Send what the credit allows and the source has
+    private void pump (Stream stream)
+    {
+        while (stream.offset < stream.limit) {
+            List <ByteString> records;
+            try {
+                records = stream.source.read (stream.name, stream.offset,
+                        (int) Math.min (batch, stream.limit - stream.offset));
+            } catch (RuntimeException e) {
+                LOG.error ("read failed for " + stream.name, e);
+                end (stream, e.toString ());
+                return;
+            }
+            if (records == null) {
+                end (stream, null);
+                return;
+            }
+            if (records.isEmpty ())
+                return;                     //  Polled again on the timer
+
+            Batch msg = Batch.newBuilder ()
+                    .setCursor (stream.cursor)
+                    .setOffset (stream.offset)
+                    .addAllRecords (records)
+                    .build ();
+            if (!send (stream.consumer, msg))
+                return;                     //  Read again on the timer
+
+            sent.add (msg.getSerializedSize ());
+            stream.offset += records.size ();
+        }
+    }
+
+    private void end (Stream stream, String error)
+    {
+        Batch.Builder end = Batch.newBuilder ()
+                .setCursor (stream.cursor)
+                .setOffset (stream.offset)
+                .setEnd (true);
+        if (error != null)
+            end.setError (error);
+        if (send (stream.consumer, end.build ()))
+            streams.remove (key (stream.consumer, stream.cursor));
+    }
+
+    //  Consumer side
+    private void processBatch (Batch msg)
+    {
+        Cursor cursor = cursors.get (msg.getCursor ());
+        if (cursor == null)
+            return;
+        received.add (msg.getSerializedSize ());
+
+        long offset = msg.getOffset ();
+        int count = msg.getRecordsCount ();
+        if (cursor.reopened >= 0) {
+            if (offset != cursor.reopened)
+                return;                     //  Sent before the reopen
+            cursor.reopened = -1;
+        }
+        cursor.heard = System.currentTimeMillis ();
+        cursor.resent = false;
+        if (offset > cursor.next) {
+            //  Lost records, ask again from the gap
+            LOG.warn ("{} got offset {}", cursor, offset);
+            reopen (cursor);
+            return;
+        }
+
+        //  Records before next are replays after a reopen
+        int skip = (int) Math.min (count, cursor.next - offset);
+        if (skip < count) {
+            long from = cursor.next;
+            cursor.next += count - skip;
+            try {
+                cursor.listener.onRecords (cursor, from, msg.getRecordsList ().subList (skip, count));
+            } catch (RuntimeException e) {
+                LOG.error ("listener failed for " + cursor, e);
+            }
+        }
+
+        if (msg.getEnd ()) {
+            if (msg.hasError ())
+                LOG.warn ("{} failed: {}", cursor, msg.getError ());
+            cursors.remove (cursor.getId ());
+            cursor.listener.onEnd (cursor, !msg.hasError ());
+            return;
+        }
+
+        //  Grant back once half the window is used
+        if (cursor.granted - cursor.next <= window / 2) {
+            cursor.granted = cursor.next + window;
+            grant (cursor);
+        }
+    }
+
+    @Override
+    public void processCommand (String command, ZMsg msg)
+    {
+    }
+
+    @Override
+    public void onEvent (ZyniEvent event, Object ... params)
+    {
+        switch (event) {
+        case PEER_RESTART:
+            //  Both ends lost their streams with the peer
+            String endpoint = (String) params [0];
+            dropStreams (endpoint);
+            for (Cursor cursor : cursors.values ()) {
+                if (cursor.getEndpoint ().equals (endpoint))
+                    reopen (cursor);
+            }
+            break;
+        case PEER_EXIT:
+            endpoint = (String) params [0];
+            dropStreams (endpoint);
+            Iterator <Cursor> it = cursors.values ().iterator ();
+            while (it.hasNext ()) {
+                Cursor cursor = it.next ();
+                if (cursor.getEndpoint ().equals (endpoint)) {
+                    it.remove ();
+                    cursor.listener.onEnd (cursor, false);
+                }
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void dropStreams (String consumer)
+    {
+        Iterator <Stream> it = streams.values ().iterator ();
+        while (it.hasNext ()) {
+            if (it.next ().consumer.equals (consumer))
+                it.remove ();
+        }
+    }
+
+    /**
+     * Retry the streams waiting for their source or for room in a mailbox,
+     * and ask again for the cursors that heard nothing for a while
+     */
+    @Override
+    public long processTimer (long interval)
+    {
+        for (Stream stream : streams.values ().toArray (new Stream [streams.size ()]))
+            pump (stream);
+
+        long now = System.currentTimeMillis ();
+        for (Cursor cursor : cursors.values ()) {
+            if (now - cursor.heard < resend)
+                continue;
+            //  A lost Open, or a batch lost at the tail or at the end
+            if (cursor.reopened >= 0 || cursor.resent)
+                reopen (cursor);
+            else {
+                grant (cursor);
+                cursor.heard = now;
+                cursor.resent = true;
+            }
+        }
+        return interval;
+    }
+
+    @Override
+    public void destroy ()
+    {
+    }
+}
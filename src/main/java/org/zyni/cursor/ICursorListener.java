@@ -0,0 +1,23 @@
+package org.zyni.cursor;
+
+import com.google.protobuf.ByteString;
+
+import java.util.List;
+
+/**
+ * Consumer side of a cursor, called on the agent thread
+ */
+public interface ICursorListener
+{
+    /**
+     * Records from offset, each one delivered once and in order. Their
+     * credit is granted back to the producer when this returns
+     */
+    void onRecords (Cursor cursor, long offset, List <ByteString> records);
+
+    /**
+     * @param complete true after the last record, false if the producer
+     * failed or left
+     */
+    void onEnd (Cursor cursor, boolean complete);
+}
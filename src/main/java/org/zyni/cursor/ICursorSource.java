@@ -0,0 +1,21 @@
+package org.zyni.cursor;
+
+import com.google.protobuf.ByteString;
+
+import java.util.List;
+
+/**
+ * Records a producer streams through cursors. Reads are pulled as the
+ * consumer grants credit, so a source must be able to read again from any
+ * offset it was asked before: a cursor resumes from the last offset its
+ * consumer processed.
+ */
+public interface ICursorSource
+{
+    /**
+     * @param name source name given by the consumer
+     * @return up to max records from offset, empty if none is ready yet,
+     * null past the last one
+     */
+    List <ByteString> read (String name, long offset, int max);
+}
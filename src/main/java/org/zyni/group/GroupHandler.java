@@ -0,0 +1,260 @@
+package org.zyni.group;
+
+import com.google.protobuf.Message;
+import org.zeromq.ZMsg;
+import org.zyni.IAgentHandler;
+import org.zyni.Metrics;
+import org.zyni.ZyniAgent;
+import org.zyni.ZyniEvent;
+import org.zyni.ZyniMsg;
+import org.zyni.ZyniPeer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Named groups of nodes, like the JOIN, LEAVE and SHOUT of the legacy
+ * gossip messages. A node in a group publishes the GROUP.<name> header as
+ * "1", and as "0" once it left, since gossip never drops a header. Members
+ * are the live peers whose header says they are in.
+ *
+ * shout sends a message to the members of a group only, through
+ * ZyniAgent.multicast, and it arrives at the callback of its signature as
+ * any other. Sending to one peer, the legacy WHISPER, is ZyniPeer.send.
+ *
+ * Register it with register (agent). The GROUP.JOIN and GROUP.LEAVE
+ * commands take a group, GROUP.SHOUT a group and the header and body
+ * frames of the message, see Zyni.join, leave and shout. Members joining
+ * or leaving come up the pipe as GROUP.JOIN and GROUP.LEAVE, with the
+ * group and the endpoint.
+ */
+public class GroupHandler implements IAgentHandler
+{
+    public static final String HEADER_PREFIX = "GROUP.";
+
+    private static final String IN = "1";
+    private static final String OUT = "0";
+
+    private final Map <String, Set <String>> groups;  //  Members by group, guarded by this
+    private final Set <String> joined;          //  Groups of this node
+    private final Set <String> alive;           //  Live peers
+
+    private ZyniAgent agent;
+    private boolean inline;                     //  Commands on the agent thread
+
+    public GroupHandler ()
+    {
+        groups = new HashMap <String, Set <String>> ();
+        joined = new HashSet <String> ();
+        alive = new HashSet <String> ();
+    }
+
+    public void register (ZyniAgent agent)
+    {
+        agent.registerEventHandler (this);
+        agent.registerCommand (ZyniEvent.GROUP_JOIN.toString (), this);
+        agent.registerCommand (ZyniEvent.GROUP_LEAVE.toString (), this);
+        agent.registerCommand (ZyniEvent.GROUP_SHOUT.toString (), this);
+    }
+
+    @Override
+    public void initialize (ZyniAgent agent, Object ... args)
+    {
+        this.agent = agent;
+        inline = agent.getConfig ("agent.workers", "0").equals ("0");
+    }
+
+    @Override
+    public int getSignature ()
+    {
+        return 0;
+    }
+
+    /**
+     * Join the group, on the agent thread like any header change
+     */
+    public synchronized void join (String group)
+    {
+        if (joined.add (group))
+            agent.putHeader (HEADER_PREFIX + group, IN);
+    }
+
+    public synchronized void leave (String group)
+    {
+        if (joined.remove (group))
+            agent.putHeader (HEADER_PREFIX + group, OUT);
+    }
+
+    /**
+     * @return groups this node joined
+     */
+    public synchronized Set <String> getGroups ()
+    {
+        return new TreeSet <String> (joined);
+    }
+
+    /**
+     * @return live peers in the group, this node aside
+     */
+    public synchronized Set <String> getMembers (String group)
+    {
+        Set <String> members = groups.get (group);
+        return members == null ? new TreeSet <String> () : new TreeSet <String> (members);
+    }
+
+    /**
+     * Send the message to every member of the group but this node. The
+     * node does not need to be in the group. Like any send, call it on the
+     * agent thread or through execute.
+     * @return number of members the message went to
+     */
+    public int shout (String group, Message body)
+    {
+        List <String> members;
+        synchronized (this) {
+            Set <String> current = groups.get (group);
+            if (current == null || current.isEmpty ())
+                return 0;
+            members = new ArrayList <String> (current);
+        }
+        return agent.multicast (body, members);
+    }
+
+    @Override
+    public void processCommand (final String command, ZMsg msg)
+    {
+        //  Group names are arbitrary text, popString would hex dump some
+        final String group = new String (msg.pop ().getData ());
+        final ZyniMsg body = command.equals (ZyniEvent.GROUP_SHOUT.toString ())
+                ? ZyniMsg.decode (msg.pop ().getData (), msg.pop ().getData ()) : null;
+
+        Runnable task = new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                if (command.equals (ZyniEvent.GROUP_JOIN.toString ()))
+                    join (group);
+                else if (command.equals (ZyniEvent.GROUP_LEAVE.toString ()))
+                    leave (group);
+                else if (body != null)
+                    shout (group, body.getBody ());
+            }
+        };
+
+        if (inline)
+            task.run ();
+        else
+            agent.execute (task);
+    }
+
+    @Override
+    public void onEvent (ZyniEvent event, Object ... params)
+    {
+        switch (event) {
+        case PEER_ALIVE:
+            String endpoint = (String) params [0];
+            alive.add (endpoint);
+            ZyniPeer peer = agent.findPeer (endpoint);
+            if (peer == null)
+                break;
+            for (String key : peer.getHeaders ().keySet ()) {
+                if (key.startsWith (HEADER_PREFIX))
+                    update (endpoint, key, peer.getHeaders ().getValue (key));
+            }
+            break;
+        case PEER_HEADER:
+            String key = (String) params [1];
+            if (key.startsWith (HEADER_PREFIX) && alive.contains (params [0]))
+                update ((String) params [0], key, (String) params [2]);
+            break;
+        case PEER_RESTART:
+            //  The new incarnation gossips its groups again
+            removeAll ((String) params [0]);
+            break;
+        case PEER_DEAD:
+        case PEER_EXIT:
+            alive.remove (params [0]);
+            removeAll ((String) params [0]);
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void update (String endpoint, String key, String value)
+    {
+        String group = key.substring (HEADER_PREFIX.length ());
+        boolean changed;
+        synchronized (this) {
+            Set <String> members = members (group);
+            changed = IN.equals (value) ? members.add (endpoint) : members.remove (endpoint);
+        }
+
+        if (changed)
+            changed (IN.equals (value) ? ZyniEvent.GROUP_JOIN : ZyniEvent.GROUP_LEAVE, group, endpoint);
+    }
+
+    private void removeAll (String endpoint)
+    {
+        List <String> left = new ArrayList <String> ();
+        synchronized (this) {
+            for (Map.Entry <String, Set <String>> entry : groups.entrySet ()) {
+                if (entry.getValue ().remove (endpoint))
+                    left.add (entry.getKey ());
+            }
+        }
+
+        for (String group : left)
+            changed (ZyniEvent.GROUP_LEAVE, group, endpoint);
+    }
+
+    private void changed (ZyniEvent event, String group, String endpoint)
+    {
+        agent.onEvent (event, group, endpoint);
+        agent.sendCommand (event.toString (), group, endpoint);
+    }
+
+    //  Members of the group, created with its gauge the first time
+    private Set <String> members (String group)
+    {
+        Set <String> members = groups.get (group);
+        if (members == null) {
+            final Set <String> created = new HashSet <String> ();
+            groups.put (group, created);
+            agent.getMetrics ().gauge ("group." + group + ".members", new Metrics.Gauge ()
+            {
+                @Override
+                public double value ()
+                {
+                    synchronized (GroupHandler.this) {
+                        return created.size ();
+                    }
+                }
+            });
+            members = created;
+        }
+        return members;
+    }
+
+    @Override
+    public void processCallback (ZyniMsg msg)
+    {
+    }
+
+    @Override
+    public long processTimer (long interval)
+    {
+        return 0;
+    }
+
+    @Override
+    public void destroy ()
+    {
+    }
+}
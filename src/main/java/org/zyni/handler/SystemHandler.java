@@ -1,5 +1,7 @@
 package org.zyni.handler;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.zeromq.ZMsg;
 import org.zyni.IAgentHandler;
 import org.zyni.ZyniAgent;
@@ -8,6 +10,8 @@ import org.zyni.ZyniMsg;
 
 public class SystemHandler implements IAgentHandler
 {
+    private final static Logger LOG = LoggerFactory.getLogger (SystemHandler.class);
+
     private ZyniAgent agent;
 
     @Override
@@ -31,6 +35,21 @@ public class SystemHandler implements IAgentHandler
         else if (command.equals (ZyniEvent.SYSTEM_EXIT.toString ())) {
             agent.stop ();
         }
+        else if (command.equals (ZyniEvent.AGENT_METRICS.toString ())) {
+            agent.sendCommand (command, agent.getMetrics ().dump ());
+        }
+        else if (command.equals (ZyniEvent.AGENT_SEND_KEY.toString ())) {
+            //  Keys are arbitrary text, popString would hex dump some
+            String key = new String (msg.pop ().getData ());
+            int replicas = Integer.parseInt (msg.popString ());
+            ZyniMsg body = ZyniMsg.decode (msg.pop ().getData (), msg.pop ().getData ());
+            if (!agent.hasPartitioner ()) {
+                //  A facade call must not kill the agent thread
+                LOG.warn ("no partitioner, dropped a message to key {}", key);
+                agent.getMetrics ().counter ("route.failed").inc ();
+            } else if (body != null)
+                agent.sendToKey (key, body.getBody (), replicas);
+        }
     }
 
     @Override
@@ -58,7 +77,8 @@ public class SystemHandler implements IAgentHandler
     @Override
     public long processTimer (long interval)
     {
-        return 0;
+        agent.regrant ();
+        return interval;
     }
 
     @Override
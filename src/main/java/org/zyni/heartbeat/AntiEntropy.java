@@ -0,0 +1,177 @@
+package org.zyni.heartbeat;
+
+import org.zyni.ZyniMsg.VersionedMap;
+import org.zyni.message.Common.VersionedValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Summaries and byte budget of the gossip anti-entropy.
+ *
+ * A summary hashes the headers of a state into buckets by key, each bucket
+ * the sum of the hashes of its key, version and value, so two copies of
+ * the same headers give the same sums whatever their order. Copies are
+ * then repaired by the buckets that differ instead of by full transfer.
+ *
+ * The budget is a token bucket of bytes per second over the headers gossip
+ * sends. A state too big for it goes out in chunks by version, each chunk
+ * claiming the version of its last header, so the receiver asks for the
+ * rest on the following rounds. A budget of 0 is unlimited.
+ */
+public class AntiEntropy
+{
+    private static final int MAX_BUCKETS = 256;
+    private static final int BUCKET_HEADERS = 4;      //  Headers per bucket aimed at
+
+    private final long rate;                    //  Bytes per second, 0 if unlimited
+    private double tokens;
+    private long refilled;                      //  Nanoseconds
+
+    public AntiEntropy (long rate, long now)
+    {
+        this.rate = rate;
+        this.tokens = rate;
+        this.refilled = now;
+    }
+
+    private void refill (long now)
+    {
+        tokens = Math.min (rate, tokens + (now - refilled) * (double) rate / 1000000000L);
+        refilled = now;
+    }
+
+    /**
+     * @return bytes that can be sent now, Long.MAX_VALUE if unlimited
+     */
+    public long available (long now)
+    {
+        if (rate <= 0)
+            return Long.MAX_VALUE;
+        refill (now);
+        return (long) tokens;
+    }
+
+    /**
+     * Charge bytes sent outside of limit, like summaries and pushes
+     */
+    public void take (long bytes, long now)
+    {
+        if (rate <= 0)
+            return;
+        refill (now);
+        tokens -= bytes;
+    }
+
+    /**
+     * How many of the values, sorted by version, fit the budget and take
+     * them from it. The cut never splits a version, which the receiver
+     * would not ask again, and at least the first version goes out so a
+     * state always makes progress.
+     */
+    public int limit (List <VersionedValue> values, long now)
+    {
+        if (rate <= 0 || values.isEmpty ())
+            return values.size ();
+        refill (now);
+
+        int count = 0;
+        long bytes = 0;
+        while (count < values.size ()) {
+            long size = size (values.get (count));
+            if (bytes + size > tokens)
+                break;
+            bytes += size;
+            count++;
+        }
+
+        if (count < values.size ()) {
+            //  Back off to a version boundary, or forward if that leaves none
+            int cut = count;
+            int next = values.get (count).getVersion ();
+            while (cut > 0 && values.get (cut - 1).getVersion () == next)
+                cut--;
+            if (cut == 0) {
+                int first = values.get (0).getVersion ();
+                while (cut < values.size () && values.get (cut).getVersion () == first)
+                    cut++;
+            }
+            bytes = 0;
+            for (int i = 0; i < cut; i++)
+                bytes += size (values.get (i));
+            count = cut;
+        }
+
+        tokens -= bytes;
+        return count;
+    }
+
+    static long size (VersionedValue value)
+    {
+        //  Field tag and length of the repeated extra
+        return value.getSerializedSize () + 2;
+    }
+
+    /**
+     * @return buckets of a summary of size headers, a power of two
+     */
+    public static int buckets (int size)
+    {
+        return Math.min (MAX_BUCKETS, Integer.highestOneBit (Math.max (1, size / BUCKET_HEADERS)));
+    }
+
+    public static int bucket (String key, int buckets)
+    {
+        int h = key.hashCode () * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & (buckets - 1);
+    }
+
+    static long hash (VersionedValue value)
+    {
+        long h = value.getKey ().hashCode () * 0x9e3779b97f4a7c15L + value.getValue ().hashCode ();
+        h = h * 0x9e3779b97f4a7c15L + value.getVersion ();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb3fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Hash the headers up to version into buckets
+     */
+    public static long [] summarize (VersionedMap headers, int buckets, int version)
+    {
+        long [] sums = new long [buckets];
+        for (VersionedValue value : headers.values ()) {
+            if (value.getVersion () <= version)
+                sums [bucket (value.getKey (), buckets)] += hash (value);
+        }
+        return sums;
+    }
+
+    /**
+     * @return version of the last header changed, what a summary covers
+     */
+    public static int lastVersion (VersionedMap headers)
+    {
+        int version = 0;
+        for (VersionedValue value : headers.values ())
+            version = Math.max (version, value.getVersion ());
+        return version;
+    }
+
+    /**
+     * @return buckets whose sums differ
+     */
+    public static List <Integer> diff (long [] local, List <Long> remote)
+    {
+        List <Integer> differ = new ArrayList <Integer> ();
+        for (int i = 0; i < local.length; i++) {
+            if (local [i] != remote.get (i))
+                differ.add (i);
+        }
+        return differ;
+    }
+}
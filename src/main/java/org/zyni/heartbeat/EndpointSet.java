@@ -0,0 +1,172 @@
+package org.zyni.heartbeat;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Set of endpoints kept in an array with an index, so gossip targets can be
+ * picked in O(1).
+ *
+ * The array doubles as a shuffled round-robin order: endpoints before the
+ * cursor were already picked in this cycle. Adding or removing keeps that
+ * split, so within one cycle every member is picked exactly once.
+ */
+public class EndpointSet extends AbstractSet <String>
+{
+    private final List <String> items;
+    private final Map <String, Integer> index;
+    private final Random rand;
+    private int cursor;
+
+    public EndpointSet (Random rand)
+    {
+        this.rand = rand;
+        items = new ArrayList <String> ();
+        index = new HashMap <String, Integer> ();
+        cursor = 0;
+    }
+
+    @Override
+    public int size ()
+    {
+        return items.size ();
+    }
+
+    @Override
+    public boolean contains (Object endpoint)
+    {
+        return index.containsKey (endpoint);
+    }
+
+    @Override
+    public boolean add (String endpoint)
+    {
+        if (index.containsKey (endpoint))
+            return false;
+
+        //  Not picked yet in this cycle, at a random place among the others
+        int size = items.size ();
+        index.put (endpoint, size);
+        items.add (endpoint);
+        swap (size, cursor + rand.nextInt (size - cursor + 1));
+        return true;
+    }
+
+    @Override
+    public boolean remove (Object endpoint)
+    {
+        Integer idx = index.get (endpoint);
+        if (idx == null)
+            return false;
+
+        int pos = idx;
+        if (pos < cursor) {
+            //  Keep picked ones in front of the cursor
+            swap (pos, --cursor);
+            pos = cursor;
+        }
+        int last = items.size () - 1;
+        swap (pos, last);
+        items.remove (last);
+        index.remove (endpoint);
+        return true;
+    }
+
+    @Override
+    public void clear ()
+    {
+        items.clear ();
+        index.clear ();
+        cursor = 0;
+    }
+
+    @Override
+    public Iterator <String> iterator ()
+    {
+        return Collections.unmodifiableList (items).iterator ();
+    }
+
+    /**
+     * @return a random member, null if empty
+     */
+    public String random ()
+    {
+        if (items.isEmpty ())
+            return null;
+
+        return items.get (rand.nextInt (items.size ()));
+    }
+
+    /**
+     * Add up to count distinct random members to targets
+     * @return number of members added
+     */
+    public int sample (int count, Collection <String> targets)
+    {
+        int size = items.size ();
+        if (count >= size) {
+            targets.addAll (items);
+            return size;
+        }
+
+        //  Partial Fisher-Yates. It reorders members, so a round-robin
+        //  cycle starts over
+        cursor = 0;
+        for (int i = 0; i < count; i++) {
+            swap (i, i + rand.nextInt (size - i));
+            targets.add (items.get (i));
+        }
+        return count;
+    }
+
+    /**
+     * Add the next count members of the shuffled round-robin order to
+     * targets. Every member is picked once per ceil (size / count) calls.
+     * @return number of members added
+     */
+    public int next (int count, Collection <String> targets)
+    {
+        int size = items.size ();
+        int added = 0;
+
+        //  A new cycle may start with a member already picked by this call
+        for (int seen = 0; added < count && seen < 2 * size; seen++) {
+            if (cursor >= size) {
+                shuffle ();
+                cursor = 0;
+            }
+            String endpoint = items.get (cursor++);
+            if (!targets.contains (endpoint)) {
+                targets.add (endpoint);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    private void shuffle ()
+    {
+        for (int i = items.size () - 1; i > 0; i--)
+            swap (i, rand.nextInt (i + 1));
+    }
+
+    private void swap (int i, int j)
+    {
+        if (i == j)
+            return;
+
+        String a = items.get (i);
+        String b = items.get (j);
+        items.set (i, b);
+        items.set (j, a);
+        index.put (b, i);
+        index.put (a, j);
+    }
+}
@@ -21,7 +21,6 @@ package org.zyni.heartbeat;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingDeque;
 
 /**
  * This FailureDetector comes from Cassandra Gossip implementation
@@ -29,6 +28,10 @@ import java.util.concurrent.LinkedBlockingDeque;
  * This FailureDetector is an implementation of the paper titled
  * "The Phi Accrual Failure Detector" by Hayashibara.
  * Check the paper and the Cassandra.IFailureDetector interface for details.
+ *
+ * By default phi assumes exponentially distributed inter-arrival times as
+ * Cassandra does; with a normal distribution it follows the paper and also
+ * takes the variance of the arrivals into account.
  */
 public class FailureDetector
 {
@@ -37,20 +40,33 @@ public class FailureDetector
     private final Map <String, ArrivalWindow> arrivalSamples = new HashMap <String, ArrivalWindow> ();
 
     private double convictThreshold;
+    private double multiplier = 1;              //  Of the threshold while this node is slow
     private long requestTimeout;
     private final long interval;
+    private final boolean normal;
 
     public FailureDetector (long interval)
     {
-        this (interval, 8.0, 10000);
+        this (interval, false);
+    }
+
+    public FailureDetector (long interval, boolean normal)
+    {
+        this (interval, 8.0, 10000, normal);
         assert (interval > 0);
     }
-    
+
     public FailureDetector (long interval, double convictThreshold, long requestTimeout)
+    {
+        this (interval, convictThreshold, requestTimeout, false);
+    }
+
+    public FailureDetector (long interval, double convictThreshold, long requestTimeout, boolean normal)
     {
         this.interval = interval;
         this.convictThreshold = convictThreshold;
         this.requestTimeout = requestTimeout;
+        this.normal = normal;
     }
 
     public void setPhiConvictThreshold (double phi)
@@ -63,6 +79,27 @@ public class FailureDetector
         return convictThreshold;
     }
 
+    /**
+     * Scale the convict threshold by the local health of this node
+     */
+    public void setThresholdMultiplier (double multiplier)
+    {
+        this.multiplier = multiplier;
+    }
+
+    /**
+     * @return convict threshold with the local health multiplier
+     */
+    public double getThreshold ()
+    {
+        return convictThreshold * multiplier;
+    }
+
+    public boolean isNormal ()
+    {
+        return normal;
+    }
+
     public void clear (String endpoint)
     {
         ArrivalWindow heartbeatWindow = arrivalSamples.get (endpoint);
@@ -72,7 +109,11 @@ public class FailureDetector
 
     public void report (String endpoint)
     {
-        long now = System.currentTimeMillis ();
+        report (endpoint, System.currentTimeMillis ());
+    }
+
+    void report (String endpoint, long now)
+    {
         ArrivalWindow heartbeatWindow = arrivalSamples.get (endpoint);
         if ( heartbeatWindow == null )
         {
@@ -88,20 +129,31 @@ public class FailureDetector
      * @return true if convict is required
      */
     public boolean interpret (String endpoint)
+    {
+        return interpret (endpoint, System.currentTimeMillis ());
+    }
+
+    boolean interpret (String endpoint, long now)
+    {
+        return phi (endpoint, now) > getThreshold ();
+    }
+
+    /**
+     * @return current suspicion level of the endpoint, 0 if never heard of
+     */
+    public double phi (String endpoint)
+    {
+        return phi (endpoint, System.currentTimeMillis ());
+    }
+
+    double phi (String endpoint, long now)
     {
         ArrivalWindow hbWnd = arrivalSamples.get (endpoint);
         if (hbWnd == null)
         {
-            return false;
-        }
-        long now = System.currentTimeMillis ();
-        double phi = hbWnd.phi (now);
-
-        if (phi > getPhiConvictThreshold ())
-        {
-            return true;
+            return 0.0;
         }
-        return false;
+        return normal ? hbWnd.phiNormal (now) : hbWnd.phi (now);
     }
 
     public void remove (String ep)
@@ -127,10 +179,19 @@ public class FailureDetector
     }
 }
 
+/**
+ * Last inter-arrival times in a ring buffer, with their sum and sum of
+ * squares kept up to date so mean and variance are O(1).
+ */
 class ArrivalWindow
 {
-    private double tLast = 0L;
-    private final LinkedBlockingDeque <Double> arrivalIntervals;
+    private long tLast = 0L;
+    private final double [] arrivalIntervals;
+    private int head;           //  Next slot to write, the oldest once full
+    private int size;
+    private double sum;
+    private double sumSquares;
+    private int evicted;        //  Evictions since the sums were recomputed
 
     // this is useless except to provide backwards compatibility in phi_convict_threshold,
     // because everyone seems pretty accustomed to the default of 8, and users who have
@@ -144,15 +205,20 @@ class ArrivalWindow
     private double MAX_INTERVAL_IN_MS;
 
     private long gossipInterval;
-    
+
+    //  Floor of the standard deviation for the normal phi, so perfectly
+    //  regular arrivals do not convict on the slightest delay
+    private final double minStdDev;
+
     ArrivalWindow (int size, long gossipInterval, double MAX_INTERVAL_IN_MS)
     {
-        arrivalIntervals = new LinkedBlockingDeque <Double> (size);
+        arrivalIntervals = new double [size];
         this.gossipInterval = gossipInterval;
         this.MAX_INTERVAL_IN_MS = MAX_INTERVAL_IN_MS;
+        this.minStdDev = gossipInterval / 10.0;
     }
 
-    void add (double value)
+    void add (long value)
     {
         double interArrivalTime;
         if ( tLast > 0L )
@@ -164,44 +230,103 @@ class ArrivalWindow
             interArrivalTime = gossipInterval / 2;
         }
         if (interArrivalTime <= MAX_INTERVAL_IN_MS)
-            arrivalIntervals.add(interArrivalTime);
+            push (interArrivalTime);
         tLast = value;
     }
 
+    private void push (double interval)
+    {
+        boolean full = size == arrivalIntervals.length;
+        if (full) {
+            double oldest = arrivalIntervals [head];
+            sum -= oldest;
+            sumSquares -= oldest * oldest;
+        }
+        else
+            size++;
+
+        arrivalIntervals [head] = interval;
+        sum += interval;
+        sumSquares += interval * interval;
+        if (++head == arrivalIntervals.length)
+            head = 0;
+
+        //  Subtracting evicted samples accumulates rounding errors, start
+        //  over once per window
+        if (full && ++evicted == arrivalIntervals.length) {
+            evicted = 0;
+            sum = 0d;
+            sumSquares = 0d;
+            for (double v : arrivalIntervals) {
+                sum += v;
+                sumSquares += v * v;
+            }
+        }
+    }
+
     int size ()
     {
-        return arrivalIntervals.size ();
+        return size;
     }
-    
+
     double sum ()
     {
-        double sum = 0d;
-        for (Double interval : arrivalIntervals)
-        {
-            sum += interval;
-        }
         return sum;
     }
 
     double mean ()
     {
-        return size() > 0 ? sum() / size() : 0;
+        return size > 0 ? sum / size : 0;
+    }
+
+    double variance ()
+    {
+        if (size == 0)
+            return 0;
+
+        double mean = sum / size;
+        double variance = sumSquares / size - mean * mean;
+        return variance > 0 ? variance : 0;
     }
 
     void clear ()
     {
-        arrivalIntervals.clear();
+        head = 0;
+        size = 0;
+        sum = 0d;
+        sumSquares = 0d;
+        evicted = 0;
     }
 
     // see CASSANDRA-2597 for an explanation of the math at work here.
     double phi(long now)
     {
-        int size = arrivalIntervals.size();
         double t = now - tLast;
         return (size > 0)
                ? PHI_FACTOR * t / mean()
                : 0.0;
     }
 
-}
+    //  -log10 (1 - F (t)) with F the normal CDF, using the logistic
+    //  approximation of the CDF (as Akka does) to stay cheap and finite
+    double phiNormal (long now)
+    {
+        if (size == 0)
+            return 0.0;
+
+        double t = now - tLast;
+        double mean = mean ();
+        double stdDev = Math.max (Math.sqrt (variance ()), minStdDev);
+        double y = (t - mean) / stdDev;
+        double e = Math.exp (-y * (1.5976 + 0.070566 * y * y));
+        if (t > mean)
+            return -Math.log10 (e / (1.0 + e));
+        else
+            return -Math.log10 (1.0 - 1.0 / (1.0 + e));
+    }
 
+    public String toString ()
+    {
+        return String.format ("mean %.1f stddev %.1f samples %d", mean (), Math.sqrt (variance ()), size);
+    }
+}
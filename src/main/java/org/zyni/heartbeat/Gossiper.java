@@ -5,6 +5,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zeromq.ZMsg;
 import org.zyni.IAgentHandler;
+import org.zyni.Metrics;
 import org.zyni.ZyniAgent;
 import org.zyni.ZyniEvent;
 import org.zyni.ZyniMsg;
@@ -14,6 +15,7 @@ import org.zyni.message.Common;
 import org.zyni.message.Common.VersionedValue;
 import org.zyni.message.Gossip;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -23,6 +25,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
 
 
 public class Gossiper implements IAgentHandler
@@ -32,9 +35,9 @@ public class Gossiper implements IAgentHandler
     private ZyniAgent agent;
 
     private final String hosts;
-    private final Set<String> seeds;
-    private final Set <String> liveEndpoints;
-    private final Map<String, Long> deadEndpoints;
+    private final EndpointSet seeds;
+    private final EndpointSet liveEndpoints;
+    private final EndpointSet deadEndpoints;
     private final Map <String, Long> removedEndpoints;
     private final int generation;
     private final long evasive;
@@ -43,18 +46,46 @@ public class Gossiper implements IAgentHandler
     private List<String> managingStatus;
     private long interval;
     private FailureDetector failureDetector;
+    private LocalHealth health;
+    private Metrics.Histogram roundTime;
 
     private State state;
     private int msgId;
 
-    private static class State {
+    private boolean deltaDigest;            //  Ping only with changed states
+    private int fullDigestRounds;           //  Rounds between full digests
+    private int round;                      //  Gossip round
+    private long changes;                   //  State change sequence
+    private Gossip.Ping fullPing;           //  Full digest of this round
+    private final Map <String, Digest> digests;
+
+    private int fanout;                     //  Live members per round
+    private boolean roundRobin;             //  Shuffled round-robin targets
+    private final List <String> targets;
+
+    private AntiEntropy entropy;            //  Summaries and byte budget
+    private int entropyRounds;              //  Rounds between summaries
+    private Metrics.Counter chunked;
+    private Metrics.Counter diverged;
+    private Metrics.Counter repaired;
+
+    //  What was last sent to a gossip target
+    private static class Digest {
+        private long sent = -1;             //  Change sequence when sent
+        private int full = -1;              //  Round of the last full digest
+    }
+
+    static class State {
 
         private final int generation;
         private int version;
         private final String endpoint;
+        private final Common.Address address;
         private boolean alive;
         private boolean managing;
         private final VersionedMap headers;
+        private Gossip.State message;       //  Digest of the current version
+        private long changed;               //  Change sequence of last update
 
         public State (Gossip.State msg, VersionedMap headers)
         {
@@ -68,6 +99,7 @@ public class Gossiper implements IAgentHandler
             this.generation = generation;
             this.version = version;
             this.endpoint = endpoint;
+            this.address = ZyniMsg.stringToAddress (endpoint);
             this.headers = headers;
 
             alive = false;
@@ -76,7 +108,9 @@ public class Gossiper implements IAgentHandler
 
         public void incVersion ()
         {
-            ++version;
+            //  Heartbeat and headers share one version sequence, otherwise
+            //  a header updated after many heartbeats would look stale
+            version = headers.nextVersion ();
         }
 
         public void setVersion (int version)
@@ -101,14 +135,25 @@ public class Gossiper implements IAgentHandler
 
         public Gossip.State getMessage ()
         {
-            Common.Address address = ZyniMsg.stringToAddress (endpoint);
-            Gossip.State state = Gossip.State.newBuilder ()
-                                    .setAddress (address)
-                                    .setMaxVersion (getMaxVersion ())
-                                    .setGeneration (getGeneration ())
-                                    .build ();
+            int maxVersion = getMaxVersion ();
+            if (message == null || message.getMaxVersion () != maxVersion)
+                message = Gossip.State.newBuilder ()
+                                .setAddress (address)
+                                .setMaxVersion (maxVersion)
+                                .setGeneration (getGeneration ())
+                                .build ();
+
+            return message;
+        }
 
-            return state;
+        public long getChanged ()
+        {
+            return changed;
+        }
+
+        public void setChanged (long changed)
+        {
+            this.changed = changed;
         }
 
         public boolean isManaging ()
@@ -148,11 +193,13 @@ public class Gossiper implements IAgentHandler
         this.evasive = evasive;
         this.expired = expired;
 
-        seeds = new HashSet<String> ();
-        liveEndpoints = new HashSet <String> ();
-        deadEndpoints = new HashMap<String, Long> ();
         removedEndpoints = new HashMap <String, Long> ();
+        digests = new HashMap <String, Digest> ();
         rand = new Random (System.currentTimeMillis ());
+        seeds = new EndpointSet (rand);
+        liveEndpoints = new EndpointSet (rand);
+        deadEndpoints = new EndpointSet (rand);
+        targets = new ArrayList <String> ();
 
         generation = Integer.parseInt (args[0]);
     }
@@ -160,13 +207,16 @@ public class Gossiper implements IAgentHandler
     @Override
     public int getSignature ()
     {
-        int signature = Gossip.getDescriptor ().hashCode ();
+        int signature = Gossip.getDescriptor ().getName ().hashCode ();
 
         LOG.info ("Gossip Signature {}", signature);
         ZyniMsg.registerBuilder (signature, Gossip.Ping.newBuilder ());
         ZyniMsg.registerBuilder (signature, Gossip.PingAck.newBuilder ());
         ZyniMsg.registerBuilder (signature, Gossip.PingEnd.newBuilder ());
         ZyniMsg.registerBuilder (signature, Gossip.Exit.newBuilder ());
+        ZyniMsg.registerBuilder (signature, Gossip.Summary.newBuilder ());
+        ZyniMsg.registerBuilder (signature, Gossip.Pull.newBuilder ());
+        ZyniMsg.registerBuilder (signature, Gossip.Push.newBuilder ());
 
         return signature;
     }
@@ -176,11 +226,16 @@ public class Gossiper implements IAgentHandler
     {
         this.agent = agent;
         this.interval = (Long) args [0];
-        this.failureDetector = new FailureDetector (interval);
+        this.failureDetector = new FailureDetector (interval,
+                agent.getConfig ("heartbeat.phi", "exponential").equals ("normal"));
+        this.roundTime = agent.getMetrics ().histogram ("gossip.round.us");
+        this.health = new LocalHealth (agent.getMetrics (), interval,
+                Integer.parseInt (agent.getConfig ("heartbeat.health.max", "8")), System.nanoTime ());
+        agent.setFailureDetector (failureDetector);
 
         for (String host : hosts.split (","))
         {
-            if (host.equals (agent.getAddress ()))
+            if (host.isEmpty () || host.equals (agent.getAddress ()))
                 continue;
 
             seeds.add(host);
@@ -189,43 +244,110 @@ public class Gossiper implements IAgentHandler
 
         state = new State (agent.getAddress (), generation, 0, agent.getHeaders ());
         managingStatus = Arrays.asList (agent.getConfig ("MANAGING_STATUS", "").split (","));
+        deltaDigest = agent.getConfig ("heartbeat.digest", "full").equals ("delta");
+        fullDigestRounds = Integer.parseInt (agent.getConfig ("heartbeat.digest.full", "10"));
+        fanout = Integer.parseInt (agent.getConfig ("heartbeat.fanout", "1"));
+        roundRobin = agent.getConfig ("heartbeat.selection", "random").equals ("roundrobin");
+
+        entropy = new AntiEntropy (Long.parseLong (agent.getConfig ("heartbeat.entropy.bytes", "0")),
+                System.nanoTime ());
+        entropyRounds = Integer.parseInt (agent.getConfig ("heartbeat.entropy.rounds", "10"));
+        chunked = agent.getMetrics ().counter ("gossip.entropy.chunked");
+        diverged = agent.getMetrics ().counter ("gossip.entropy.diverged");
+        repaired = agent.getMetrics ().counter ("gossip.entropy.repaired");
     }
 
     @Override
     public long processTimer (long interval)
     {
+        long start = System.nanoTime ();
+
+        //  A slow node waits longer before it convicts anyone
+        if (!health.check (start))
+            health.lower ();
+        failureDetector.setThresholdMultiplier (health.multiplier ());
+
         //  Update the local heartbeat counter.
         state.incVersion ();
+        changed (state);
+        round++;
+        fullPing = null;
 
         Map <String, ZyniPeer> peers = agent.getPeers ();
         if (peers.size () > 0)
         {
-            Gossip.Ping.Builder builder = Gossip.Ping.newBuilder ();
-            builder.addDigest (state.getMessage ());
-
-            for (ZyniPeer peer : peers.values ()) {
-                State peerState = (State) peer.getAttached ();
-                if (peerState != null)
-                    builder.addDigest (peerState.getMessage ());
-            }
-
-            Gossip.Ping msg = builder.build ();
-            //  Gossip to some random live member
-            boolean seed = sendGossip (msg, liveEndpoints);
+            //  Gossip to fanout live members
+            boolean seed = sendGossip (liveEndpoints, fanout, roundRobin);
 
             //  Gossip to some unreachable member with some probability to check if he is back up
-            sendGossipDead (msg);
+            sendGossipDead ();
 
             if (!seed || liveEndpoints.size() < seeds.size())
-                sendGossip (msg, seeds);
+                sendGossip (seeds, 1, false);
+
+            if (entropyRounds > 0 && round % entropyRounds == 0)
+                sendSummary ();
 
             checkState ();
         }
+        roundTime.record ((System.nanoTime () - start) / 1000);
 
         return interval;
     }
 
-    private void sendGossipDead (Gossip.Ping msg)
+    /**
+     * In delta mode a target only gets the states changed since the last
+     * digest sent to it, plus a full digest every fullDigestRounds rounds
+     * for anti-entropy.
+     */
+    Gossip.Ping buildPing (String target)
+    {
+        Digest digest = null;
+        if (deltaDigest) {
+            digest = digests.get (target);
+            if (digest == null) {
+                digest = new Digest ();
+                digests.put (target, digest);
+            }
+        }
+
+        Gossip.Ping ping;
+        if (digest == null || digest.full < 0 || round - digest.full >= fullDigestRounds) {
+            if (fullPing == null)
+                fullPing = buildDigest (-1);
+            ping = fullPing;
+            if (digest != null)
+                digest.full = round;
+        } else
+            ping = buildDigest (digest.sent);
+
+        if (digest != null)
+            digest.sent = changes;
+
+        return ping;
+    }
+
+    //  Digest of the states changed after the given change sequence
+    Gossip.Ping buildDigest (long since)
+    {
+        Gossip.Ping.Builder builder = Gossip.Ping.newBuilder ();
+        builder.addDigest (state.getMessage ());
+
+        for (ZyniPeer peer : agent.getPeers ().values ()) {
+            State peerState = (State) peer.getAttached ();
+            if (peerState != null && peerState.getChanged () > since)
+                builder.addDigest (peerState.getMessage ());
+        }
+
+        return builder.build ();
+    }
+
+    private void changed (State state)
+    {
+        state.setChanged (++changes);
+    }
+
+    private void sendGossipDead ()
     {
         double liveCount = liveEndpoints.size();
         double unreachableCount = deadEndpoints.size();
@@ -235,27 +357,181 @@ public class Gossiper implements IAgentHandler
             double prob = unreachableCount / (liveCount + 1);
             double randDbl = rand.nextDouble();
             if ( randDbl < prob )
-                sendGossip (msg, deadEndpoints.keySet ());
+                sendGossip (deadEndpoints, 1, false);
         }
 
     }
 
-    private boolean sendGossip (Gossip.Ping msg, Set <String> peers)
+    /**
+     * Gossip to count members of peers
+     * @return true if a seed was among them
+     */
+    private boolean sendGossip (EndpointSet peers, int count, boolean roundRobin)
     {
-        int size = peers.size ();
-        if (size == 0)
-            return false;
+        targets.clear ();
+        if (roundRobin)
+            peers.next (count, targets);
+        else
+            peers.sample (count, targets);
+
+        boolean seed = false;
+        for (String endpoint : targets) {
+            if (LOG.isDebugEnabled ())
+                LOG.debug ("{} sends gossip to {}", state.getEndpoint (), endpoint);
+            send (agent.findPeer (endpoint), buildPing (endpoint));
+            seed |= seeds.contains (endpoint);
+        }
+        return seed;
+    }
 
-        int idx = rand.nextInt (size);
-        for (String endpoint: peers) {
-            if (idx-- == 0) {
-                if (LOG.isDebugEnabled ())
-                    LOG.debug ("{} sends gossip to {}", state.getEndpoint (), endpoint);
-                send (agent.findPeer (endpoint), msg);
-                return seeds.contains (endpoint);
+    /**
+     * Push a summary of our headers to a live member, which pulls the
+     * buckets its copy got wrong. Versions only tell a copy what it is
+     * missing, the summary also finds what it should not have.
+     */
+    private void sendSummary ()
+    {
+        String endpoint = liveEndpoints.random ();
+        VersionedMap headers = state.getHeaders ();
+        if (endpoint == null || headers.isEmpty ())
+            return;
+
+        int buckets = AntiEntropy.buckets (headers.size ());
+        int version = AntiEntropy.lastVersion (headers);
+        Gossip.Summary.Builder builder = Gossip.Summary.newBuilder ()
+                                            .setGeneration (generation)
+                                            .setMaxVersion (version);
+        for (long sum : AntiEntropy.summarize (headers, buckets, version))
+            builder.addBucket (sum);
+
+        //  Summaries only spend what state transfers leave
+        Gossip.Summary summary = builder.build ();
+        long now = System.nanoTime ();
+        if (entropy.available (now) < summary.getSerializedSize ())
+            return;
+        entropy.take (summary.getSerializedSize (), now);
+        send (agent.findPeer (endpoint), summary);
+    }
+
+    private static boolean validBuckets (int buckets)
+    {
+        return buckets > 0 && Integer.bitCount (buckets) == 1;
+    }
+
+    //  Pull the buckets of the summary our copy of the sender differs on
+    private void compare (ZyniPeer sender, Gossip.Summary summary)
+    {
+        State peerState = (State) sender.getAttached ();
+        int buckets = summary.getBucketCount ();
+
+        //  A copy behind the summary catches up by gossip first
+        if (peerState == null || !validBuckets (buckets)
+                || peerState.getGeneration () != summary.getGeneration ()
+                || peerState.getMaxVersion () < summary.getMaxVersion ())
+            return;
+
+        List <Integer> differ = AntiEntropy.diff (AntiEntropy.summarize (sender.getHeaders (),
+                buckets, summary.getMaxVersion ()), summary.getBucketList ());
+        if (differ.isEmpty ())
+            return;
+
+        diverged.inc ();
+        send (sender, Gossip.Pull.newBuilder ()
+                        .setGeneration (summary.getGeneration ())
+                        .setBuckets (buckets)
+                        .addAllBucket (differ)
+                        .build ());
+    }
+
+    //  Send every header of the pulled buckets, as many buckets as the
+    //  budget allows, the next summary brings up the others
+    private void push (ZyniPeer sender, Gossip.Pull pull)
+    {
+        int buckets = pull.getBuckets ();
+        if (pull.getGeneration () != generation || !validBuckets (buckets))
+            return;
+
+        Set <Integer> pulled = new HashSet <Integer> (pull.getBucketList ());
+        Map <Integer, List <VersionedValue>> values = new TreeMap <Integer, List <VersionedValue>> ();
+        for (VersionedValue value : state.getHeaders ().values ()) {
+            int bucket = AntiEntropy.bucket (value.getKey (), buckets);
+            if (!pulled.contains (bucket))
+                continue;
+            List <VersionedValue> list = values.get (bucket);
+            if (list == null) {
+                list = new ArrayList <VersionedValue> ();
+                values.put (bucket, list);
+            }
+            list.add (value);
+        }
+
+        long now = System.nanoTime ();
+        long available = entropy.available (now);
+        long bytes = 0;
+        Gossip.Push.Builder builder = Gossip.Push.newBuilder ().setBuckets (buckets);
+        Gossip.State.Builder pushed = Gossip.State.newBuilder ().mergeFrom (state.getMessage ());
+        for (Integer bucket : pulled) {
+            List <VersionedValue> list = values.get (bucket);
+            long size = 0;
+            if (list != null) {
+                for (VersionedValue value : list)
+                    size += AntiEntropy.size (value);
+            }
+            if (builder.getBucketCount () > 0 && bytes + size > available)
+                break;
+
+            builder.addBucket (bucket);
+            if (list != null)
+                pushed.addAllExtra (list);
+            bytes += size;
+        }
+        entropy.take (bytes, now);
+        send (sender, builder.setState (pushed).build ());
+    }
+
+    //  Make the pushed buckets of our copy of the sender what it has
+    private void repair (ZyniPeer sender, Gossip.Push push)
+    {
+        State peerState = (State) sender.getAttached ();
+        Gossip.State remoteState = push.getState ();
+        int buckets = push.getBuckets ();
+        if (peerState == null || !validBuckets (buckets)
+                || peerState.getGeneration () != remoteState.getGeneration ())
+            return;
+
+        Set <Integer> pushed = new HashSet <Integer> (push.getBucketList ());
+        Set <String> keys = new HashSet <String> ();
+        for (VersionedValue value : remoteState.getExtraList ())
+            keys.add (value.getKey ());
+
+        //  Headers the sender does not have
+        VersionedMap headers = sender.getHeaders ();
+        Iterator <String> it = headers.keySet ().iterator ();
+        while (it.hasNext ()) {
+            String key = it.next ();
+            if (pushed.contains (AntiEntropy.bucket (key, buckets)) && !keys.contains (key)) {
+                it.remove ();
+                repaired.inc ();
             }
         }
-        return false;
+
+        //  Later versions come by gossip, in order, or the copy would
+        //  claim versions it skipped
+        int version = peerState.getMaxVersion ();
+        List <VersionedValue> changed = new ArrayList <VersionedValue> ();
+        for (VersionedValue value : remoteState.getExtraList ()) {
+            if (value.getVersion () <= version && !value.equals (headers.get (value.getKey ())))
+                changed.add (value);
+        }
+        if (changed.isEmpty ())
+            return;
+
+        LOG.info ("repaired {} headers of {}", changed.size (), sender.getEndpoint ());
+        repaired.add (changed.size ());
+        sender.updateHeaders (changed);
+        for (VersionedValue value : changed)
+            agent.onEvent (ZyniEvent.PEER_HEADER, sender.getEndpoint (),
+                    value.getKey (), value.getValue ());
     }
 
     private void checkState ()
@@ -327,6 +603,8 @@ public class Gossiper implements IAgentHandler
         liveEndpoints.remove (endpoint);
         deadEndpoints.remove (endpoint);
         failureDetector.remove (endpoint);
+        agent.getMetrics ().remove ("peer." + endpoint + ".phi");
+        digests.remove (endpoint);
         removedEndpoints.put (endpoint, System.currentTimeMillis ());
 
         agent.disconnectPeer (endpoint);
@@ -346,7 +624,7 @@ public class Gossiper implements IAgentHandler
     {
         peerState.setAlive (false);
         liveEndpoints.remove (peerState.getEndpoint ());
-        deadEndpoints.put (peerState.getEndpoint (), System.currentTimeMillis ());
+        deadEndpoints.add (peerState.getEndpoint ());
 
         agent.onEvent (ZyniEvent.PEER_DEAD, peerState.getEndpoint (), peerState);
     }
@@ -381,6 +659,12 @@ public class Gossiper implements IAgentHandler
             applyStateChanges (((Gossip.PingEnd) body).getDigestList ());
         } else if (body instanceof Gossip.Exit) {
             removeEndpoint (endpoint);
+        } else if (body instanceof Gossip.Summary) {
+            compare (sender, (Gossip.Summary) body);
+        } else if (body instanceof Gossip.Pull) {
+            push (sender, (Gossip.Pull) body);
+        } else if (body instanceof Gossip.Push) {
+            repair (sender, (Gossip.Push) body);
         } else {
             throw new IllegalStateException ("Illegal Message " + msg.getType ());
         }
@@ -407,10 +691,21 @@ public class Gossiper implements IAgentHandler
         ZyniPeer peer = agent.connectPeer (ZyniMsg.addressToString (remoteState.getAddress ()));
         agent.onEvent (ZyniEvent.PEER_ENTER, peer.getEndpoint ());
 
+        final String endpoint = peer.getEndpoint ();
+        agent.getMetrics ().gauge ("peer." + endpoint + ".phi", new Metrics.Gauge ()
+        {
+            @Override
+            public double value ()
+            {
+                return failureDetector.phi (endpoint, System.currentTimeMillis ());
+            }
+        });
+
         refresh (peer, remoteState);
 
         State attach = new State (remoteState, peer.getHeaders ());
         peer.attach (attach);
+        changed (attach);
 
         if (!isPeerManaging (peer))
             markAlive (attach);
@@ -434,13 +729,14 @@ public class Gossiper implements IAgentHandler
 
         peerState.setVersion (remoteState.getMaxVersion ());
         peerState.setManaging (isPeerManaging (peer));
+        changed (peerState);
 
         for (VersionedValue entry : remoteState.getExtraList ())
             agent.onEvent (ZyniEvent.PEER_HEADER, peer.getEndpoint (),
                     entry.getKey (), entry.getValue ());
     }
 
-    private Gossip.PingAck buildPingOk (Gossip.Ping msg)
+    Gossip.PingAck buildPingOk (Gossip.Ping msg)
     {
         assert (msg.getDigestList ().size () > 0);
 
@@ -480,7 +776,9 @@ public class Gossiper implements IAgentHandler
                                     .build ());
                 } else if (remoteGeneration < localGeneration) {
                     // send all information
-                    builder.addResponse (getNewerStateMsg (localState, 0));
+                    Gossip.State newer = getNewerStateMsg (localState, 0);
+                    if (newer != null)
+                        builder.addResponse (newer);
                 }
 
             } else {
@@ -497,15 +795,21 @@ public class Gossiper implements IAgentHandler
         return builder.build ();
     }
 
-    private Gossip.PingEnd buildPingEnd (Gossip.PingAck msg)
+    Gossip.PingEnd buildPingEnd (Gossip.PingAck msg)
     {
         Gossip.PingEnd.Builder builder = Gossip.PingEnd.newBuilder ();
         applyStateChanges (msg.getResponseList ());
 
         for (Gossip.State requestState : msg.getRequestList ()) {
             State localState = getLocalState (requestState);
-            Gossip.State response =
-                    getNewerStateMsg (localState, 0);
+            if (localState == null)
+                continue;
+
+            //  The request carries the version the sender has, unless it
+            //  knows another generation
+            int version = requestState.getGeneration () == localState.getGeneration ()
+                    ? requestState.getMaxVersion () : 0;
+            Gossip.State response = getNewerStateMsg (localState, version);
 
             if (response != null)
                 builder.addDigest (response);
@@ -550,22 +854,26 @@ public class Gossiper implements IAgentHandler
         }
     }
 
+    //  The state with its headers above version, as many as the byte
+    //  budget allows. null if there is nothing newer
     private Gossip.State getNewerStateMsg (State localState, int version)
     {
         assert (localState != null);
+        if (localState.getMaxVersion () <= version)
+            return null;
 
         Gossip.State.Builder builder = Gossip.State.newBuilder ();
-
-        if (localState.getMaxVersion () > version)
-            builder.mergeFrom (localState.getMessage ());
-
-        for (Map.Entry <String, VersionedValue> entry : localState.getHeaders ().entrySet ())
-        {
-            VersionedValue value = entry.getValue ();
-            if (value.getVersion () > version) {
-                builder.addExtra (value);
-            }
+        builder.mergeFrom (localState.getMessage ());
+
+        List <VersionedValue> newer = localState.getHeaders ().newer (version);
+        int count = entropy.limit (newer, System.nanoTime ());
+        if (count < newer.size ()) {
+            //  The receiver asks for the rest from the last version sent
+            newer = newer.subList (0, count);
+            builder.setMaxVersion (newer.get (count - 1).getVersion ());
+            chunked.inc ();
         }
+        builder.addAllExtra (newer);
 
         return builder.build ();
     }
@@ -592,8 +900,6 @@ public class Gossiper implements IAgentHandler
     @Override
     public void destroy ()
     {
-        Gossip.Exit msg = Gossip.Exit.newBuilder ().build ();
-        for (String endpoint : liveEndpoints)
-            send (agent.findPeer (endpoint), msg);
+        agent.multicast (Gossip.Exit.newBuilder ().build (), liveEndpoints);
     }
 }
@@ -10,6 +10,8 @@ public class HeartBeatFactory
     {
         if (type.equals ("gossip"))
             return new Gossiper (hosts, evasive, expired, args);
+        if (type.equals ("swim"))
+            return new SwimHandler (hosts, evasive, expired, args);
 
         return null;
     }
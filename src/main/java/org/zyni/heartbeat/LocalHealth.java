@@ -0,0 +1,111 @@
+package org.zyni.heartbeat;
+
+import org.zyni.Metrics;
+
+/**
+ * How slow this node itself is, the local health multiplier of Lifeguard.
+ *
+ * A node stalled by a GC pause or a saturated CPU hears from its peers
+ * late and would convict healthy ones. The score rises with the rounds
+ * the agent timers ran late and while the agent loop is always busy, and
+ * the heartbeat strategies wait longer by multiplier () before they blame
+ * a peer. The strategy lowers it on rounds that went well.
+ */
+public class LocalHealth
+{
+    private static final double SATURATED = 0.9;    //  Busy share of the loop
+
+    private final Metrics.Histogram lateness;
+    private final Metrics.Histogram loopTime;
+    private final long interval;                //  Round, in ms
+    private final int max;                      //  Highest score, 0 disables it
+
+    private int score;
+    private long lastCount;
+    private long lastLateness;                  //  us
+    private long lastBusy;                      //  us
+    private long lastTime;                      //  ns
+
+    public LocalHealth (Metrics metrics, long interval, int max, long now)
+    {
+        this (metrics.histogram ("agent.timer.lateness.us"), metrics.histogram ("agent.loop.us"),
+                interval, max, now);
+        metrics.gauge ("heartbeat.health", new Metrics.Gauge ()
+        {
+            @Override
+            public double value ()
+            {
+                return score;
+            }
+        });
+    }
+
+    LocalHealth (Metrics.Histogram lateness, Metrics.Histogram loopTime, long interval, int max, long now)
+    {
+        this.lateness = lateness;
+        this.loopTime = loopTime;
+        this.interval = interval;
+        this.max = max;
+
+        lastCount = lateness.getCount ();
+        lastLateness = lateness.getSum ();
+        lastBusy = loopTime.getSum ();
+        lastTime = now;
+    }
+
+    /**
+     * Check the agent since the last check, once a round. Timers late by
+     * some rounds raise the score by as many rounds.
+     * @return true if the node was slow
+     */
+    public boolean check (long now)
+    {
+        long count = lateness.getCount () - lastCount;
+        long late = lateness.getSum () - lastLateness;
+        long busy = loopTime.getSum () - lastBusy;
+        long elapsed = now - lastTime;
+        lastCount += count;
+        lastLateness += late;
+        lastBusy += busy;
+        lastTime = now;
+
+        //  Timers only count once late by half a round, wheel ticks are not
+        int rounds = 0;
+        if (count > 0 && late / count > interval * 500)
+            rounds = (int) Math.min (max, Math.max (1, late / count / (interval * 1000)));
+        if (elapsed > 0 && busy * 1000.0 / elapsed > SATURATED)
+            rounds = Math.max (rounds, 1);
+
+        raise (rounds);
+        return rounds > 0;
+    }
+
+    public void raise ()
+    {
+        raise (1);
+    }
+
+    private void raise (int rounds)
+    {
+        score = Math.min (max, score + rounds);
+    }
+
+    public void lower ()
+    {
+        if (score > 0)
+            score--;
+    }
+
+    public int getScore ()
+    {
+        return score;
+    }
+
+    /**
+     * @return what to scale timeouts and thresholds by, 1 when healthy
+     */
+    public double multiplier ()
+    {
+        return score + 1;
+    }
+}
@@ -0,0 +1,808 @@
+package org.zyni.heartbeat;
+
+import com.google.protobuf.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zeromq.ZMsg;
+import org.zyni.IAgentHandler;
+import org.zyni.Metrics;
+import org.zyni.ZyniAgent;
+import org.zyni.ZyniEvent;
+import org.zyni.ZyniMsg;
+import org.zyni.ZyniPeer;
+import org.zyni.message.Common;
+import org.zyni.message.Common.VersionedValue;
+import org.zyni.message.Swim;
+import org.zyni.message.Swim.Member.Status;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * SWIM membership, heartbeat.strategy=swim. Each round probes one member
+ * in shuffled round-robin order, and a member that does not answer by
+ * half the round is probed through heartbeat.swim.indirect others with a
+ * ProbeRequest. One that answers neither becomes a suspect, dead once its
+ * suspicion times out unless it refutes it with a higher incarnation.
+ *
+ * Suspicion is Lifeguard like. A suspicion lasts heartbeat.swim.suspicion.max
+ * times its minimum and shrinks down to it as members confirm it, up to
+ * heartbeat.swim.confirmations of them. A node slow itself, by its
+ * LocalHealth, probes less often and waits longer before it suspects
+ * anyone or convicts a suspect.
+ *
+ * Membership changes ride on the probes, each sent a few times per log of
+ * the group size, so a node sends a constant number of messages per round
+ * whatever the size of the group. Headers go with the answer to a direct
+ * probe, above the version the prober has, within heartbeat.entropy.bytes.
+ *
+ * It raises the same events as the Gossiper, PEER_ENTER, PEER_ALIVE,
+ * PEER_HEADER, PEER_RESTART, PEER_DEAD and PEER_EXIT.
+ */
+public class SwimHandler implements IAgentHandler
+{
+    private final static Logger LOG = LoggerFactory.getLogger (SwimHandler.class);
+
+    private ZyniAgent agent;
+
+    private final String hosts;
+    private final long evasive;
+    private final long expired;
+    private final int generation;
+    private final Random rand;
+    private final EndpointSet seeds;
+    private final EndpointSet probed;           //  Alive and suspect members
+    private final Map <String, Member> members;
+    private final Map <String, Long> removedEndpoints;
+    private final Set <String> stale;           //  Members whose headers we miss
+    private final Map <String, Update> updates; //  Latest record to spread by member
+    private final List <String> targets;
+
+    private Common.Address address;
+    private int incarnation;
+    private int announced;                      //  Header version last spread
+    private long interval;
+    private FailureDetector failureDetector;
+    private LocalHealth health;
+    private AntiEntropy entropy;
+
+    private int indirect;                       //  Members probing for us
+    private int piggyback;                      //  Records per message
+    private int retransmit;                     //  Sends of a record per log of the size
+    private double suspicion;                   //  Suspicion timeout in rounds per log of the size
+    private double suspicionMax;                //  Of the minimum, without confirmations
+    private int confirmations;                  //  Suspecting members that make it minimum
+
+    private boolean second;                     //  Second half of the round
+    private long round;                         //  Length of this round
+    private String probing;                     //  Target of this round
+    private int seq;
+    private boolean acked;
+
+    private Metrics.Counter suspected;
+    private Metrics.Counter indirectProbes;
+    private Metrics.Counter refuted;
+
+    static class Member {
+
+        private final String endpoint;
+        private int generation;
+        private int incarnation;
+        private Status status;
+        private int version;                    //  Header version it claims
+        private long since;                     //  When it died or got suspected
+        private Common.Address suspectedBy;     //  Last member confirming the suspicion
+        private final Set <String> suspectors = new HashSet <String> ();
+
+        Member (String endpoint, Swim.Member record)
+        {
+            this.endpoint = endpoint;
+            this.generation = record.getGeneration ();
+            this.incarnation = record.getIncarnation ();
+            this.status = record.getStatus ();
+        }
+
+        public Status getStatus ()
+        {
+            return status;
+        }
+
+        public int getIncarnation ()
+        {
+            return incarnation;
+        }
+
+        public String getEndpoint ()
+        {
+            return endpoint;
+        }
+    }
+
+    private static class Update {
+        private final String endpoint;
+        private final Swim.Member record;
+        private int sent;
+
+        Update (String endpoint, Swim.Member record)
+        {
+            this.endpoint = endpoint;
+            this.record = record;
+        }
+    }
+
+    private static final Comparator <Update> FEWEST_SENT = new Comparator <Update> ()
+    {
+        @Override
+        public int compare (Update a, Update b)
+        {
+            return a.sent < b.sent ? -1 : a.sent == b.sent ? 0 : 1;
+        }
+    };
+
+    public SwimHandler (String hosts, long evasive, long expired, String ... args)
+    {
+        this.hosts = hosts;
+        this.evasive = evasive;
+        this.expired = expired;
+
+        rand = new Random (System.currentTimeMillis ());
+        seeds = new EndpointSet (rand);
+        probed = new EndpointSet (rand);
+        members = new HashMap <String, Member> ();
+        removedEndpoints = new HashMap <String, Long> ();
+        stale = new LinkedHashSet <String> ();
+        updates = new HashMap <String, Update> ();
+        targets = new ArrayList <String> ();
+
+        generation = Integer.parseInt (args[0]);
+    }
+
+    @Override
+    public int getSignature ()
+    {
+        int signature = Swim.getDescriptor ().getName ().hashCode ();
+
+        LOG.info ("Swim Signature {}", signature);
+        ZyniMsg.registerBuilder (signature, Swim.Probe.newBuilder ());
+        ZyniMsg.registerBuilder (signature, Swim.ProbeAck.newBuilder ());
+        ZyniMsg.registerBuilder (signature, Swim.ProbeRequest.newBuilder ());
+        ZyniMsg.registerBuilder (signature, Swim.Leave.newBuilder ());
+
+        return signature;
+    }
+
+    @Override
+    public void initialize (ZyniAgent agent, Object ... args)
+    {
+        this.agent = agent;
+        this.interval = (Long) args [0];
+        this.failureDetector = new FailureDetector (interval,
+                agent.getConfig ("heartbeat.phi", "exponential").equals ("normal"));
+        agent.setFailureDetector (failureDetector);
+
+        for (String host : hosts.split (","))
+        {
+            if (host.isEmpty () || host.equals (agent.getAddress ()))
+                continue;
+
+            seeds.add (host);
+            agent.connectPeer (host);
+        }
+
+        address = ZyniMsg.stringToAddress (agent.getAddress ());
+        indirect = Integer.parseInt (agent.getConfig ("heartbeat.swim.indirect", "3"));
+        piggyback = Integer.parseInt (agent.getConfig ("heartbeat.swim.piggyback", "6"));
+        retransmit = Integer.parseInt (agent.getConfig ("heartbeat.swim.retransmit", "4"));
+        suspicion = Double.parseDouble (agent.getConfig ("heartbeat.swim.suspicion", "5"));
+        suspicionMax = Double.parseDouble (agent.getConfig ("heartbeat.swim.suspicion.max", "6"));
+        confirmations = Integer.parseInt (agent.getConfig ("heartbeat.swim.confirmations", "3"));
+        health = new LocalHealth (agent.getMetrics (), interval,
+                Integer.parseInt (agent.getConfig ("heartbeat.health.max", "8")), System.nanoTime ());
+        entropy = new AntiEntropy (Long.parseLong (agent.getConfig ("heartbeat.entropy.bytes", "0")),
+                System.nanoTime ());
+
+        suspected = agent.getMetrics ().counter ("swim.suspected");
+        indirectProbes = agent.getMetrics ().counter ("swim.indirect");
+        refuted = agent.getMetrics ().counter ("swim.refuted");
+    }
+
+    /**
+     * A round in two halves, the direct probe and then, without an answer,
+     * the indirect ones
+     */
+    @Override
+    public long processTimer (long interval)
+    {
+        if (second) {
+            second = false;
+            if (probing != null && !acked)
+                requestProbes ();
+            return Math.max (1, round - round / 2);
+        }
+
+        //  A slow node probes less often, and a probe it may have answered
+        //  late itself is no reason to suspect the target
+        second = true;
+        boolean slow = health.check (System.nanoTime ());
+        long now = System.currentTimeMillis ();
+        if (probing != null && !acked) {
+            health.raise ();
+            Member member = members.get (probing);
+            if (member != null && !slow) {
+                if (member.status == Status.ALIVE)
+                    suspect (member, member.incarnation, address, now);
+                else if (member.status == Status.SUSPECT)
+                    confirm (member, address);
+            }
+        } else if (probing != null && !slow)
+            health.lower ();
+        failureDetector.setThresholdMultiplier (health.multiplier ());
+        round = (long) (this.interval * health.multiplier ());
+
+        int version = agent.getHeaders ().getMaxVersion ();
+        if (version > announced) {
+            announced = version;
+            spread (agent.getAddress (), self (Status.ALIVE));
+        }
+
+        checkState (now);
+        probe ();
+        probeSeed ();
+
+        return Math.max (1, round / 2);
+    }
+
+    //  Members whose headers we miss go first, then the round-robin order
+    private void probe ()
+    {
+        probing = null;
+        acked = false;
+
+        String target = null;
+        Iterator <String> it = stale.iterator ();
+        if (it.hasNext ()) {
+            target = it.next ();
+            it.remove ();
+        } else {
+            targets.clear ();
+            probed.next (1, targets);
+            if (!targets.isEmpty ())
+                target = targets.get (0);
+        }
+        ZyniPeer peer = target == null ? null : agent.findPeer (target);
+        if (peer == null)
+            return;
+
+        probing = target;
+        send (peer, Swim.Probe.newBuilder ()
+                        .setSeq (++seq)
+                        .setSender (self (Status.ALIVE))
+                        .setKnown (peer.getHeaders ().getMaxVersion ())
+                        .addAllUpdate (piggyback ())
+                        .build ());
+    }
+
+    //  Until every seed is a member, ask one for the whole membership
+    private void probeSeed ()
+    {
+        targets.clear ();
+        for (String seed : seeds) {
+            if (!probed.contains (seed))
+                targets.add (seed);
+        }
+        if (targets.isEmpty ())
+            return;
+
+        ZyniPeer peer = agent.findPeer (targets.get (rand.nextInt (targets.size ())));
+        if (peer == null)
+            return;
+        send (peer, Swim.Probe.newBuilder ()
+                        .setSeq (0)
+                        .setSender (self (Status.ALIVE))
+                        .setKnown (peer.getHeaders ().getMaxVersion ())
+                        .setSync (true)
+                        .build ());
+    }
+
+    private void requestProbes ()
+    {
+        targets.clear ();
+        probed.sample (indirect + 1, targets);
+        targets.remove (probing);
+        while (targets.size () > indirect)
+            targets.remove (targets.size () - 1);
+        if (targets.isEmpty ())
+            return;
+
+        indirectProbes.inc ();
+        agent.multicast (Swim.ProbeRequest.newBuilder ()
+                            .setSeq (seq)
+                            .setSender (self (Status.ALIVE))
+                            .setTarget (ZyniMsg.stringToAddress (probing))
+                            .addAllUpdate (piggyback ())
+                            .build (), targets);
+    }
+
+    private void checkState (long now)
+    {
+        for (Member member : members.values ()) {
+            if (removedEndpoints.containsKey (member.endpoint))
+                continue;
+
+            if (member.status == Status.SUSPECT && now - member.since >= suspicionTimeout (member)) {
+                LOG.info ("convict {}", member.endpoint);
+                markDead (member, now);
+            } else if (member.status == Status.DEAD && now - member.since > expired) {
+                LOG.info ("expired {}", member.endpoint);
+                removeEndpoint (member);
+            }
+        }
+
+        Iterator <Entry <String, Long>> it = removedEndpoints.entrySet ().iterator ();
+        while (it.hasNext ()) {
+            Map.Entry <String, Long> entry = it.next ();
+            if (now - entry.getValue () > evasive * 2) {
+                agent.removePeer (entry.getKey ());
+                members.remove (entry.getKey ());
+                it.remove ();
+            }
+        }
+    }
+
+    //  Records to piggyback, those sent the least first. A record is
+    //  dropped once sent retransmit times the log of the group size
+    private List <Swim.Member> piggyback ()
+    {
+        List <Update> chosen = new ArrayList <Update> (updates.values ());
+        if (chosen.size () > piggyback) {
+            Collections.sort (chosen, FEWEST_SENT);
+            chosen = chosen.subList (0, piggyback);
+        }
+
+        int limit = retransmit * (int) Math.ceil (Math.log10 (members.size () + 2));
+        List <Swim.Member> records = new ArrayList <Swim.Member> (chosen.size ());
+        for (Update update : chosen) {
+            records.add (update.record);
+            if (++update.sent >= limit)
+                updates.remove (update.endpoint);
+        }
+        return records;
+    }
+
+    private void spread (String endpoint, Swim.Member record)
+    {
+        updates.put (endpoint, new Update (endpoint, record));
+    }
+
+    private void spread (Member member)
+    {
+        spread (member.endpoint, record (member));
+    }
+
+    private Swim.Member record (Member member)
+    {
+        Swim.Member.Builder builder = Swim.Member.newBuilder ()
+                                        .setAddress (ZyniMsg.stringToAddress (member.endpoint))
+                                        .setGeneration (member.generation)
+                                        .setIncarnation (member.incarnation)
+                                        .setStatus (member.status)
+                                        .setMaxVersion (member.version);
+        if (member.status == Status.SUSPECT && member.suspectedBy != null)
+            builder.setFrom (member.suspectedBy);
+        return builder.build ();
+    }
+
+    private Swim.Member self (Status status)
+    {
+        return Swim.Member.newBuilder ()
+                    .setAddress (address)
+                    .setGeneration (generation)
+                    .setIncarnation (incarnation)
+                    .setStatus (status)
+                    .setMaxVersion (agent.getHeaders ().getMaxVersion ())
+                    .build ();
+    }
+
+    //  From suspicionMax times the minimum down to the minimum with the log
+    //  of the confirmations, no more than other members could send
+    private long suspicionTimeout (Member member)
+    {
+        double min = suspicion * Math.max (1, Math.log10 (members.size () + 1)) * interval;
+        double max = min * suspicionMax;
+        int expected = Math.min (confirmations, members.size () - 1);
+        int confirmed = Math.min (expected, member.suspectors.size () - 1);
+
+        double timeout = min;
+        if (expected > 0)
+            timeout = Math.max (min, max - (max - min) * Math.log (confirmed + 1) / Math.log (expected + 1));
+        return (long) (timeout * health.multiplier ());
+    }
+
+    private void apply (List <Swim.Member> records, long now)
+    {
+        for (Swim.Member record : records)
+            apply (record, now);
+    }
+
+    private void apply (Swim.Member record, long now)
+    {
+        String endpoint = ZyniMsg.addressToString (record.getAddress ());
+        if (endpoint.equals (agent.getAddress ())) {
+            refute (record);
+            return;
+        }
+        if (removedEndpoints.containsKey (endpoint))
+            return;
+
+        Member member = members.get (endpoint);
+        Status status = record.getStatus ();
+        if (member == null) {
+            if (status == Status.ALIVE || status == Status.SUSPECT)
+                newMember (endpoint, record, now);
+            return;
+        }
+
+        if (record.getGeneration () < member.generation)
+            return;
+        if (record.getGeneration () > member.generation) {
+            restart (member, record, now);
+            return;
+        }
+
+        //  Versions only grow within a generation, whatever the status says
+        setVersion (member, record.getMaxVersion ());
+
+        int incarnation = record.getIncarnation ();
+        switch (status) {
+        case ALIVE:
+            if (incarnation > member.incarnation) {
+                member.incarnation = incarnation;
+                if (member.status != Status.ALIVE)
+                    markAlive (member);
+                spread (member);
+            } else if (incarnation == member.incarnation && member.status == Status.ALIVE
+                    && record.getMaxVersion () > versionSpread (member)) {
+                spread (member);
+            }
+            break;
+        case SUSPECT:
+            if (member.status == Status.ALIVE && incarnation >= member.incarnation)
+                suspect (member, incarnation, suspector (record), now);
+            else if (member.status == Status.SUSPECT && incarnation > member.incarnation)
+                suspect (member, incarnation, suspector (record), member.since);
+            else if (member.status == Status.SUSPECT && incarnation == member.incarnation)
+                confirm (member, suspector (record));
+            break;
+        case DEAD:
+            if (member.status != Status.DEAD && member.status != Status.LEFT
+                    && incarnation >= member.incarnation) {
+                member.incarnation = incarnation;
+                markDead (member, now);
+            }
+            break;
+        case LEFT:
+            leave (member);
+            break;
+        }
+    }
+
+    //  Version in the record of the member being spread, if any
+    private int versionSpread (Member member)
+    {
+        Update update = updates.get (member.endpoint);
+        return update == null ? 0 : update.record.getMaxVersion ();
+    }
+
+    //  Someone suspects us or thinks we are dead, tell everyone otherwise
+    private void refute (Swim.Member record)
+    {
+        Status status = record.getStatus ();
+        if (record.getGeneration () != generation || record.getIncarnation () < incarnation
+                || status != Status.SUSPECT && status != Status.DEAD)
+            return;
+
+        incarnation = record.getIncarnation () + 1;
+        refuted.inc ();
+        health.raise ();
+        LOG.info ("refute {} at incarnation {}", status, incarnation);
+        spread (agent.getAddress (), self (Status.ALIVE));
+    }
+
+    private void newMember (final String endpoint, Swim.Member record, long now)
+    {
+        ZyniPeer peer = agent.connectPeer (endpoint);
+        agent.onEvent (ZyniEvent.PEER_ENTER, endpoint);
+
+        agent.getMetrics ().gauge ("peer." + endpoint + ".phi", new Metrics.Gauge ()
+        {
+            @Override
+            public double value ()
+            {
+                return failureDetector.phi (endpoint, System.currentTimeMillis ());
+            }
+        });
+        peer.refresh (evasive, expired);
+
+        Member member = new Member (endpoint, record);
+        members.put (endpoint, member);
+        peer.attach (member);
+        setVersion (member, record.getMaxVersion ());
+
+        //  Probed and reported alive like any other, even if heard of as suspect
+        markAlive (member);
+        if (record.getStatus () == Status.SUSPECT)
+            suspect (member, record.getIncarnation (), suspector (record), now);
+        spread (member);
+    }
+
+    private void restart (Member member, Swim.Member record, long now)
+    {
+        ZyniPeer peer = agent.findPeer (member.endpoint);
+        agent.onEvent (ZyniEvent.PEER_RESTART, member.endpoint);
+        failureDetector.clear (member.endpoint);
+        peer.clearHeaders ();
+
+        member.generation = record.getGeneration ();
+        member.incarnation = record.getIncarnation ();
+        member.version = 0;
+        setVersion (member, record.getMaxVersion ());
+
+        switch (record.getStatus ()) {
+        case ALIVE:
+            if (member.status != Status.ALIVE)
+                markAlive (member);
+            break;
+        case SUSPECT:
+            if (member.status != Status.ALIVE)
+                markAlive (member);
+            suspect (member, record.getIncarnation (), suspector (record), now);
+            break;
+        case DEAD:
+            markDead (member, now);
+            break;
+        case LEFT:
+            leave (member);
+            return;
+        }
+        spread (member);
+    }
+
+    private void setVersion (Member member, int version)
+    {
+        if (version <= member.version)
+            return;
+        member.version = version;
+
+        ZyniPeer peer = agent.findPeer (member.endpoint);
+        if (peer != null && member.status != Status.DEAD
+                && version > peer.getHeaders ().getMaxVersion ())
+            stale.add (member.endpoint);
+    }
+
+    private void markAlive (Member member)
+    {
+        member.status = Status.ALIVE;
+        probed.add (member.endpoint);
+
+        agent.onEvent (ZyniEvent.PEER_ALIVE, member.endpoint, member);
+    }
+
+    //  Member that suspects, the suspect itself if the record has none
+    private static Common.Address suspector (Swim.Member record)
+    {
+        return record.hasFrom () ? record.getFrom () : record.getAddress ();
+    }
+
+    private void suspect (Member member, int incarnation, Common.Address from, long now)
+    {
+        LOG.info ("suspect {}", member.endpoint);
+        member.status = Status.SUSPECT;
+        member.incarnation = incarnation;
+        member.since = now;
+        member.suspectedBy = from;
+        member.suspectors.clear ();
+        member.suspectors.add (ZyniMsg.addressToString (from));
+        suspected.inc ();
+        spread (member);
+    }
+
+    //  Another member suspects it too, which shortens the suspicion. Only
+    //  new confirmations spread, and only as many as count
+    private void confirm (Member member, Common.Address from)
+    {
+        if (member.suspectors.size () > confirmations
+                || !member.suspectors.add (ZyniMsg.addressToString (from)))
+            return;
+        member.suspectedBy = from;
+        spread (member);
+    }
+
+    private void markDead (Member member, long now)
+    {
+        member.status = Status.DEAD;
+        member.since = now;
+        probed.remove (member.endpoint);
+        stale.remove (member.endpoint);
+        spread (member);
+
+        agent.onEvent (ZyniEvent.PEER_DEAD, member.endpoint, member);
+    }
+
+    private void leave (Member member)
+    {
+        member.status = Status.LEFT;
+        spread (member);
+        removeEndpoint (member);
+    }
+
+    private void removeEndpoint (Member member)
+    {
+        String endpoint = member.endpoint;
+        agent.onEvent (ZyniEvent.PEER_EXIT, endpoint);
+
+        probed.remove (endpoint);
+        stale.remove (endpoint);
+        failureDetector.remove (endpoint);
+        agent.getMetrics ().remove ("peer." + endpoint + ".phi");
+        removedEndpoints.put (endpoint, System.currentTimeMillis ());
+
+        agent.disconnectPeer (endpoint);
+    }
+
+    //  A message straight from the peer. One we suspect or think dead
+    //  hears of it with our next messages, to refute it
+    private void heard (ZyniPeer peer)
+    {
+        Member member = members.get (peer.getEndpoint ());
+        if (member == null)
+            return;
+
+        peer.refresh (evasive, expired);
+        failureDetector.report (peer.getEndpoint ());
+        if (member.status == Status.SUSPECT || member.status == Status.DEAD)
+            spread (member);
+    }
+
+    @Override
+    public void processCommand (String command, ZMsg msg)
+    {
+
+    }
+
+    @Override
+    public void processCallback (ZyniMsg msg)
+    {
+        String endpoint = msg.getIdentityString ();
+        ZyniPeer sender = agent.findPeer (endpoint);
+        if (sender == null)
+            sender = agent.connectPeer (endpoint);
+
+        if (LOG.isDebugEnabled ()) {
+            LOG.debug ("{} ==> {}\n{}", endpoint, agent.getAddress (), msg.dumps ());
+        }
+
+        Message body = msg.getBody ();
+        long now = System.currentTimeMillis ();
+
+        if (body instanceof Swim.Probe) {
+            Swim.Probe probe = (Swim.Probe) body;
+            apply (probe.getSender (), now);
+            apply (probe.getUpdateList (), now);
+            heard (sender);
+            answer (sender, probe);
+        } else if (body instanceof Swim.ProbeAck) {
+            Swim.ProbeAck ack = (Swim.ProbeAck) body;
+            apply (ack.getSender (), now);
+            apply (ack.getUpdateList (), now);
+            heard (sender);
+            acked (sender, ack);
+        } else if (body instanceof Swim.ProbeRequest) {
+            Swim.ProbeRequest request = (Swim.ProbeRequest) body;
+            apply (request.getSender (), now);
+            apply (request.getUpdateList (), now);
+            heard (sender);
+
+            ZyniPeer target = agent.findPeer (ZyniMsg.addressToString (request.getTarget ()));
+            if (target != null)
+                send (target, Swim.Probe.newBuilder ()
+                                .setSeq (request.getSeq ())
+                                .setSender (self (Status.ALIVE))
+                                .setOrigin (request.getSender ().getAddress ())
+                                .addAllUpdate (piggyback ())
+                                .build ());
+        } else if (body instanceof Swim.Leave) {
+            apply (((Swim.Leave) body).getSender ().toBuilder ().setStatus (Status.LEFT).build (), now);
+        } else {
+            throw new IllegalStateException ("Illegal Message " + msg.getType ());
+        }
+    }
+
+    //  A direct probe gets our headers above the version the prober has,
+    //  one on behalf of another member goes back to the intermediary
+    private void answer (ZyniPeer sender, Swim.Probe probe)
+    {
+        Swim.ProbeAck.Builder builder = Swim.ProbeAck.newBuilder ()
+                                            .setSeq (probe.getSeq ())
+                                            .setSender (self (Status.ALIVE));
+        if (probe.hasOrigin ())
+            builder.setOrigin (probe.getOrigin ());
+        else {
+            List <VersionedValue> newer = agent.getHeaders ().newer (probe.getKnown ());
+            builder.addAllExtra (newer.subList (0, entropy.limit (newer, System.nanoTime ())));
+        }
+
+        if (probe.getSync ()) {
+            for (Member member : members.values ()) {
+                if (member.status == Status.ALIVE || member.status == Status.SUSPECT)
+                    builder.addUpdate (record (member));
+            }
+        }
+        builder.addAllUpdate (piggyback ());
+        send (sender, builder.build ());
+    }
+
+    private void acked (ZyniPeer sender, Swim.ProbeAck ack)
+    {
+        if (ack.hasOrigin () && !ack.getOrigin ().equals (address)) {
+            //  Relay the answer to the member that asked for the probe
+            ZyniPeer origin = agent.findPeer (ZyniMsg.addressToString (ack.getOrigin ()));
+            if (origin != null)
+                send (origin, Swim.ProbeAck.newBuilder ()
+                                .setSeq (ack.getSeq ())
+                                .setSender (self (Status.ALIVE))
+                                .setTarget (ack.getSender ().getAddress ())
+                                .addAllUpdate (piggyback ())
+                                .build ());
+            return;
+        }
+
+        String target = ack.hasTarget () ? ZyniMsg.addressToString (ack.getTarget ())
+                                         : sender.getEndpoint ();
+        if (target.equals (probing) && ack.getSeq () == seq)
+            acked = true;
+
+        if (ack.getExtraCount () == 0)
+            return;
+
+        Member member = members.get (sender.getEndpoint ());
+        if (member == null || member.generation != ack.getSender ().getGeneration ())
+            return;
+
+        sender.updateHeaders (ack.getExtraList ());
+        for (VersionedValue value : ack.getExtraList ())
+            agent.onEvent (ZyniEvent.PEER_HEADER, sender.getEndpoint (),
+                    value.getKey (), value.getValue ());
+
+        if (member.version > sender.getHeaders ().getMaxVersion ())
+            stale.add (member.endpoint);
+        else
+            stale.remove (member.endpoint);
+    }
+
+    private void send (ZyniPeer peer, Message msg)
+    {
+        peer.send (new ZyniMsg (msg));
+    }
+
+    @Override
+    public void onEvent (ZyniEvent event, Object ... params)
+    {
+
+    }
+
+    @Override
+    public void destroy ()
+    {
+        agent.multicast (Swim.Leave.newBuilder ().setSender (self (Status.LEFT)).build (), probed);
+    }
+}
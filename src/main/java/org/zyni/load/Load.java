@@ -0,0 +1,112 @@
+package org.zyni.load;
+
+import java.util.Locale;
+
+/**
+ * Load of a node as published in its LOAD header, "cpu,loop,queue,inflight".
+ *
+ * cpu is the system load average per core, loop the busy fraction of the
+ * agent loop, queue the messages waiting in peer batches, for peer credit
+ * and in worker queues, inflight the work the application reported as
+ * started but not finished.
+ */
+public class Load
+{
+    public static final String HEADER = "LOAD";
+
+    public static final Load IDLE = new Load (0, 0, 0, 0);
+
+    //  Smallest changes worth a new header version
+    private static final double RATIO_STEP = 0.05;
+    private static final long COUNT_STEP = 8;
+    private static final double RELATIVE_STEP = 0.2;
+
+    private final double cpu;
+    private final double loop;
+    private final long queue;
+    private final long inflight;
+
+    public Load (double cpu, double loop, long queue, long inflight)
+    {
+        this.cpu = cpu;
+        this.loop = loop;
+        this.queue = queue;
+        this.inflight = inflight;
+    }
+
+    /**
+     * @return the load of a LOAD header, null if it is malformed
+     */
+    public static Load parse (String value)
+    {
+        if (value == null)
+            return null;
+
+        String [] fields = value.split (",");
+        if (fields.length != 4)
+            return null;
+        try {
+            return new Load (Double.parseDouble (fields [0]), Double.parseDouble (fields [1]),
+                    Long.parseLong (fields [2]), Long.parseLong (fields [3]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public String format ()
+    {
+        return String.format (Locale.ROOT, "%.2f,%.2f,%d,%d", cpu, loop, queue, inflight);
+    }
+
+    public double getCpu ()
+    {
+        return cpu;
+    }
+
+    public double getLoop ()
+    {
+        return loop;
+    }
+
+    public long getQueue ()
+    {
+        return queue;
+    }
+
+    public long getInflight ()
+    {
+        return inflight;
+    }
+
+    /**
+     * @return work waiting on the node, what the balancer compares first
+     */
+    public long getBacklog ()
+    {
+        return queue + inflight;
+    }
+
+    /**
+     * True if any field moved by more than a fifth of its old value in
+     * other, the load last published, and at least 0.05 for ratios or 8 for
+     * counts, so jitter does not bump the header version
+     */
+    public boolean differs (Load other)
+    {
+        return differs (cpu, other.cpu, RATIO_STEP)
+                || differs (loop, other.loop, RATIO_STEP)
+                || differs (queue, other.queue, COUNT_STEP)
+                || differs (inflight, other.inflight, COUNT_STEP);
+    }
+
+    private static boolean differs (double value, double old, double step)
+    {
+        return Math.abs (value - old) > Math.max (step, RELATIVE_STEP * Math.abs (old));
+    }
+
+    @Override
+    public String toString ()
+    {
+        return format ();
+    }
+}
@@ -0,0 +1,206 @@
+package org.zyni.load;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zeromq.ZMsg;
+import org.zyni.IAgentHandler;
+import org.zyni.ZyniAgent;
+import org.zyni.ZyniEvent;
+import org.zyni.ZyniMsg;
+import org.zyni.ZyniPeer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Chooses the least loaded live peer by the power of two choices: two
+ * distinct live peers are picked at random and the one with the smaller
+ * backlog wins, ties going to the less busy agent loop. Register it with
+ * ZyniAgent.registerEventHandler, choose can be called from any thread.
+ *
+ * A LOAD header is seconds old when it arrives, so every peer chosen since
+ * its last header counts as one more unit of backlog. Without that, every
+ * node would send to the same idle peer until it publishes again.
+ */
+public class LoadBalancer implements IAgentHandler
+{
+    private final static Logger LOG = LoggerFactory.getLogger (LoadBalancer.class);
+
+    private final Map <String, Entry> entries;  //  Live peers, guarded by this
+    private final List <String> alive;          //  Same keys, to pick at random
+    private final Random random;
+
+    private ZyniAgent agent;
+
+    private static class Entry
+    {
+        private Load load = Load.IDLE;
+        private long assigned;                  //  Chosen since the last header
+
+        private long backlog ()
+        {
+            return load.getBacklog () + assigned;
+        }
+    }
+
+    public LoadBalancer ()
+    {
+        entries = new HashMap <String, Entry> ();
+        alive = new ArrayList <String> ();
+        random = new Random ();
+    }
+
+    @Override
+    public void initialize (ZyniAgent agent, Object ... args)
+    {
+        this.agent = agent;
+    }
+
+    /**
+     * @return the chosen live peer, null if there is none
+     */
+    public synchronized String choose ()
+    {
+        return choose (alive);
+    }
+
+    /**
+     * Choose among the given endpoints only, like the owners of a key.
+     * Endpoints that are not live are skipped
+     * @return the chosen endpoint, null if none is live
+     */
+    public synchronized String choose (Collection <String> candidates)
+    {
+        List <String> live = alive;
+        if (candidates != alive) {
+            live = new ArrayList <String> (candidates.size ());
+            for (String endpoint : candidates) {
+                if (entries.containsKey (endpoint))
+                    live.add (endpoint);
+            }
+        }
+
+        int size = live.size ();
+        if (size == 0)
+            return null;
+        if (size == 1)
+            return assign (live.get (0));
+
+        int first = random.nextInt (size);
+        int second = random.nextInt (size - 1);
+        if (second >= first)
+            second++;
+        return assign (better (live.get (first), live.get (second)));
+    }
+
+    /**
+     * @return the last load heard from the peer, null if it is not live
+     */
+    public synchronized Load getLoad (String endpoint)
+    {
+        Entry entry = entries.get (endpoint);
+        return entry == null ? null : entry.load;
+    }
+
+    private String better (String a, String b)
+    {
+        Entry ea = entries.get (a);
+        Entry eb = entries.get (b);
+        long ba = ea.backlog ();
+        long bb = eb.backlog ();
+        if (ba != bb)
+            return ba < bb ? a : b;
+        return ea.load.getLoop () <= eb.load.getLoop () ? a : b;
+    }
+
+    private String assign (String endpoint)
+    {
+        entries.get (endpoint).assigned++;
+        return endpoint;
+    }
+
+    @Override
+    public void onEvent (ZyniEvent event, Object ... params)
+    {
+        switch (event) {
+        case PEER_ALIVE:
+            String endpoint = (String) params [0];
+            ZyniPeer peer = agent.findPeer (endpoint);
+            alive (endpoint, peer == null ? null : peer.getHeaders ().getValue (Load.HEADER));
+            break;
+        case PEER_DEAD:
+        case PEER_EXIT:
+            remove ((String) params [0]);
+            break;
+        case PEER_HEADER:
+            if (Load.HEADER.equals (params [1]))
+                update ((String) params [0], (String) params [2]);
+            break;
+        default:
+            break;
+        }
+    }
+
+    private synchronized void alive (String endpoint, String value)
+    {
+        if (entries.containsKey (endpoint))
+            return;
+
+        entries.put (endpoint, new Entry ());
+        alive.add (endpoint);
+        if (value != null)
+            update (endpoint, value);
+    }
+
+    private synchronized void remove (String endpoint)
+    {
+        if (entries.remove (endpoint) != null)
+            alive.remove (endpoint);
+    }
+
+    private synchronized void update (String endpoint, String value)
+    {
+        Entry entry = entries.get (endpoint);
+        if (entry == null)
+            return;
+
+        Load load = Load.parse (value);
+        if (load == null) {
+            LOG.warn ("bad {} {} from {}", Load.HEADER, value, endpoint);
+            return;
+        }
+        entry.load = load;
+        entry.assigned = 0;
+    }
+
+    @Override
+    public int getSignature ()
+    {
+        return 0;
+    }
+
+    @Override
+    public void processCommand (String command, ZMsg msg)
+    {
+    }
+
+    @Override
+    public void processCallback (ZyniMsg msg)
+    {
+    }
+
+    @Override
+    public long processTimer (long interval)
+    {
+        return 0;
+    }
+
+    @Override
+    public void destroy ()
+    {
+    }
+}
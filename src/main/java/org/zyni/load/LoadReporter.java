@@ -0,0 +1,141 @@
+package org.zyni.load;
+
+import org.zeromq.ZMsg;
+import org.zyni.IAgentHandler;
+import org.zyni.Metrics;
+import org.zyni.ZyniAgent;
+import org.zyni.ZyniEvent;
+import org.zyni.ZyniMsg;
+import org.zyni.ZyniPeer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+/**
+ * Measures the load of this node and publishes it as the LOAD header, so it
+ * reaches every peer with the gossip state. Register it with
+ * ZyniAgent.registerTimer (interval, reporter).
+ *
+ * The header only gets a new version when the load changed significantly,
+ * see Load.differs, or when load.refresh milliseconds passed since the last
+ * one and the value changed at all. Every version is resent to each peer
+ * gossiping with us, so publishing on jitter would flood the gossip.
+ *
+ * The loop utilization needs agent.metrics. load.inflight lists the names
+ * of gauges, comma separated, whose sum is the in-flight work.
+ */
+public class LoadReporter implements IAgentHandler
+{
+    private final OperatingSystemMXBean os;
+    private final int cores;
+
+    private ZyniAgent agent;
+    private Metrics.Histogram loopTime;
+    private String [] inflight;
+    private long refresh;
+
+    private Load published;
+    private long publishedAt;
+    private long lastBusy;                      //  Loop time so far, in us
+    private long lastTime;                      //  When the loop time was read, in ns
+
+    public LoadReporter ()
+    {
+        os = ManagementFactory.getOperatingSystemMXBean ();
+        cores = Runtime.getRuntime ().availableProcessors ();
+    }
+
+    @Override
+    public void initialize (ZyniAgent agent, Object ... args)
+    {
+        this.agent = agent;
+        loopTime = agent.getMetrics ().histogram ("agent.loop.us");
+        refresh = Long.parseLong (agent.getConfig ("load.refresh", "30000"));
+
+        String names = agent.getConfig ("load.inflight", "").trim ();
+        inflight = names.isEmpty () ? new String [0] : names.split ("\\s*,\\s*");
+
+        lastBusy = loopTime.getSum ();
+        lastTime = System.nanoTime ();
+    }
+
+    /**
+     * @return the load last published, null before the first interval
+     */
+    public Load getPublished ()
+    {
+        return published;
+    }
+
+    /**
+     * @return the current load of this node
+     */
+    public Load measure ()
+    {
+        double cpu = Math.max (0, os.getSystemLoadAverage ()) / cores;
+
+        long now = System.nanoTime ();
+        long busy = loopTime.getSum ();
+        double loop = now > lastTime ? Math.min (1.0, (busy - lastBusy) * 1000.0 / (now - lastTime)) : 0;
+        lastBusy = busy;
+        lastTime = now;
+
+        long queue = 0;
+        for (ZyniPeer peer : agent.getPeers ().values ())
+            queue += peer.getPending () + peer.getQueued ();
+        queue += (long) value ("agent.workers.queued");
+
+        double work = 0;
+        for (String name : inflight)
+            work += value (name);
+
+        return new Load (cpu, loop, queue, Math.round (work));
+    }
+
+    private double value (String name)
+    {
+        Object metric = agent.getMetrics ().get (name);
+        return metric instanceof Metrics.Gauge ? ((Metrics.Gauge) metric).value () : 0;
+    }
+
+    @Override
+    public long processTimer (long interval)
+    {
+        Load load = measure ();
+        long now = System.currentTimeMillis ();
+
+        if (published == null || load.differs (published)
+                || (now - publishedAt >= refresh && !load.format ().equals (published.format ()))) {
+            agent.putHeader (Load.HEADER, load.format ());
+            published = load;
+            publishedAt = now;
+        }
+        return interval;
+    }
+
+    @Override
+    public int getSignature ()
+    {
+        return 0;
+    }
+
+    @Override
+    public void processCommand (String command, ZMsg msg)
+    {
+    }
+
+    @Override
+    public void onEvent (ZyniEvent event, Object ... params)
+    {
+    }
+
+    @Override
+    public void processCallback (ZyniMsg msg)
+    {
+    }
+
+    @Override
+    public void destroy ()
+    {
+    }
+}
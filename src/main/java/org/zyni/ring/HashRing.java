@@ -0,0 +1,318 @@
+package org.zyni.ring;
+
+import org.zyni.IPartitioner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Consistent hashing ring with virtual nodes.
+ *
+ * The ring is an immutable snapshot of sorted tokens swapped on every
+ * membership change, so lookups are a lock-free O(log n) binary search from
+ * any thread. Changes are serialized and merge only the tokens of the
+ * member that changed. Each change returns the ranges that moved between
+ * owners.
+ */
+public class HashRing implements IPartitioner
+{
+    //  Peer header holding the weight of a node, 1 by default
+    public static final String WEIGHT_HEADER = "RING.WEIGHT";
+
+    private final int vnodes;                      //  Tokens per unit of weight
+    private final Map <String, Member> members;    //  Guarded by this
+    private volatile Snapshot snapshot;
+
+    private static class Member
+    {
+        private final double weight;
+        private final long [] tokens;
+
+        private Member (double weight, long [] tokens)
+        {
+            this.weight = weight;
+            this.tokens = tokens;
+        }
+    }
+
+    private static class Snapshot
+    {
+        private final long [] tokens;
+        private final String [] owners;
+        private final long version;
+
+        private Snapshot (long [] tokens, String [] owners, long version)
+        {
+            this.tokens = tokens;
+            this.owners = owners;
+            this.version = version;
+        }
+
+        //  Index of the first token at or after hash, wrapping around
+        private int find (long hash)
+        {
+            int idx = Arrays.binarySearch (tokens, hash);
+            if (idx < 0)
+                idx = -idx - 1;
+            else
+                while (idx > 0 && tokens [idx - 1] == hash)
+                    idx--;
+            return idx == tokens.length ? 0 : idx;
+        }
+
+        private String lookup (long hash)
+        {
+            return tokens.length == 0 ? null : owners [find (hash)];
+        }
+
+        private boolean hasPrev ()
+        {
+            return tokens.length > 0;
+        }
+
+        //  Closest token before hash, hash itself if it is the only one
+        private long prev (long hash)
+        {
+            int idx = Arrays.binarySearch (tokens, hash);
+            if (idx < 0)
+                idx = -idx - 1;
+            else
+                while (idx > 0 && tokens [idx - 1] == hash)
+                    idx--;
+            return tokens [(idx == 0 ? tokens.length : idx) - 1];
+        }
+    }
+
+    public HashRing (int vnodes)
+    {
+        assert (vnodes > 0);
+        this.vnodes = vnodes;
+        members = new HashMap <String, Member> ();
+        snapshot = new Snapshot (new long [0], new String [0], 0);
+    }
+
+    /**
+     * 64 bit hash of a key, FNV-1a finished with the MurmurHash3 mixer
+     */
+    public static long hash (String key)
+    {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length (); i++) {
+            h ^= key.charAt (i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return owner of the key, null if the ring is empty
+     */
+    public String lookup (String key)
+    {
+        return snapshot.lookup (hash (key));
+    }
+
+    public String lookup (long hash)
+    {
+        return snapshot.lookup (hash);
+    }
+
+    /**
+     * @return up to count distinct owners, walking clockwise from the key
+     */
+    public List <String> lookup (String key, int count)
+    {
+        Snapshot current = snapshot;
+        List <String> owners = new ArrayList <String> (count);
+        if (current.tokens.length == 0)
+            return owners;
+
+        int idx = current.find (hash (key));
+        for (int i = 0; i < current.tokens.length && owners.size () < count; i++) {
+            String owner = current.owners [(idx + i) % current.tokens.length];
+            if (!owners.contains (owner))
+                owners.add (owner);
+        }
+        return owners;
+    }
+
+    @Override
+    public List <String> owners (String key, int count)
+    {
+        return lookup (key, count);
+    }
+
+    public synchronized Set <String> getMembers ()
+    {
+        return Collections.unmodifiableSet (new HashSet <String> (members.keySet ()));
+    }
+
+    public synchronized boolean contains (String endpoint)
+    {
+        return members.containsKey (endpoint);
+    }
+
+    /**
+     * @return number of changes applied so far
+     */
+    public long getVersion ()
+    {
+        return snapshot.version;
+    }
+
+    /**
+     * Add the endpoint, or change its weight. A weight of 0 or less removes it
+     * @return ranges that moved
+     */
+    public synchronized List <Range> add (String endpoint, double weight)
+    {
+        if (weight <= 0)
+            return remove (endpoint);
+
+        Member old = members.get (endpoint);
+        if (old != null && old.weight == weight)
+            return Collections.emptyList ();
+
+        int count = (int) Math.max (1, Math.round (weight * vnodes));
+        long [] tokens = new long [count];
+        for (int i = 0; i < count; i++)
+            tokens [i] = hash (endpoint + "#" + i);
+        Arrays.sort (tokens);
+
+        Member member = new Member (weight, tokens);
+        members.put (endpoint, member);
+        return update (endpoint, old, member);
+    }
+
+    /**
+     * @return ranges that moved
+     */
+    public synchronized List <Range> remove (String endpoint)
+    {
+        Member old = members.remove (endpoint);
+        if (old == null)
+            return Collections.emptyList ();
+
+        return update (endpoint, old, null);
+    }
+
+    //  Swap in a snapshot with the tokens of endpoint replaced, and diff the
+    //  ownership around the tokens that changed
+    private List <Range> update (String endpoint, Member old, Member member)
+    {
+        Snapshot before = snapshot;
+        long [] added = member == null ? new long [0] : member.tokens;
+
+        //  Drop the old tokens of endpoint, merge the new ones in
+        int size = before.tokens.length - (old == null ? 0 : old.tokens.length) + added.length;
+        long [] tokens = new long [size];
+        String [] owners = new String [size];
+        int a = 0;
+        int n = 0;
+        for (int i = 0; i < before.tokens.length; i++) {
+            if (before.owners [i].equals (endpoint))
+                continue;
+            while (a < added.length && added [a] < before.tokens [i]) {
+                tokens [n] = added [a++];
+                owners [n++] = endpoint;
+            }
+            tokens [n] = before.tokens [i];
+            owners [n++] = before.owners [i];
+        }
+        while (a < added.length) {
+            tokens [n] = added [a++];
+            owners [n++] = endpoint;
+        }
+
+        Snapshot after = new Snapshot (tokens, owners, before.version + 1);
+        snapshot = after;
+
+        //  Only arcs ending at a token of endpoint, before or after, can change
+        List <Range> moved = new ArrayList <Range> ();
+        if (old != null)
+            diff (before, after, old.tokens, moved);
+        diff (before, after, added, moved);
+        return coalesce (moved);
+    }
+
+    private void diff (Snapshot before, Snapshot after, long [] changed, List <Range> moved)
+    {
+        for (long token : changed) {
+            String from = before.lookup (token);
+            String to = after.lookup (token);
+            if (to == null || (from != null && from.equals (to)))
+                continue;
+
+            //  Arc from the closest token of either ring up to this one
+            long start = token;
+            if (before.hasPrev ())
+                start = closest (token, before.prev (token), start);
+            if (after.hasPrev ())
+                start = closest (token, after.prev (token), start);
+
+            moved.add (new Range (start, token, from, to));
+        }
+    }
+
+    //  Of two tokens before end, the one closer to it going counterclockwise.
+    //  end itself stands for a whole turn
+    private static long closest (long end, long a, long b)
+    {
+        long da = end - a;
+        long db = end - b;
+        if (da == 0)
+            return b;
+        if (db == 0)
+            return a;
+        //  Unsigned comparison of the distances
+        return da + Long.MIN_VALUE < db + Long.MIN_VALUE ? a : b;
+    }
+
+    //  Sort by end and join arcs that touch and move between the same owners
+    private static List <Range> coalesce (List <Range> moved)
+    {
+        if (moved.size () < 2)
+            return moved;
+
+        Collections.sort (moved, new Comparator <Range> ()
+        {
+            @Override
+            public int compare (Range r1, Range r2)
+            {
+                return r1.getEnd () < r2.getEnd () ? -1 : (r1.getEnd () == r2.getEnd () ? 0 : 1);
+            }
+        });
+
+        List <Range> result = new ArrayList <Range> (moved.size ());
+        Range last = null;
+        for (Range range : moved) {
+            if (last != null && last.getEnd () == range.getStart ()
+                    && equals (last.getFrom (), range.getFrom ())
+                    && last.getTo ().equals (range.getTo ())) {
+                last = new Range (last.getStart (), range.getEnd (), last.getFrom (), last.getTo ());
+                result.set (result.size () - 1, last);
+                continue;
+            }
+            result.add (range);
+            last = range;
+        }
+        return result;
+    }
+
+    private static boolean equals (String a, String b)
+    {
+        return a == null ? b == null : a.equals (b);
+    }
+}
@@ -0,0 +1,57 @@
+package org.zyni.ring;
+
+/**
+ * Arc of the hash ring, from start (exclusive) to end (inclusive) going
+ * clockwise. start == end is the whole ring. Reported when the arc moves
+ * from one owner to another, from is null when the ring was empty.
+ */
+public class Range
+{
+    private final long start;
+    private final long end;
+    private final String from;
+    private final String to;
+
+    public Range (long start, long end, String from, String to)
+    {
+        this.start = start;
+        this.end = end;
+        this.from = from;
+        this.to = to;
+    }
+
+    public long getStart ()
+    {
+        return start;
+    }
+
+    public long getEnd ()
+    {
+        return end;
+    }
+
+    public String getFrom ()
+    {
+        return from;
+    }
+
+    public String getTo ()
+    {
+        return to;
+    }
+
+    public boolean contains (long hash)
+    {
+        if (start == end)
+            return true;
+        if (start < end)
+            return hash > start && hash <= end;
+        return hash > start || hash <= end;        //  Wraps around
+    }
+
+    @Override
+    public String toString ()
+    {
+        return String.format ("(%d, %d] %s -> %s", start, end, from, to);
+    }
+}
@@ -0,0 +1,125 @@
+package org.zyni.ring;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zeromq.ZMsg;
+import org.zyni.IAgentHandler;
+import org.zyni.ZyniAgent;
+import org.zyni.ZyniEvent;
+import org.zyni.ZyniMsg;
+import org.zyni.ZyniMsg.VersionedMap;
+import org.zyni.ZyniPeer;
+
+import java.util.List;
+
+/**
+ * Keeps a HashRing in line with the gossip membership. Register it with
+ * ZyniAgent.registerEventHandler. Alive peers are on the ring with the
+ * weight of their RING.WEIGHT header, dead or departed ones are not.
+ * Every change is raised as RING_CHANGE with the ring and the moved ranges.
+ * The ring becomes the partitioner of ZyniAgent.sendToKey.
+ */
+public class RingHandler implements IAgentHandler
+{
+    private final static Logger LOG = LoggerFactory.getLogger (RingHandler.class);
+
+    private final HashRing ring;
+    private ZyniAgent agent;
+
+    public RingHandler (HashRing ring)
+    {
+        this.ring = ring;
+    }
+
+    public HashRing getRing ()
+    {
+        return ring;
+    }
+
+    @Override
+    public void initialize (ZyniAgent agent, Object ... args)
+    {
+        this.agent = agent;
+        agent.setPartitioner (ring);
+    }
+
+    @Override
+    public int getSignature ()
+    {
+        return 0;
+    }
+
+    @Override
+    public void processCommand (String command, ZMsg msg)
+    {
+    }
+
+    @Override
+    public void onEvent (ZyniEvent event, Object ... params)
+    {
+        switch (event) {
+        case AGENT_START:
+            update (ring.add (agent.getAddress (), weight (agent.getHeaders ())));
+            break;
+        case PEER_ALIVE:
+            String endpoint = (String) params [0];
+            ZyniPeer peer = agent.findPeer (endpoint);
+            if (peer != null)
+                update (ring.add (endpoint, weight (peer.getHeaders ())));
+            break;
+        case PEER_DEAD:
+        case PEER_EXIT:
+            update (ring.remove ((String) params [0]));
+            break;
+        case PEER_HEADER:
+            if (HashRing.WEIGHT_HEADER.equals (params [1]) && ring.contains ((String) params [0]))
+                update (ring.add ((String) params [0], parse ((String) params [2])));
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void update (List <Range> moved)
+    {
+        if (moved.isEmpty ())
+            return;
+
+        if (LOG.isDebugEnabled ())
+            LOG.debug ("ring version {} moved {}", ring.getVersion (), moved);
+        agent.onEvent (ZyniEvent.RING_CHANGE, ring, moved);
+    }
+
+    private double weight (VersionedMap headers)
+    {
+        return parse (headers.getValue (HashRing.WEIGHT_HEADER));
+    }
+
+    private double parse (String value)
+    {
+        if (value == null)
+            return 1.0;
+        try {
+            return Double.parseDouble (value);
+        } catch (NumberFormatException e) {
+            LOG.warn ("bad {} {}", HashRing.WEIGHT_HEADER, value);
+            return 1.0;
+        }
+    }
+
+    @Override
+    public void processCallback (ZyniMsg msg)
+    {
+    }
+
+    @Override
+    public long processTimer (long interval)
+    {
+        return 0;
+    }
+
+    @Override
+    public void destroy ()
+    {
+    }
+}
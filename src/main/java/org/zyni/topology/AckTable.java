@@ -0,0 +1,157 @@
+package org.zyni.topology;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash table of tuple trees, in parallel primitive arrays
+ * so an entry costs 28 bytes per slot and no object. Roots are random and
+ * never 0, which marks a free slot. Linear probing, with backward shift
+ * deletion to keep probe chains short without tombstones.
+ */
+class AckTable
+{
+    private final int initialCapacity;
+    private long [] roots;
+    private long [] values;                 //  XOR of the pending edges
+    private long [] ids;                    //  Spout message id
+    private int [] origins;                 //  Spout task
+    private int mask;
+    private int size;
+
+    AckTable (int capacity)
+    {
+        assert (Integer.bitCount (capacity) == 1);
+        initialCapacity = capacity;
+        allocate (capacity);
+    }
+
+    private void allocate (int capacity)
+    {
+        roots = new long [capacity];
+        values = new long [capacity];
+        ids = new long [capacity];
+        origins = new int [capacity];
+        mask = capacity - 1;
+    }
+
+    int size ()
+    {
+        return size;
+    }
+
+    int capacity ()
+    {
+        return roots.length;
+    }
+
+    private int slot (long root)
+    {
+        long h = root * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    void put (long root, long value, long id, int origin)
+    {
+        assert (root != 0);
+        if (size + 1 > roots.length - (roots.length >> 2))
+            grow ();
+
+        int idx = slot (root);
+        while (roots [idx] != 0 && roots [idx] != root)
+            idx = (idx + 1) & mask;
+        if (roots [idx] == 0)
+            size++;
+
+        roots [idx] = root;
+        values [idx] = value;
+        ids [idx] = id;
+        origins [idx] = origin;
+    }
+
+    /**
+     * @return slot of the root, -1 if absent
+     */
+    int find (long root)
+    {
+        int idx = slot (root);
+        while (roots [idx] != 0) {
+            if (roots [idx] == root)
+                return idx;
+            idx = (idx + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return value of the slot after xoring in value
+     */
+    long xor (int idx, long value)
+    {
+        values [idx] ^= value;
+        return values [idx];
+    }
+
+    long root (int idx)
+    {
+        return roots [idx];
+    }
+
+    long id (int idx)
+    {
+        return ids [idx];
+    }
+
+    int origin (int idx)
+    {
+        return origins [idx];
+    }
+
+    void remove (int idx)
+    {
+        roots [idx] = 0;
+        size--;
+
+        //  Move back the entries of the chain that could not sit in the freed slot
+        int free = idx;
+        idx = (idx + 1) & mask;
+        while (roots [idx] != 0) {
+            int home = slot (roots [idx]);
+            if (((idx - home) & mask) >= ((idx - free) & mask)) {
+                roots [free] = roots [idx];
+                values [free] = values [idx];
+                ids [free] = ids [idx];
+                origins [free] = origins [idx];
+                roots [idx] = 0;
+                free = idx;
+            }
+            idx = (idx + 1) & mask;
+        }
+    }
+
+    /**
+     * Empty the table, giving back the memory of a grown one
+     */
+    void clear ()
+    {
+        if (roots.length > initialCapacity)
+            allocate (initialCapacity);
+        else
+            Arrays.fill (roots, 0);
+        size = 0;
+    }
+
+    private void grow ()
+    {
+        long [] oldRoots = roots;
+        long [] oldValues = values;
+        long [] oldIds = ids;
+        int [] oldOrigins = origins;
+
+        allocate (roots.length << 1);
+        size = 0;
+        for (int i = 0; i < oldRoots.length; i++) {
+            if (oldRoots [i] != 0)
+                put (oldRoots [i], oldValues [i], oldIds [i], oldOrigins [i]);
+        }
+    }
+}
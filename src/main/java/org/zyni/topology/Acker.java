@@ -0,0 +1,207 @@
+package org.zyni.topology;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zeromq.ZMsg;
+import org.zyni.IAgentHandler;
+import org.zyni.Metrics;
+import org.zyni.ZyniAgent;
+import org.zyni.ZyniEvent;
+import org.zyni.ZyniMsg;
+import org.zyni.message.Acker.Ack;
+
+/**
+ * Tracks the tuple trees of the spouts of this node.
+ *
+ * A tree starts with the XOR of the ids of the tuples a spout emitted.
+ * Every processed tuple is acked with its id XOR the ids of the tuples
+ * emitted while processing it, so the value drops to 0 exactly when the
+ * whole tree is processed, whatever the order the acks come in.
+ *
+ * Trees live in generations of AckTable rotated by the agent timer every
+ * half topology.timeout. Trees of the oldest generation fail, so a tree
+ * times out after one to one and a half topology.timeout. At most
+ * topology.acker.max trees are in flight, new ones fail beyond that.
+ */
+class Acker implements IAgentHandler
+{
+    private final static Logger LOG = LoggerFactory.getLogger (Acker.class);
+
+    private static final int GENERATIONS = 3;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Told about completed trees, on the agent thread
+     */
+    interface Listener
+    {
+        void complete (int origin, long id, boolean failed);
+    }
+
+    private final Listener listener;
+    private final AckTable [] generations;      //  Newest first
+    private ZyniAgent agent;
+    private boolean inline;
+    private long timeout;
+    private int maxInFlight;
+
+    private Metrics.Counter acked;
+    private Metrics.Counter failed;
+    private Metrics.Counter timedOut;
+
+    Acker (Listener listener)
+    {
+        this.listener = listener;
+        generations = new AckTable [GENERATIONS];
+        for (int i = 0; i < GENERATIONS; i++)
+            generations [i] = new AckTable (INITIAL_CAPACITY);
+    }
+
+    @Override
+    public void initialize (ZyniAgent agent, Object ... args)
+    {
+        this.agent = agent;
+        inline = agent.getConfig ("agent.workers", "0").equals ("0");
+        timeout = Long.parseLong (agent.getConfig ("topology.timeout", "30000"));
+        maxInFlight = Integer.parseInt (agent.getConfig ("topology.acker.max", "4194304"));
+
+        Metrics metrics = agent.getMetrics ();
+        acked = metrics.counter ("topology.acker.acked");
+        failed = metrics.counter ("topology.acker.failed");
+        timedOut = metrics.counter ("topology.acker.timeout");
+        metrics.gauge ("topology.acker.inflight", new Metrics.Gauge ()
+        {
+            @Override
+            public double value ()
+            {
+                return size ();
+            }
+        });
+    }
+
+    long getRotation ()
+    {
+        return Math.max (1, timeout / (GENERATIONS - 1));
+    }
+
+    @Override
+    public int getSignature ()
+    {
+        int signature = org.zyni.message.Acker.getDescriptor ().getName ().hashCode ();
+        ZyniMsg.registerBuilder (signature, Ack.newBuilder ());
+        return signature;
+    }
+
+    int size ()
+    {
+        int size = 0;
+        for (AckTable table : generations)
+            size += table.size ();
+        return size;
+    }
+
+    /**
+     * Start tracking a tree
+     * @return false if too many trees are in flight
+     */
+    boolean init (long root, long value, long id, int origin)
+    {
+        if (size () >= maxInFlight)
+            return false;
+
+        if (value == 0) {
+            //  Nothing was emitted
+            complete (id, origin, false);
+            return true;
+        }
+        generations [0].put (root, value, id, origin);
+        return true;
+    }
+
+    /**
+     * Xor value into the tree, or fail it
+     */
+    void update (long root, long value, boolean fail)
+    {
+        for (AckTable table : generations) {
+            int idx = table.find (root);
+            if (idx < 0)
+                continue;
+
+            if (fail || table.xor (idx, value) == 0) {
+                long id = table.id (idx);
+                int origin = table.origin (idx);
+                table.remove (idx);
+                complete (id, origin, fail);
+            }
+            return;
+        }
+        //  Already timed out
+    }
+
+    private void complete (long id, int origin, boolean fail)
+    {
+        (fail ? failed : acked).inc ();
+        listener.complete (origin, id, fail);
+    }
+
+    @Override
+    public void processCallback (ZyniMsg msg)
+    {
+        final Ack ack = (Ack) msg.getBody ();
+        if (inline) {
+            update (ack.getRoot (), ack.getValue (), ack.getFailed ());
+            return;
+        }
+
+        //  The tables belong to the agent thread
+        agent.execute (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                update (ack.getRoot (), ack.getValue (), ack.getFailed ());
+            }
+        });
+    }
+
+    /**
+     * Fail the oldest generation and reuse it as the newest
+     */
+    @Override
+    public long processTimer (long interval)
+    {
+        AckTable oldest = generations [GENERATIONS - 1];
+        int expired = oldest.size ();
+        for (int idx = 0; idx < oldest.capacity () && expired > 0; idx++) {
+            if (oldest.root (idx) != 0) {
+                timedOut.inc ();
+                complete (oldest.id (idx), oldest.origin (idx), true);
+                expired--;
+            }
+        }
+        oldest.clear ();
+
+        System.arraycopy (generations, 0, generations, 1, GENERATIONS - 1);
+        generations [0] = oldest;
+
+        if (LOG.isDebugEnabled ())
+            LOG.debug ("acker rotated, {} in flight", size ());
+        return interval;
+    }
+
+    @Override
+    public void processCommand (String command, ZMsg msg)
+    {
+    }
+
+    @Override
+    public void onEvent (ZyniEvent event, Object ... params)
+    {
+    }
+
+    @Override
+    public void destroy ()
+    {
+    }
+}
@@ -0,0 +1,28 @@
+package org.zyni.topology;
+
+import com.google.protobuf.ByteString;
+
+import java.util.List;
+
+/**
+ * Sends tuples from a task to the stages subscribed to its stage
+ */
+public interface Emitter
+{
+    void emit (List <ByteString> values);
+
+    /**
+     * Emit UTF-8 encoded values
+     */
+    void emit (String ... values);
+
+    /**
+     * Emit a tuple from an IReliableSpout, tracked by the acker. The spout
+     * gets ack (id) once the tuple and every tuple emitted while processing
+     * it downstream are processed, or fail (id). Bolts do not need this,
+     * what they emit is tracked with the tuple they process.
+     */
+    void emit (long id, List <ByteString> values);
+
+    void emit (long id, String ... values);
+}
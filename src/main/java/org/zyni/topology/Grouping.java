@@ -0,0 +1,11 @@
+package org.zyni.topology;
+
+/**
+ * How the tuples of a source stage are spread over the tasks of a bolt
+ */
+public enum Grouping
+{
+    SHUFFLE,        //  Round-robin over the tasks
+    FIELDS,         //  Same values of the selected fields, same task
+    BROADCAST       //  Every task
+}
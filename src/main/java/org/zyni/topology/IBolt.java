@@ -0,0 +1,20 @@
+package org.zyni.topology;
+
+import org.zyni.message.Topology.Tuple;
+
+/**
+ * Processing stage of a topology. One instance runs per task and gets the
+ * tuples routed to it by the groupings of its inputs.
+ */
+public interface IBolt
+{
+    /**
+     * @param context task of this instance
+     * @param emitter sends tuples to the subscribed stages
+     */
+    void initialize (TaskContext context, Emitter emitter);
+
+    void process (Tuple tuple);
+
+    void destroy ();
+}
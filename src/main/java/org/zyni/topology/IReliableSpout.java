@@ -0,0 +1,17 @@
+package org.zyni.topology;
+
+/**
+ * Spout told what became of the tuples it emitted with an id
+ */
+public interface IReliableSpout extends ISpout
+{
+    /**
+     * Every tuple of the tree of id was processed
+     */
+    void ack (long id);
+
+    /**
+     * A tuple of the tree of id failed, or the tree timed out
+     */
+    void fail (long id);
+}
@@ -0,0 +1,22 @@
+package org.zyni.topology;
+
+/**
+ * Source stage of a topology. One instance runs per task, on the node the
+ * task is placed on, and is polled from the agent timer.
+ */
+public interface ISpout
+{
+    /**
+     * @param context task of this instance
+     * @param emitter sends tuples to the subscribed stages
+     */
+    void initialize (TaskContext context, Emitter emitter);
+
+    /**
+     * Emit the next tuples, if any
+     * @return false if there was nothing to emit
+     */
+    boolean nextTuple ();
+
+    void destroy ();
+}
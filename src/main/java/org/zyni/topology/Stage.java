@@ -0,0 +1,62 @@
+package org.zyni.topology;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Declared stage of a topology, a spout or a bolt
+ */
+class Stage
+{
+    final String name;
+    final Class <?> type;
+    final int parallelism;
+    final int index;                        //  In declaration order
+    final int firstTask;                    //  Tasks of the stages before
+    final List <Subscription> inputs;
+    final List <Subscription> outputs;
+
+    Stage (String name, Class <?> type, int parallelism, int index, int firstTask)
+    {
+        this.name = name;
+        this.type = type;
+        this.parallelism = parallelism;
+        this.index = index;
+        this.firstTask = firstTask;
+        inputs = new ArrayList <Subscription> ();
+        outputs = new ArrayList <Subscription> ();
+    }
+
+    boolean isSpout ()
+    {
+        return ISpout.class.isAssignableFrom (type);
+    }
+
+    Object newInstance ()
+    {
+        try {
+            return type.newInstance ();
+        } catch (Exception e) {
+            throw new IllegalStateException ("cannot create stage " + name, e);
+        }
+    }
+
+    /**
+     * A bolt reading the tuples of a source stage
+     */
+    static class Subscription
+    {
+        final Stage source;
+        final Stage target;
+        final Grouping grouping;
+        final int [] fields;
+
+        Subscription (Stage source, Stage target, Grouping grouping, int [] fields)
+        {
+            this.source = source;
+            this.target = target;
+            this.grouping = grouping;
+            this.fields = fields;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.zyni.topology;
+
+import org.zyni.ZyniAgent;
+
+/**
+ * Where a stage instance runs: its task among the parallel tasks of its
+ * stage, and the agent hosting it
+ */
+public class TaskContext
+{
+    private final String topology;
+    private final String stage;
+    private final int task;
+    private final int parallelism;
+    private final ZyniAgent agent;
+
+    TaskContext (String topology, String stage, int task, int parallelism, ZyniAgent agent)
+    {
+        this.topology = topology;
+        this.stage = stage;
+        this.task = task;
+        this.parallelism = parallelism;
+        this.agent = agent;
+    }
+
+    public String getTopology ()
+    {
+        return topology;
+    }
+
+    public String getStage ()
+    {
+        return stage;
+    }
+
+    public int getTask ()
+    {
+        return task;
+    }
+
+    public int getParallelism ()
+    {
+        return parallelism;
+    }
+
+    public ZyniAgent getAgent ()
+    {
+        return agent;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return topology + "/" + stage + "#" + task;
+    }
+}
@@ -0,0 +1,74 @@
+package org.zyni.topology;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable DAG of spouts and bolts, see TopologyBuilder. Every node
+ * running the topology declares the same one.
+ */
+public class Topology
+{
+    private final String name;
+    private final List <Stage> stages;
+    private final Map <String, Stage> byName;
+    private final int tasks;
+
+    Topology (String name, List <Stage> stages)
+    {
+        this.name = name;
+        this.stages = Collections.unmodifiableList (stages);
+
+        byName = new HashMap <String, Stage> ();
+        int tasks = 0;
+        for (Stage stage : stages) {
+            byName.put (stage.name, stage);
+            tasks += stage.parallelism;
+        }
+        this.tasks = tasks;
+    }
+
+    public String getName ()
+    {
+        return name;
+    }
+
+    /**
+     * @return total number of tasks over all stages
+     */
+    public int getTasks ()
+    {
+        return tasks;
+    }
+
+    List <Stage> getStages ()
+    {
+        return stages;
+    }
+
+    Stage getStage (String name)
+    {
+        return byName.get (name);
+    }
+
+    /**
+     * Deal the tasks of all stages round-robin over the sorted members, so
+     * every node computes the same placement and each one gets an even
+     * share of every stage
+     * @return owner of each task, by stage index then task
+     */
+    String [][] place (List <String> members)
+    {
+        String [][] owners = new String [stages.size ()][];
+        for (Stage stage : stages) {
+            owners [stage.index] = new String [stage.parallelism];
+            if (members.isEmpty ())
+                continue;
+            for (int task = 0; task < stage.parallelism; task++)
+                owners [stage.index][task] = members.get ((stage.firstTask + task) % members.size ());
+        }
+        return owners;
+    }
+}
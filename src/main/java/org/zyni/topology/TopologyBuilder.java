@@ -0,0 +1,140 @@
+package org.zyni.topology;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Declares the stages of a topology and how tuples flow between them
+ *
+ *     TopologyBuilder builder = new TopologyBuilder ("words");
+ *     builder.setSpout ("lines", LineSpout.class, 2);
+ *     builder.setBolt ("split", SplitBolt.class, 4).shuffleGrouping ("lines");
+ *     builder.setBolt ("count", CountBolt.class, 8).fieldsGrouping ("split", 0);
+ *     Topology topology = builder.build ();
+ *
+ * Stage classes need a public no argument constructor.
+ */
+public class TopologyBuilder
+{
+    private final String name;
+    private final List <Stage> stages;
+    private int tasks;
+
+    public TopologyBuilder (String name)
+    {
+        this.name = name;
+        stages = new ArrayList <Stage> ();
+    }
+
+    public TopologyBuilder setSpout (String name, Class <? extends ISpout> type, int parallelism)
+    {
+        add (name, type, parallelism);
+        return this;
+    }
+
+    public BoltDeclarer setBolt (String name, Class <? extends IBolt> type, int parallelism)
+    {
+        return new BoltDeclarer (add (name, type, parallelism));
+    }
+
+    private Stage add (String name, Class <?> type, int parallelism)
+    {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException ("parallelism of " + name + " must be positive");
+        if (find (name) != null)
+            throw new IllegalArgumentException ("duplicate stage " + name);
+
+        Stage stage = new Stage (name, type, parallelism, stages.size (), tasks);
+        stages.add (stage);
+        tasks += parallelism;
+        return stage;
+    }
+
+    private Stage find (String name)
+    {
+        for (Stage stage : stages) {
+            if (stage.name.equals (name))
+                return stage;
+        }
+        return null;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a bolt has no input or the
+     * stages form a cycle
+     */
+    public Topology build ()
+    {
+        for (Stage stage : stages) {
+            if (!stage.isSpout () && stage.inputs.isEmpty ())
+                throw new IllegalArgumentException ("bolt " + stage.name + " has no input");
+        }
+
+        Set <Stage> done = new HashSet <Stage> ();
+        for (Stage stage : stages)
+            checkCycle (stage, new HashSet <Stage> (), done);
+
+        return new Topology (name, new ArrayList <Stage> (stages));
+    }
+
+    private void checkCycle (Stage stage, Set <Stage> path, Set <Stage> done)
+    {
+        if (done.contains (stage))
+            return;
+        if (!path.add (stage))
+            throw new IllegalArgumentException ("cycle through " + stage.name);
+
+        for (Stage.Subscription output : stage.outputs)
+            checkCycle (output.target, path, done);
+
+        path.remove (stage);
+        done.add (stage);
+    }
+
+    /**
+     * Subscribes a bolt to source stages
+     */
+    public class BoltDeclarer
+    {
+        private final Stage bolt;
+
+        private BoltDeclarer (Stage bolt)
+        {
+            this.bolt = bolt;
+        }
+
+        public BoltDeclarer shuffleGrouping (String source)
+        {
+            return subscribe (source, Grouping.SHUFFLE, new int [0]);
+        }
+
+        /**
+         * Tuples with the same values at these indexes go to the same task
+         */
+        public BoltDeclarer fieldsGrouping (String source, int ... fields)
+        {
+            if (fields.length == 0)
+                throw new IllegalArgumentException ("no fields to group " + bolt.name + " by");
+            return subscribe (source, Grouping.FIELDS, fields.clone ());
+        }
+
+        public BoltDeclarer broadcastGrouping (String source)
+        {
+            return subscribe (source, Grouping.BROADCAST, new int [0]);
+        }
+
+        private BoltDeclarer subscribe (String source, Grouping grouping, int [] fields)
+        {
+            Stage stage = find (source);
+            if (stage == null)
+                throw new IllegalArgumentException ("unknown stage " + source);
+
+            Stage.Subscription subscription = new Stage.Subscription (stage, bolt, grouping, fields);
+            stage.outputs.add (subscription);
+            bolt.inputs.add (subscription);
+            return this;
+        }
+    }
+}
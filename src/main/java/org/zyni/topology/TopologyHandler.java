@@ -0,0 +1,538 @@
+package org.zyni.topology;
+
+import com.google.protobuf.ByteString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zeromq.ZMsg;
+import org.zyni.IAgentHandler;
+import org.zyni.Metrics;
+import org.zyni.ZyniAgent;
+import org.zyni.ZyniEvent;
+import org.zyni.ZyniMsg;
+import org.zyni.ZyniPeer;
+import org.zyni.message.Acker.Ack;
+import org.zyni.message.Topology.Tuple;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Runs topologies over the nodes found by the heartbeat.
+ *
+ * A node running a topology publishes the TOPOLOGY.<name> header. The tasks
+ * of every stage are dealt over the live nodes having it, and each node
+ * polls the spout tasks placed on it from the agent timer. Emitted tuples
+ * are routed by the grouping of every subscribed bolt, to the owner of the
+ * target task through its peer mailbox, or straight to the task when it is
+ * local. Stages always run on the agent thread.
+ *
+ * Tuples a reliable spout emits with an id are tracked by the Acker of its
+ * node. A bolt acks the tuple it processed once process returns, together
+ * with the tuples it emitted meanwhile, and fails it if process throws.
+ *
+ * Register it with register (agent), which also registers the acker.
+ * topology.tick is the spout polling interval in milliseconds,
+ * topology.spout.batch the tuples polled per spout and tick.
+ */
+public class TopologyHandler implements IAgentHandler, Acker.Listener
+{
+    private final static Logger LOG = LoggerFactory.getLogger (TopologyHandler.class);
+
+    public static final String HEADER_PREFIX = "TOPOLOGY.";
+
+    private Topology [] pending;                //  Until initialized
+    private final Map <String, Running> topologies;
+    private final Set <String> alive;           //  Live peers
+    private final Queue <Tuple> local;          //  Tuples to local tasks
+    private boolean draining;
+    private final Acker acker;
+    private final Map <Integer, Task> origins;  //  Spout tasks with trees
+    private int nextOrigin;
+    private final Random random;
+
+    private ZyniAgent agent;
+    private String address;
+    private boolean inline;                     //  Callbacks on the agent thread
+    private int spoutBatch;
+
+    //  A topology and its tasks running on this node
+    private class Running
+    {
+        private final Topology topology;
+        private final Set <String> members;     //  Sorted, for the same placement everywhere
+        private final Task [][] tasks;          //  By stage index and task, null if not here
+        private final List <Task> spouts;
+        private String [][] owners;
+
+        private final Metrics.Counter emitted;
+        private final Metrics.Counter processed;
+        private final Metrics.Counter dropped;
+
+        private Running (Topology topology)
+        {
+            this.topology = topology;
+            members = new TreeSet <String> ();
+            spouts = new ArrayList <Task> ();
+
+            List <Stage> stages = topology.getStages ();
+            tasks = new Task [stages.size ()][];
+            for (Stage stage : stages)
+                tasks [stage.index] = new Task [stage.parallelism];
+            owners = topology.place (new ArrayList <String> ());
+
+            String prefix = "topology." + topology.getName ();
+            emitted = agent.getMetrics ().counter (prefix + ".emitted");
+            processed = agent.getMetrics ().counter (prefix + ".processed");
+            dropped = agent.getMetrics ().counter (prefix + ".dropped");
+            agent.getMetrics ().gauge (prefix + ".members", new Metrics.Gauge ()
+            {
+                @Override
+                public double value ()
+                {
+                    return members.size ();
+                }
+            });
+        }
+
+        //  Bolt tasks start with their first tuple
+        private Task task (Stage stage, int task)
+        {
+            Task running = tasks [stage.index][task];
+            if (running == null) {
+                running = new Task (this, stage, task);
+                tasks [stage.index][task] = running;
+            }
+            return running;
+        }
+    }
+
+    //  One instance of a stage
+    private class Task implements Emitter
+    {
+        private final Running running;
+        private final Stage stage;
+        private final TaskContext context;
+        private final Object instance;
+        private final int [] next;              //  Shuffle position of every output
+        private final int origin;               //  Spouts only
+
+        //  Tuple being processed, bolts only
+        private long root;
+        private String rootOrigin;
+        private long emitted;                   //  XOR of the edges emitted
+
+        private Task (Running running, Stage stage, int task)
+        {
+            this.running = running;
+            this.stage = stage;
+
+            context = new TaskContext (running.topology.getName (), stage.name, task,
+                    stage.parallelism, agent);
+            next = new int [stage.outputs.size ()];
+            for (int i = 0; i < next.length; i++)
+                next [i] = task % stage.outputs.get (i).target.parallelism;
+
+            instance = stage.newInstance ();
+            if (instance instanceof ISpout) {
+                origin = nextOrigin++;
+                origins.put (origin, this);
+                ((ISpout) instance).initialize (context, this);
+            }
+            else {
+                origin = -1;
+                ((IBolt) instance).initialize (context, this);
+            }
+        }
+
+        @Override
+        public void emit (List <ByteString> values)
+        {
+            route (this, values, false, 0);
+        }
+
+        @Override
+        public void emit (String ... values)
+        {
+            route (this, encode (values), false, 0);
+        }
+
+        @Override
+        public void emit (long id, List <ByteString> values)
+        {
+            if (!(instance instanceof IReliableSpout))
+                throw new IllegalStateException (context + " is not a reliable spout");
+            route (this, values, true, id);
+        }
+
+        @Override
+        public void emit (long id, String ... values)
+        {
+            emit (id, encode (values));
+        }
+
+        private List <ByteString> encode (String [] values)
+        {
+            List <ByteString> encoded = new ArrayList <ByteString> (values.length);
+            for (String value : values)
+                encoded.add (ByteString.copyFromUtf8 (value));
+            return encoded;
+        }
+
+        private void destroy ()
+        {
+            if (origin >= 0)
+                origins.remove (origin);
+            try {
+                if (instance instanceof ISpout)
+                    ((ISpout) instance).destroy ();
+                else
+                    ((IBolt) instance).destroy ();
+            } catch (RuntimeException e) {
+                LOG.error ("destroy failed for " + context, e);
+            }
+        }
+    }
+
+    public TopologyHandler (Topology ... topologies)
+    {
+        this.topologies = new HashMap <String, Running> ();
+        alive = new HashSet <String> ();
+        local = new ArrayDeque <Tuple> ();
+        acker = new Acker (this);
+        origins = new HashMap <Integer, Task> ();
+        random = new Random ();
+
+        pending = topologies;
+    }
+
+    public void register (ZyniAgent agent)
+    {
+        agent.registerCallback (getSignature (), this);
+        agent.registerEventHandler (this);
+        agent.registerTimer (Long.parseLong (agent.getConfig ("topology.tick", "1")), this);
+
+        agent.registerCallback (acker.getSignature (), acker);
+        agent.registerTimer (acker.getRotation (), acker);
+    }
+
+    @Override
+    public void initialize (ZyniAgent agent, Object ... args)
+    {
+        this.agent = agent;
+        inline = agent.getConfig ("agent.workers", "0").equals ("0");
+        spoutBatch = Integer.parseInt (agent.getConfig ("topology.spout.batch", "100"));
+
+        for (Topology topology : pending) {
+            topologies.put (topology.getName (), new Running (topology));
+            agent.putHeader (HEADER_PREFIX + topology.getName (), String.valueOf (topology.getTasks ()));
+        }
+        pending = null;
+    }
+
+    @Override
+    public int getSignature ()
+    {
+        int signature = org.zyni.message.Topology.getDescriptor ().getName ().hashCode ();
+        ZyniMsg.registerBuilder (signature, Tuple.newBuilder ());
+        return signature;
+    }
+
+    @Override
+    public void processCommand (String command, ZMsg msg)
+    {
+    }
+
+    @Override
+    public void onEvent (ZyniEvent event, Object ... params)
+    {
+        switch (event) {
+        case AGENT_START:
+            address = (String) params [0];
+            for (Running running : topologies.values ())
+                join (running, address);
+            break;
+        case PEER_ALIVE:
+            String endpoint = (String) params [0];
+            alive.add (endpoint);
+            ZyniPeer peer = agent.findPeer (endpoint);
+            for (Running running : topologies.values ()) {
+                if (peer != null && peer.getHeaders ().containsKey (HEADER_PREFIX + running.topology.getName ()))
+                    join (running, endpoint);
+            }
+            break;
+        case PEER_HEADER:
+            String key = (String) params [1];
+            if (key.startsWith (HEADER_PREFIX) && alive.contains (params [0])) {
+                Running running = topologies.get (key.substring (HEADER_PREFIX.length ()));
+                if (running != null)
+                    join (running, (String) params [0]);
+            }
+            break;
+        case PEER_DEAD:
+        case PEER_EXIT:
+            alive.remove (params [0]);
+            for (Running running : topologies.values ()) {
+                if (running.members.remove (params [0]))
+                    place (running);
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void join (Running running, String endpoint)
+    {
+        if (running.members.add (endpoint))
+            place (running);
+    }
+
+    //  Deal the tasks over the members again, start the spouts placed here
+    //  and stop the tasks moved away
+    private void place (Running running)
+    {
+        running.owners = running.topology.place (new ArrayList <String> (running.members));
+        running.spouts.clear ();
+
+        for (Stage stage : running.topology.getStages ()) {
+            for (int task = 0; task < stage.parallelism; task++) {
+                boolean here = address != null && address.equals (running.owners [stage.index][task]);
+                Task current = running.tasks [stage.index][task];
+                if (!here && current != null) {
+                    current.destroy ();
+                    running.tasks [stage.index][task] = null;
+                }
+                else if (here && stage.isSpout ())
+                    running.spouts.add (running.task (stage, task));
+            }
+        }
+        LOG.info ("{} placed over {} members, {} spouts here", running.topology.getName (),
+                running.members.size (), running.spouts.size ());
+    }
+
+    //  Build the tuples for every subscribed task, then track them before
+    //  any is sent, as local ones are processed right away
+    private void route (Task from, List <ByteString> values, boolean tracked, long id)
+    {
+        Running running = from.running;
+        List <Tuple.Builder> outgoing = new ArrayList <Tuple.Builder> ();
+        List <Stage.Subscription> outputs = from.stage.outputs;
+        for (int i = 0; i < outputs.size (); i++) {
+            Stage.Subscription output = outputs.get (i);
+            int parallelism = output.target.parallelism;
+            switch (output.grouping) {
+            case SHUFFLE:
+                target (outgoing, from, output.target, from.next [i], values);
+                from.next [i] = (from.next [i] + 1) % parallelism;
+                break;
+            case FIELDS:
+                int hash = 1;
+                for (int field : output.fields)
+                    hash = 31 * hash + values.get (field).hashCode ();
+                target (outgoing, from, output.target, (hash & 0x7fffffff) % parallelism, values);
+                break;
+            case BROADCAST:
+                for (int task = 0; task < parallelism; task++)
+                    target (outgoing, from, output.target, task, values);
+                break;
+            }
+        }
+        running.emitted.inc ();
+
+        long root = tracked ? nextId () : from.root;
+        String origin = tracked ? address : from.rootOrigin;
+        if (root != 0) {
+            long edges = 0;
+            for (Tuple.Builder tuple : outgoing) {
+                long edge = nextId ();
+                tuple.setRoot (root).setEdge (edge).setOrigin (origin);
+                edges ^= edge;
+            }
+            if (!tracked)
+                from.emitted ^= edges;
+            else if (!acker.init (root, edges, id, from.origin)) {
+                complete (from.origin, id, true);
+                return;
+            }
+        }
+
+        for (Tuple.Builder tuple : outgoing)
+            send (running, tuple.build ());
+    }
+
+    private void target (List <Tuple.Builder> outgoing, Task from, Stage target, int task,
+                         List <ByteString> values)
+    {
+        outgoing.add (Tuple.newBuilder ()
+                .setTopology (from.running.topology.getName ())
+                .setSource (from.stage.name)
+                .setStage (target.name)
+                .setTask (task)
+                .addAllValues (values));
+    }
+
+    //  Random and never 0, which means untracked
+    private long nextId ()
+    {
+        long id;
+        do {
+            id = random.nextLong ();
+        } while (id == 0);
+        return id;
+    }
+
+    private void send (Running running, Tuple tuple)
+    {
+        Stage target = running.topology.getStage (tuple.getStage ());
+        String owner = running.owners [target.index][tuple.getTask ()];
+        if (owner == null || owner.equals (address)) {
+            deliver (tuple);
+            return;
+        }
+
+        ZyniPeer peer = agent.findPeer (owner);
+        if (peer == null || !peer.send (new ZyniMsg (tuple)))
+            running.dropped.inc ();
+    }
+
+    //  Ack a processed tuple to the acker of its tree
+    private void ack (String origin, long root, long value, boolean failed)
+    {
+        if (origin.equals (address)) {
+            acker.update (root, value, failed);
+            return;
+        }
+
+        ZyniPeer peer = agent.findPeer (origin);
+        if (peer != null)
+            peer.send (new ZyniMsg (Ack.newBuilder ()
+                    .setRoot (root)
+                    .setValue (value)
+                    .setFailed (failed)
+                    .build ()));
+        //  Otherwise the tree times out
+    }
+
+    @Override
+    public void complete (int origin, long id, boolean failed)
+    {
+        Task task = origins.get (origin);
+        if (task == null)
+            return;                 //  Moved away meanwhile
+
+        IReliableSpout spout = (IReliableSpout) task.instance;
+        try {
+            if (failed)
+                spout.fail (id);
+            else
+                spout.ack (id);
+        } catch (RuntimeException e) {
+            LOG.error ("ack failed for " + task.context, e);
+        }
+    }
+
+    //  Local tuples are queued and drained by the outermost call, so long
+    //  chains of local bolts do not recurse
+    private void deliver (Tuple tuple)
+    {
+        local.add (tuple);
+        if (draining)
+            return;
+
+        draining = true;
+        try {
+            while ((tuple = local.poll ()) != null)
+                process (tuple);
+        } finally {
+            draining = false;
+        }
+    }
+
+    private void process (Tuple tuple)
+    {
+        Running running = topologies.get (tuple.getTopology ());
+        Stage stage = running == null ? null : running.topology.getStage (tuple.getStage ());
+        if (stage == null || stage.isSpout () || tuple.getTask () >= stage.parallelism) {
+            LOG.warn ("no task {}/{}#{}", tuple.getTopology (), tuple.getStage (), tuple.getTask ());
+            return;
+        }
+
+        Task task = running.task (stage, tuple.getTask ());
+        task.root = tuple.getRoot ();
+        task.rootOrigin = tuple.getOrigin ();
+        task.emitted = 0;
+
+        boolean failed = false;
+        try {
+            ((IBolt) task.instance).process (tuple);
+        } catch (RuntimeException e) {
+            LOG.error ("process failed for " + task.context, e);
+            failed = true;
+        }
+        running.processed.inc ();
+
+        if (task.root != 0)
+            ack (task.rootOrigin, task.root, tuple.getEdge () ^ task.emitted, failed);
+        task.root = 0;
+    }
+
+    @Override
+    public void processCallback (ZyniMsg msg)
+    {
+        final Tuple tuple = (Tuple) msg.getBody ();
+        if (inline) {
+            deliver (tuple);
+            return;
+        }
+
+        //  Tasks are not thread safe, keep them on the agent thread
+        agent.execute (new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                deliver (tuple);
+            }
+        });
+    }
+
+    @Override
+    public long processTimer (long interval)
+    {
+        for (Running running : topologies.values ()) {
+            for (Task task : running.spouts) {
+                ISpout spout = (ISpout) task.instance;
+                try {
+                    for (int i = 0; i < spoutBatch; i++) {
+                        if (!spout.nextTuple ())
+                            break;
+                    }
+                } catch (RuntimeException e) {
+                    LOG.error ("nextTuple failed for " + task.context, e);
+                }
+            }
+        }
+        return interval;
+    }
+
+    @Override
+    public void destroy ()
+    {
+        for (Running running : topologies.values ()) {
+            for (Task [] tasks : running.tasks) {
+                for (Task task : tasks) {
+                    if (task != null)
+                        task.destroy ();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.zyni;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestMetrics
+{
+    @Test
+    public void testHistogram ()
+    {
+        Metrics.Histogram histogram = new Metrics.Histogram ();
+        assertEquals (0, histogram.getQuantile (0.5));
+
+        for (int i = 1; i <= 100; i++)
+            histogram.record (i);
+
+        assertEquals (100, histogram.getCount ());
+        assertEquals (50.5, histogram.getMean (), 0.001);
+        assertEquals (100, histogram.getMax ());
+        //  50 sits in the 32..63 bucket, 99 in the 64..127 one
+        assertEquals (63, histogram.getQuantile (0.5));
+        assertEquals (100, histogram.getQuantile (0.99));
+
+        histogram.record (-1);
+        assertEquals (0, histogram.getQuantile (0));
+    }
+
+    @Test
+    public void testRegistry ()
+    {
+        Metrics metrics = new Metrics ();
+        Metrics.Counter counter = metrics.counter ("peer.a.sent.msgs");
+        assertSame (counter, metrics.counter ("peer.a.sent.msgs"));
+        counter.add (2);
+
+        metrics.traffic ("peer.a.received").add (10);
+        metrics.sent (1).add (20);
+        assertSame (metrics.sent (1), metrics.sent (1));
+        metrics.gauge ("agent.peers", new Metrics.Gauge ()
+        {
+            @Override
+            public double value ()
+            {
+                return 3;
+            }
+        });
+        metrics.histogram ("agent.loop.us").record (5);
+
+        String dump = metrics.dump ();
+        assertTrue (dump.startsWith ("agent.loop.us count=1 "));
+        assertTrue (dump.contains ("agent.peers 3.0\n"));
+        assertTrue (dump.contains ("peer.a.received.bytes 10\n"));
+        assertTrue (dump.contains ("peer.a.sent.msgs 2\n"));
+        assertTrue (dump.contains ("signature.1.sent.bytes 20\n"));
+
+        metrics.removeAll ("peer.a.");
+        assertNull (metrics.get ("peer.a.sent.msgs"));
+        assertNull (metrics.get ("peer.a.received.msgs"));
+
+        try {
+            metrics.counter ("agent.loop.us");
+            fail ("a counter named like a histogram should be refused");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.zyni;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestTimerWheel
+{
+    private static final long MS = 1000000L;
+
+    private List <TimerWheel.Timer> drain (TimerWheel wheel, long now)
+    {
+        List <TimerWheel.Timer> fired = new ArrayList <TimerWheel.Timer> ();
+        TimerWheel.Timer timer;
+        while ((timer = wheel.poll (now)) != null)
+            fired.add (timer);
+        return fired;
+    }
+
+    @Test
+    public void testExpire ()
+    {
+        TimerWheel wheel = new TimerWheel (MS, 0);
+        TimerWheel.Timer t1 = wheel.newTimer (null, 10);
+        TimerWheel.Timer t2 = wheel.newTimer (null, 10);
+        TimerWheel.Timer t3 = wheel.newTimer (null, 5000);
+
+        wheel.schedule (t1, 10, 0);
+        wheel.schedule (t2, 10, 0);
+        wheel.schedule (t3, 5000, 0);
+        assertEquals (3, wheel.size ());
+        assertEquals (10, wheel.timeout (0));
+
+        assertTrue (drain (wheel, 9 * MS).isEmpty ());
+
+        List <TimerWheel.Timer> fired = drain (wheel, 10 * MS);
+        assertEquals (2, fired.size ());
+        assertTrue (fired.contains (t1));
+        assertTrue (fired.contains (t2));
+        assertFalse (t1.isActive ());
+
+        //  t3 sits in a coarser level, wake up no later than its deadline
+        assertTrue (wheel.timeout (10 * MS) <= 4990);
+        assertTrue (drain (wheel, 4999 * MS).isEmpty ());
+        fired = drain (wheel, 5000 * MS);
+        assertEquals (1, fired.size ());
+        assertSame (t3, fired.get (0));
+        assertEquals (-1, wheel.timeout (5000 * MS));
+    }
+
+    @Test
+    public void testCancelAndReuse ()
+    {
+        TimerWheel wheel = new TimerWheel (MS, 0);
+        TimerWheel.Timer t1 = wheel.newTimer (null, 100);
+
+        wheel.schedule (t1, 100, 0);
+        assertTrue (wheel.cancel (t1));
+        assertFalse (wheel.cancel (t1));
+        assertTrue (wheel.isEmpty ());
+        assertNull (wheel.poll (200 * MS));
+
+        wheel.schedule (t1, 100, 200 * MS);
+        wheel.schedule (t1, 50, 200 * MS);
+        assertEquals (1, wheel.size ());
+        assertSame (t1, wheel.poll (250 * MS));
+        assertTrue (wheel.isEmpty ());
+    }
+
+    @Test
+    public void testLongDelay ()
+    {
+        TimerWheel wheel = new TimerWheel (MS, 0);
+        TimerWheel.Timer t1 = wheel.newTimer (null, 0);
+        long delay = 20L * 1000 * 1000;   //  Beyond the last level
+
+        wheel.schedule (t1, delay, 0);
+        for (long now = 0; now < delay; now += 1000 * 1000)
+            assertNull (wheel.poll (now * MS));
+        assertNull (wheel.poll ((delay - 1) * MS));
+        assertSame (t1, wheel.poll (delay * MS));
+    }
+}
@@ -0,0 +1,146 @@
+package org.zyni;
+
+import org.junit.Test;
+import org.zyni.ZyniMsg.VersionedMap;
+import org.zyni.message.Common.VersionedValue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestVersionedMap
+{
+    private static VersionedValue value (String key, int version, String value)
+    {
+        return VersionedValue.newBuilder ().setKey (key).setVersion (version).setValue (value).build ();
+    }
+
+    private void checkBasics (VersionedMap map)
+    {
+        assertTrue (map.isEmpty ());
+        assertNull (map.get ("STATUS"));
+        assertNull (map.put ("STATUS", "up"));
+        assertEquals ("up", map.getValue ("STATUS"));
+        assertEquals (1, map.getMaxVersion ());
+
+        map.update (Arrays.asList (value ("LOAD", 7, "0.10,0.20,3,4"), value ("ZONE", 3, "\u00e9-1")));
+        assertEquals (7, map.getMaxVersion ());
+        assertEquals (3, map.size ());
+        assertEquals ("\u00e9-1", map.getValue ("ZONE"));
+        assertEquals (value ("ZONE", 3, "\u00e9-1"), map.get ("ZONE"));
+
+        //  Shorter in place, longer moved
+        map.put ("LOAD", 8, "0");
+        assertEquals ("0", map.getValue ("LOAD"));
+        map.put ("LOAD", 9, "0.90,0.95,1000,2000");
+        assertEquals ("0.90,0.95,1000,2000", map.getValue ("LOAD"));
+
+        List <VersionedValue> newer = map.newer (3);
+        assertEquals (1, newer.size ());
+        assertEquals ("LOAD", newer.get (0).getKey ());
+        assertTrue (map.newer (9).isEmpty ());
+        assertEquals (3, map.newer (0).size ());
+
+        assertEquals (value ("ZONE", 3, "\u00e9-1"), map.remove ("ZONE"));
+        assertFalse (map.containsKey ("ZONE"));
+        assertEquals (new HashSet <String> (Arrays.asList ("STATUS", "LOAD")), map.keySet ());
+
+        Iterator <String> it = map.keySet ().iterator ();
+        it.next ();
+        it.remove ();
+        assertEquals (1, map.size ());
+
+        VersionedMap copy = new VersionedMap (map);
+        map.clear ();
+        assertEquals (0, map.getMaxVersion ());
+        assertEquals (1, copy.size ());
+        assertEquals (9, copy.getMaxVersion ());
+    }
+
+    @Test
+    public void testHash ()
+    {
+        checkBasics (new VersionedMap ());
+    }
+
+    @Test
+    public void testArena ()
+    {
+        checkBasics (new VersionedMap (new ArenaHeaderStore (1)));
+    }
+
+    @Test
+    public void testHashRandom ()
+    {
+        checkRandom (new VersionedMap ());
+    }
+
+    @Test
+    public void testArenaRandom ()
+    {
+        checkRandom (new VersionedMap (new ArenaHeaderStore ()));
+    }
+
+    //  Same answers as a plain map through random updates and removals
+    private void checkRandom (VersionedMap arena)
+    {
+        Random random = new Random (42);
+        Map <String, VersionedValue> expected = new HashMap <String, VersionedValue> ();
+
+        for (int i = 1; i < 20000; i++) {
+            String key = "KEY." + random.nextInt (200);
+            if (random.nextInt (4) == 0) {
+                assertEquals (expected.remove (key), arena.remove (key));
+                continue;
+            }
+            char [] chars = new char [random.nextInt (40)];
+            Arrays.fill (chars, (char) ('a' + random.nextInt (26)));
+            VersionedValue value = value (key, i, new String (chars));
+            expected.put (key, value);
+            arena.update (Arrays.asList (value));
+        }
+
+        assertEquals (expected.size (), arena.size ());
+        for (Map.Entry <String, VersionedValue> entry : expected.entrySet ())
+            assertEquals (entry.getValue (), arena.get (entry.getKey ()));
+
+        for (int version : new int [] {0, 15000, 19990, 20000}) {
+            Set <VersionedValue> newer = new HashSet <VersionedValue> ();
+            for (VersionedValue value : expected.values ())
+                if (value.getVersion () > version)
+                    newer.add (value);
+
+            List <VersionedValue> found = arena.newer (version);
+            assertEquals (newer, new HashSet <VersionedValue> (found));
+            for (int i = 1; i < found.size (); i++)
+                assertTrue (found.get (i - 1).getVersion () < found.get (i).getVersion ());
+        }
+    }
+
+    //  Values of a peer can share a version, the index keeps both
+    @Test
+    public void testSameVersion ()
+    {
+        for (VersionedMap map : Arrays.asList (new VersionedMap (),
+                new VersionedMap (new ArenaHeaderStore ()))) {
+            map.update (Arrays.asList (value ("A", 5, "a"), value ("B", 5, "b"), value ("C", 4, "c")));
+            assertEquals (2, map.newer (4).size ());
+            map.update (Arrays.asList (value ("B", 6, "b")));
+            assertEquals ("B", map.newer (5).get (0).getKey ());
+            assertEquals (2, map.newer (4).size ());
+            map.remove ("A");
+            assertEquals (1, map.newer (4).size ());
+            assertEquals (2, map.newer (0).size ());
+        }
+    }
+}
@@ -0,0 +1,568 @@
+package org.zyni;
+
+import org.junit.Test;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+import org.zeromq.ZThread;
+import org.zyni.message.Common.Header;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestZyniAgent
+{
+    private static final String BIND = "127.0.0.1:5690";
+    private static final String DONE = "TEST.DONE";
+    private static final int COUNT = 100;
+    private static final String [] SENDERS = {"127.0.0.1:5691", "127.0.0.1:5692"};
+
+    static class Recorder implements IAgentHandler
+    {
+        ZyniAgent agent;
+        private final Map <String, List <Integer>> versions = new HashMap <String, List <Integer>> ();
+        private final AtomicInteger received = new AtomicInteger ();
+        private final AtomicInteger executed = new AtomicInteger ();
+        private final Set <Thread> threads = new HashSet <Thread> ();
+        private volatile Thread agentThread;
+
+        @Override
+        public void initialize (ZyniAgent agent, Object ... args)
+        {
+            this.agent = agent;
+        }
+
+        @Override
+        public int getSignature ()
+        {
+            int signature = "test-zyni-agent".hashCode ();
+            ZyniMsg.register (signature, Header.getDefaultInstance ());
+            return signature;
+        }
+
+        @Override
+        public void processCommand (String command, ZMsg msg)
+        {
+        }
+
+        @Override
+        public void onEvent (ZyniEvent event, Object ... params)
+        {
+        }
+
+        @Override
+        public void processCallback (ZyniMsg msg)
+        {
+            String sender = msg.getIdentityString ();
+            synchronized (versions) {
+                threads.add (Thread.currentThread ());
+                if (!versions.containsKey (sender))
+                    versions.put (sender, new ArrayList <Integer> ());
+                versions.get (sender).add (((Header) msg.getBody ()).getType ());
+            }
+
+            agent.execute (new Runnable ()
+            {
+                @Override
+                public void run ()
+                {
+                    agentThread = Thread.currentThread ();
+                    executed.incrementAndGet ();
+                }
+            });
+
+            if (received.incrementAndGet () == COUNT * SENDERS.length)
+                agent.sendCommand (DONE);
+        }
+
+        @Override
+        public long processTimer (long interval)
+        {
+            return interval;
+        }
+
+        @Override
+        public void destroy ()
+        {
+        }
+    }
+
+    //  Acknowledges keyed messages delivered locally
+    static class Owner extends Recorder
+    {
+        @Override
+        public void processCallback (ZyniMsg msg)
+        {
+            agent.sendCommand (DONE, msg.getIdentityString (),
+                    String.valueOf (((Header) msg.getBody ()).getType ()));
+        }
+    }
+
+    //  Takes messages only as the test releases them
+    static class Sink extends Recorder
+    {
+        private final Semaphore release = new Semaphore (0);
+        private final AtomicInteger taken = new AtomicInteger ();
+
+        @Override
+        public void processCallback (ZyniMsg msg)
+        {
+            release.acquireUninterruptibly ();
+            taken.incrementAndGet ();
+        }
+    }
+
+    //  Fails every message it is given
+    static class Thrower extends Recorder
+    {
+        private final AtomicInteger calls = new AtomicInteger ();
+
+        @Override
+        public void processCallback (ZyniMsg msg)
+        {
+            calls.incrementAndGet ();
+            throw new IllegalStateException ("test failure");
+        }
+    }
+
+    //  Sends on command from the agent thread, reports what the peer did
+    static class Producer extends Recorder
+    {
+        @Override
+        public void processCommand (String command, ZMsg msg)
+        {
+            ZyniPeer peer = agent.findPeer (msg.popString ());
+            if (command.equals ("TEST.WINDOW")) {
+                agent.sendCommand (DONE, String.valueOf (peer != null
+                        && peer.getHeaders ().containsKey (ZyniPeer.CREDIT_HEADER)));
+                return;
+            }
+
+            int count = Integer.parseInt (msg.popString ());
+            int accepted = 0;
+            for (int i = 0; i < count; i++) {
+                Header value = Header.newBuilder ().setSignature (0).setType (i).build ();
+                if (peer.send (new ZyniMsg (value)))
+                    accepted++;
+            }
+            agent.sendCommand (DONE, String.valueOf (accepted),
+                    String.valueOf (peer.getQueued ()), String.valueOf (peer.isWritable ()));
+        }
+
+        @Override
+        public void onEvent (ZyniEvent event, Object ... params)
+        {
+            if (event == ZyniEvent.PEER_WRITABLE)
+                agent.sendCommand (ZyniEvent.PEER_WRITABLE.toString (), (String) params [0]);
+        }
+    }
+
+    @Test
+    public void testWorkers ()
+    {
+        run ("2");
+    }
+
+    @Test
+    public void testVirtual ()
+    {
+        run ("virtual");
+    }
+
+    @Test
+    public void testSendToKeyWithoutRing ()
+    {
+        Properties conf = new Properties ();
+        conf.setProperty ("bind", "127.0.0.1:5715");
+        conf.setProperty ("heartbeat.endpoints", "");
+        conf.setProperty ("heartbeat.args.0", "1");
+
+        ZContext ctx = new ZContext ();
+        ZyniAgent agent = new ZyniAgent (conf);
+        Socket pipe = ZThread.fork (ctx, agent);
+        pipe.setReceiveTimeOut (5000);
+
+        ZyniMsg value = new ZyniMsg (Header.newBuilder ().setSignature (0).setType (42).build ());
+        ZMsg frames = new ZMsg ();
+        frames.add (ZyniEvent.AGENT_SEND_KEY.toString ());
+        frames.add ("key");
+        frames.add ("1");
+        frames.add (value.getHeaderData ());
+        frames.add (value.getBodyData ());
+        frames.send (pipe);
+
+        //  Dropped and counted, the agent still answers
+        pipe.send (ZyniEvent.AGENT_METRICS.toString ());
+        awaitCommand (pipe, ZyniEvent.AGENT_METRICS.toString ()).destroy ();
+        assertEquals (1, agent.getMetrics ().counter ("route.failed").get ());
+
+        pipe.send (ZyniEvent.SYSTEM_EXIT.toString ());
+        awaitCommand (pipe, ZyniEvent.AGENT_EXIT.toString ()).destroy ();
+        ctx.destroy ();
+    }
+
+    @Test
+    public void testPostAfterShutdown () throws Exception
+    {
+        ZContext ctx = new ZContext ();
+        final WorkerPool pool = new WorkerPool (ctx, 1, "test-post");
+        final Semaphore started = new Semaphore (0);
+        final Semaphore release = new Semaphore (0);
+        final List <Boolean> posted = new ArrayList <Boolean> ();
+        final AtomicInteger ran = new AtomicInteger ();
+
+        //  A worker that outlives shutdown, interrupts and all
+        pool.submit (null, new Runnable ()
+        {
+            @Override
+            public void run ()
+            {
+                started.release ();
+                release.acquireUninterruptibly ();
+                posted.add (pool.post (new Runnable ()
+                {
+                    @Override
+                    public void run ()
+                    {
+                        ran.incrementAndGet ();
+                    }
+                }));
+                started.release ();
+            }
+        });
+        started.acquire ();
+        pool.shutdown (50);
+        release.release ();
+        started.acquire ();
+
+        assertEquals (Arrays.asList (false), posted);
+        assertEquals (0, ran.get ());
+        ctx.destroy ();
+    }
+
+    @Test
+    public void testSendToKey ()
+    {
+        final String self = "127.0.0.1:5693";
+        final String remote = "127.0.0.1:5694";
+
+        Properties conf = new Properties ();
+        conf.setProperty ("bind", self);
+        conf.setProperty ("heartbeat.endpoints", remote);
+        conf.setProperty ("heartbeat.args.0", "1");
+
+        ZContext ctx = new ZContext ();
+        Socket router = ctx.createSocket (ZMQ.ROUTER);
+        router.setReceiveTimeOut (5000);
+        router.bind ("tcp://" + remote);
+
+        ZyniAgent agent = new ZyniAgent (conf);
+        Owner owner = new Owner ();
+        agent.registerCallback (owner.getSignature (), owner);
+        //  The first owner is not a peer, the message goes to the next two
+        agent.setPartitioner (new IPartitioner ()
+        {
+            @Override
+            public List <String> owners (String key, int count)
+            {
+                List <String> owners = Arrays.asList ("127.0.0.1:5695", remote, self);
+                return owners.subList (0, Math.min (count, owners.size ()));
+            }
+        });
+        Socket pipe = ZThread.fork (ctx, agent);
+        pipe.setReceiveTimeOut (5000);
+
+        ZyniMsg value = new ZyniMsg (Header.newBuilder ().setSignature (0).setType (42).build ());
+        ZMsg frames = new ZMsg ();
+        frames.add (ZyniEvent.AGENT_SEND_KEY.toString ());
+        frames.add ("key");
+        frames.add ("2");
+        frames.add (value.getHeaderData ());
+        frames.add (value.getBodyData ());
+        frames.send (pipe);
+
+        ZMsg done = awaitCommand (pipe, DONE);
+        assertEquals (self, done.popString ());
+        assertEquals ("42", done.popString ());
+        done.destroy ();
+
+        while (true) {
+            //  Skip the gossip to the seed
+            ZyniMsg msg = ZyniMsg.recv (router);
+            assertNotNull (msg);
+            if (msg.getSignature () == owner.getSignature ()) {
+                assertEquals (self, msg.getIdentityString ());
+                assertEquals (42, ((Header) msg.getBody ()).getType ());
+                break;
+            }
+        }
+        assertEquals (1, agent.getMetrics ().counter ("route.skipped").get ());
+        assertEquals (0, agent.getMetrics ().counter ("route.failed").get ());
+
+        pipe.send (ZyniEvent.SYSTEM_EXIT.toString ());
+        awaitCommand (pipe, ZyniEvent.AGENT_EXIT.toString ()).destroy ();
+        ctx.destroy ();
+    }
+
+    @Test
+    public void testCredit () throws Exception
+    {
+        String receiver = "127.0.0.1:5706";
+        String sender = "127.0.0.1:5707";
+        ZContext ctx = new ZContext ();
+
+        Properties conf = new Properties ();
+        conf.setProperty ("bind", receiver);
+        conf.setProperty ("heartbeat.endpoints", "");
+        conf.setProperty ("heartbeat.interval", "100");
+        conf.setProperty ("heartbeat.args.0", "1");
+        conf.setProperty ("agent.workers", "1");
+        conf.setProperty ("peer.credit", "8");
+        ZyniAgent sinkAgent = new ZyniAgent (conf);
+        Sink sink = new Sink ();
+        sinkAgent.registerCallback (sink.getSignature (), sink);
+        Socket sinkPipe = ZThread.fork (ctx, sinkAgent);
+
+        conf = new Properties ();
+        conf.setProperty ("bind", sender);
+        conf.setProperty ("heartbeat.endpoints", receiver);
+        conf.setProperty ("heartbeat.interval", "100");
+        conf.setProperty ("heartbeat.args.0", "1");
+        conf.setProperty ("peer.queue", "4");
+        ZyniAgent agent = new ZyniAgent (conf);
+        Producer producer = new Producer ();
+        agent.registerCommand ("TEST.WINDOW", producer);
+        agent.registerCommand ("TEST.SEND", producer);
+        agent.registerEventHandler (producer);
+        Socket pipe = ZThread.fork (ctx, agent);
+        pipe.setReceiveTimeOut (5000);
+        awaitWindow (pipe, receiver);
+
+        //  A window in flight, a full queue, the rest refused
+        ZMsg command = new ZMsg ();
+        command.add ("TEST.SEND");
+        command.add (receiver);
+        command.add ("20");
+        command.send (pipe);
+        ZMsg done = awaitCommand (pipe, DONE);
+        assertEquals ("12", done.popString ());
+        assertEquals ("4", done.popString ());
+        assertEquals ("false", done.popString ());
+        done.destroy ();
+        assertEquals (8, agent.getMetrics ().counter ("peer." + receiver + ".send.rejected").get ());
+
+        //  The receiver takes the window, its grants drain the queue
+        sink.release.release (100);
+        ZMsg writable = awaitCommand (pipe, ZyniEvent.PEER_WRITABLE.toString ());
+        assertEquals (receiver, writable.popString ());
+        writable.destroy ();
+
+        long deadline = System.currentTimeMillis () + 5000;
+        while (sink.taken.get () < 12 && System.currentTimeMillis () < deadline)
+            Thread.sleep (10);
+        assertEquals (12, sink.taken.get ());
+
+        pipe.send (ZyniEvent.SYSTEM_EXIT.toString ());
+        awaitCommand (pipe, ZyniEvent.AGENT_EXIT.toString ()).destroy ();
+        sinkPipe.send (ZyniEvent.SYSTEM_EXIT.toString ());
+        sinkPipe.setReceiveTimeOut (5000);
+        awaitCommand (sinkPipe, ZyniEvent.AGENT_EXIT.toString ()).destroy ();
+        ctx.destroy ();
+    }
+
+    @Test
+    public void testCreditFailedHandler () throws Exception
+    {
+        String receiver = "127.0.0.1:5718";
+        String sender = "127.0.0.1:5719";
+        ZContext ctx = new ZContext ();
+
+        Properties conf = new Properties ();
+        conf.setProperty ("bind", receiver);
+        conf.setProperty ("heartbeat.endpoints", "");
+        conf.setProperty ("heartbeat.interval", "100");
+        conf.setProperty ("heartbeat.args.0", "1");
+        conf.setProperty ("agent.workers", "1");
+        conf.setProperty ("peer.credit", "4");
+        ZyniAgent sinkAgent = new ZyniAgent (conf);
+        Thrower thrower = new Thrower ();
+        sinkAgent.registerCallback (thrower.getSignature (), thrower);
+        Socket sinkPipe = ZThread.fork (ctx, sinkAgent);
+
+        conf = new Properties ();
+        conf.setProperty ("bind", sender);
+        conf.setProperty ("heartbeat.endpoints", receiver);
+        conf.setProperty ("heartbeat.interval", "100");
+        conf.setProperty ("heartbeat.args.0", "1");
+        ZyniAgent agent = new ZyniAgent (conf);
+        Producer producer = new Producer ();
+        agent.registerCommand ("TEST.WINDOW", producer);
+        agent.registerCommand ("TEST.SEND", producer);
+        Socket pipe = ZThread.fork (ctx, agent);
+        pipe.setReceiveTimeOut (5000);
+        awaitWindow (pipe, receiver);
+
+        //  Failed messages grant credit back like the others
+        ZMsg command = new ZMsg ();
+        command.add ("TEST.SEND");
+        command.add (receiver);
+        command.add ("20");
+        command.send (pipe);
+        awaitCommand (pipe, DONE).destroy ();
+
+        long deadline = System.currentTimeMillis () + 5000;
+        while (thrower.calls.get () < 20 && System.currentTimeMillis () < deadline)
+            Thread.sleep (10);
+        assertEquals (20, thrower.calls.get ());
+
+        pipe.send (ZyniEvent.SYSTEM_EXIT.toString ());
+        awaitCommand (pipe, ZyniEvent.AGENT_EXIT.toString ()).destroy ();
+        sinkPipe.send (ZyniEvent.SYSTEM_EXIT.toString ());
+        sinkPipe.setReceiveTimeOut (5000);
+        awaitCommand (sinkPipe, ZyniEvent.AGENT_EXIT.toString ()).destroy ();
+        ctx.destroy ();
+    }
+
+    //  Wait for the window of the receiver to be gossiped
+    private void awaitWindow (Socket pipe, String receiver) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis () + 5000;
+        while (true) {
+            ZMsg command = new ZMsg ();
+            command.add ("TEST.WINDOW");
+            command.add (receiver);
+            command.send (pipe);
+            ZMsg done = awaitCommand (pipe, DONE);
+            boolean known = Boolean.parseBoolean (done.popString ());
+            done.destroy ();
+            if (known)
+                return;
+            assertTrue ("no credit header", System.currentTimeMillis () < deadline);
+            Thread.sleep (50);
+        }
+    }
+
+    //  A batch that fails to go out takes no credit, nor does the message
+    //  refused with it, and only counts as failed
+    @Test
+    public void testCreditLostBatch ()
+    {
+        new Recorder ().getSignature ();
+        ZContext ctx = new ZContext ();
+        ZyniPeer peer = ZyniPeer.create (ctx, "127.0.0.1:5716", null);
+        peer.getHeaders ().put (ZyniPeer.BATCH_HEADER, "1");
+        peer.getHeaders ().put (ZyniPeer.CREDIT_HEADER, "100");
+        peer.connect ("127.0.0.1:5717", 1);
+        peer.setCredit (10, new HashSet <Integer> ());
+        peer.setBatch (2, 65536, new ArrayList <ZyniPeer> ());
+        Metrics metrics = new Metrics ();
+        peer.setMetrics (metrics);
+
+        //  Nobody listens, the mailbox fills up
+        int sent = 0;
+        while (true) {
+            assertTrue (peer.send (new ZyniMsg (Header.newBuilder ().setSignature (0).setType (sent).build ())));
+            if (!peer.send (new ZyniMsg (Header.newBuilder ().setSignature (0).setType (sent + 1).build ())))
+                break;
+            sent += 2;
+            assertTrue (sent < 1000);
+        }
+        assertEquals (100 - sent, peer.getCredit ());
+        assertEquals (sent, metrics.traffic ("peer.127.0.0.1:5716.sent").getMsgs ().get ());
+        assertEquals (1, metrics.counter ("peer.127.0.0.1:5716.send.failed").get ());
+
+        peer.disconnect ();
+        ctx.destroy ();
+    }
+
+    private void run (String workers)
+    {
+        Properties conf = new Properties ();
+        conf.setProperty ("bind", BIND);
+        conf.setProperty ("heartbeat.endpoints", "");
+        conf.setProperty ("heartbeat.args.0", "1");
+        conf.setProperty ("agent.workers", workers);
+
+        ZContext ctx = new ZContext ();
+        ZyniAgent agent = new ZyniAgent (conf);
+        Recorder recorder = new Recorder ();
+        agent.registerCallback (recorder.getSignature (), recorder);
+        Socket pipe = ZThread.fork (ctx, agent);
+        pipe.setReceiveTimeOut (5000);
+
+        List <Socket> dealers = new ArrayList <Socket> ();
+        for (String sender : SENDERS) {
+            Socket dealer = ctx.createSocket (ZMQ.DEALER);
+            dealer.setIdentity (sender.getBytes ());
+            dealer.connect ("tcp://" + BIND);
+            dealers.add (dealer);
+        }
+        for (int i = 0; i < COUNT; i++) {
+            Header value = Header.newBuilder ()
+                    .setSignature (0)
+                    .setType (i)
+                    .build ();
+            for (Socket dealer : dealers)
+                assertTrue (new ZyniMsg (value).send (dealer));
+        }
+
+        awaitCommand (pipe, DONE).destroy ();
+
+        Metrics metrics = agent.getMetrics ();
+        assertEquals (COUNT * SENDERS.length,
+                metrics.received (recorder.getSignature ()).getMsgs ().get ());
+        //  The last callback is timed once it returned, after DONE
+        Metrics.Histogram callback = metrics.histogram ("handler.Recorder.callback.us");
+        long deadline = System.currentTimeMillis () + 5000;
+        while (callback.getCount () < COUNT * SENDERS.length && System.currentTimeMillis () < deadline)
+            Thread.yield ();
+        assertEquals (COUNT * SENDERS.length, callback.getCount ());
+
+        pipe.send (ZyniEvent.AGENT_METRICS.toString ());
+        ZMsg dump = awaitCommand (pipe, ZyniEvent.AGENT_METRICS.toString ());
+        //  Multi line text, popString would hex dump it
+        assertTrue (new String (dump.pop ().getData ()).contains ("agent.loop.us count="));
+        dump.destroy ();
+
+        for (String sender : SENDERS) {
+            List <Integer> versions = recorder.versions.get (sender);
+            assertEquals (COUNT, versions.size ());
+            for (int i = 0; i < COUNT; i++)
+                assertEquals (i, (int) versions.get (i));
+        }
+
+        pipe.send (ZyniEvent.SYSTEM_EXIT.toString ());
+        awaitCommand (pipe, ZyniEvent.AGENT_EXIT.toString ()).destroy ();
+
+        //  Tasks posted before the exit were run on the agent thread
+        assertEquals (COUNT * SENDERS.length, recorder.executed.get ());
+        assertFalse (recorder.threads.contains (recorder.agentThread));
+
+        ctx.destroy ();
+    }
+
+    private ZMsg awaitCommand (Socket pipe, String command)
+    {
+        while (true) {
+            ZMsg msg = ZMsg.recvMsg (pipe);
+            assertNotNull ("timed out waiting for " + command, msg);
+            if (msg.popString ().equals (command))
+                return msg;
+            msg.destroy ();
+        }
+    }
+}
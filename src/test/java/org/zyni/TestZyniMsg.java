@@ -0,0 +1,194 @@
+package org.zyni;
+
+import org.junit.Test;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQ.Socket;
+import org.zyni.message.Common.Address;
+import org.zyni.message.Common.Header;
+import org.zyni.message.Common.VersionedValue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestZyniMsg
+{
+    private static final int SIGNATURE = "test-zyni-msg".hashCode ();
+
+    @Test
+    public void testSendRecv ()
+    {
+        ZyniMsg.register (SIGNATURE, VersionedValue.getDefaultInstance ());
+
+        ZContext ctx = new ZContext ();
+        Socket output = ctx.createSocket (ZMQ.DEALER);
+        output.setIdentity ("127.0.0.1:5670".getBytes ());
+        output.bind ("inproc://selftest");
+        Socket input = ctx.createSocket (ZMQ.ROUTER);
+        input.connect ("inproc://selftest");
+
+        VersionedValue value = VersionedValue.newBuilder ()
+                                    .setKey ("Name")
+                                    .setValue ("Brutus")
+                                    .setVersion (200)
+                                    .build ();
+        for (int i = 0; i < 2; i++)
+            assertTrue (new ZyniMsg (value).send (output));
+
+        for (int i = 0; i < 2; i++) {
+            ZyniMsg msg = ZyniMsg.recv (input);
+            assertNotNull (msg);
+            assertEquals ("127.0.0.1:5670", msg.getIdentityString ());
+            assertEquals (SIGNATURE, msg.getSignature ());
+            assertEquals (ZyniMsg.typeOf (VersionedValue.getDescriptor ()), msg.getType ());
+            assertEquals (value, msg.getBody ());
+            msg.destroy ();
+        }
+
+        ctx.destroy ();
+    }
+
+    //  One message sent to several peers, as a multicast does
+    @Test
+    public void testSharedSend ()
+    {
+        ZyniMsg.register (SIGNATURE, VersionedValue.getDefaultInstance ());
+
+        ZContext ctx = new ZContext ();
+        Socket input = ctx.createSocket (ZMQ.ROUTER);
+        input.bind ("inproc://selftest-shared");
+        List <Socket> outputs = new ArrayList <Socket> ();
+        for (int i = 0; i < 3; i++) {
+            Socket output = ctx.createSocket (ZMQ.DEALER);
+            output.setIdentity (("127.0.0.1:567" + i).getBytes ());
+            output.connect ("inproc://selftest-shared");
+            outputs.add (output);
+        }
+
+        VersionedValue value = VersionedValue.newBuilder ()
+                                    .setKey ("Name")
+                                    .setValue ("Brutus")
+                                    .setVersion (200)
+                                    .build ();
+        ZyniMsg shared = new ZyniMsg (value);
+        byte [] bodyData = shared.getBodyData ();
+        for (Socket output : outputs)
+            assertTrue (shared.send (output));
+        assertTrue (bodyData == shared.getBodyData ());
+
+        List <String> identities = new ArrayList <String> ();
+        for (int i = 0; i < 3; i++) {
+            ZyniMsg msg = ZyniMsg.recv (input);
+            assertNotNull (msg);
+            assertEquals (value, msg.getBody ());
+            identities.add (msg.getIdentityString ());
+            msg.destroy ();
+        }
+        assertEquals (3, new HashSet <String> (identities).size ());
+
+        ctx.destroy ();
+    }
+
+    @Test
+    public void testBatch ()
+    {
+        ZyniMsg.register (SIGNATURE, VersionedValue.getDefaultInstance ());
+
+        ZContext ctx = new ZContext ();
+        Socket output = ctx.createSocket (ZMQ.DEALER);
+        output.setIdentity ("127.0.0.1:5670".getBytes ());
+        output.bind ("inproc://selftest-batch");
+        Socket input = ctx.createSocket (ZMQ.ROUTER);
+        input.connect ("inproc://selftest-batch");
+
+        List <ZyniMsg> batch = new ArrayList <ZyniMsg> ();
+        for (int i = 0; i < 3; i++)
+            batch.add (new ZyniMsg (VersionedValue.newBuilder ()
+                                        .setKey ("Key" + i)
+                                        .setValue ("Value" + i)
+                                        .setVersion (i)
+                                        .build ()));
+        assertTrue (ZyniMsg.sendBatch (output, batch));
+        assertTrue (new ZyniMsg (batch.get (0).getBody ()).send (output));
+
+        List <ZyniMsg> msgs = new ArrayList <ZyniMsg> ();
+        assertEquals (3, ZyniMsg.recv (input, msgs));
+        assertEquals (1, ZyniMsg.recv (input, msgs));
+        assertEquals (4, msgs.size ());
+        for (int i = 0; i < 3; i++) {
+            ZyniMsg msg = msgs.get (i);
+            assertEquals ("127.0.0.1:5670", msg.getIdentityString ());
+            assertEquals ("Key" + i, ((VersionedValue) msg.getBody ()).getKey ());
+        }
+        assertEquals ("Key0", ((VersionedValue) msgs.get (3).getBody ()).getKey ());
+
+        ctx.destroy ();
+    }
+
+    @Test
+    public void testMalformedBatch ()
+    {
+        ZyniMsg.register (SIGNATURE, VersionedValue.getDefaultInstance ());
+
+        ZContext ctx = new ZContext ();
+        Socket output = ctx.createSocket (ZMQ.DEALER);
+        output.setIdentity ("127.0.0.1:5671".getBytes ());
+        output.bind ("inproc://selftest-malformed");
+        Socket input = ctx.createSocket (ZMQ.ROUTER);
+        input.connect ("inproc://selftest-malformed");
+
+        ZyniMsg good = new ZyniMsg (VersionedValue.newBuilder ()
+                                        .setKey ("Key")
+                                        .setValue ("Value")
+                                        .setVersion (1)
+                                        .build ());
+        byte [] batchHeader = Header.newBuilder ()
+                                .setType ("zyni.Batch".hashCode ())
+                                .setSignature (0)
+                                .build ().toByteArray ();
+
+        //  A corrupt inner header after a valid pair
+        output.send (batchHeader, ZMQ.SNDMORE);
+        output.send (good.getHeaderData (), ZMQ.SNDMORE);
+        output.send (good.getBodyData (), ZMQ.SNDMORE);
+        output.send (new byte [] {(byte) 0xff, (byte) 0xff}, ZMQ.SNDMORE);
+        output.send (good.getBodyData (), 0);
+
+        //  A header without its body
+        output.send (batchHeader, ZMQ.SNDMORE);
+        output.send (good.getHeaderData (), 0);
+
+        assertTrue (new ZyniMsg (good.getBody ()).send (output));
+
+        //  Both batches are dropped whole, and the next message is intact
+        List <ZyniMsg> msgs = new ArrayList <ZyniMsg> ();
+        assertEquals (0, ZyniMsg.recv (input, msgs));
+        assertEquals (0, ZyniMsg.recv (input, msgs));
+        assertTrue (msgs.isEmpty ());
+        assertEquals (1, ZyniMsg.recv (input, msgs));
+        assertEquals ("127.0.0.1:5671", msgs.get (0).getIdentityString ());
+        assertEquals ("Key", ((VersionedValue) msgs.get (0).getBody ()).getKey ());
+
+        ctx.destroy ();
+    }
+
+    @Test
+    public void testRegisterCollision ()
+    {
+        //  Registering the same type again under its own signature is fine
+        ZyniMsg.register (SIGNATURE, Address.getDefaultInstance ());
+        ZyniMsg.register (SIGNATURE, Address.getDefaultInstance ());
+
+        try {
+            ZyniMsg.register (SIGNATURE + 1, Address.getDefaultInstance ());
+            fail ("type registered twice under different signatures");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package org.zyni.cursor;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import org.junit.Test;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+import org.zeromq.ZThread;
+import org.zyni.IAgentHandler;
+import org.zyni.ZyniAgent;
+import org.zyni.ZyniEvent;
+import org.zyni.ZyniMsg;
+import org.zyni.message.Cursor.Credit;
+import org.zyni.message.Cursor.Open;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestCursor
+{
+    private static final int TOTAL = 5000;
+    private static final int WINDOW = 100;
+
+    //  Numbers up to available, then up to TOTAL
+    static class NumberSource implements ICursorSource
+    {
+        private final long available;
+        private final AtomicLong delivered;
+        private volatile long maxAhead;
+
+        NumberSource (long available, AtomicLong delivered)
+        {
+            this.available = available;
+            this.delivered = delivered;
+        }
+
+        @Override
+        public List <ByteString> read (String name, long offset, int max)
+        {
+            if (offset >= TOTAL)
+                return null;
+
+            List <ByteString> records = new ArrayList <ByteString> ();
+            for (long i = offset; i < Math.min (available, offset + max); i++)
+                records.add (ByteString.copyFromUtf8 (String.valueOf (i)));
+            maxAhead = Math.max (maxAhead, offset + records.size () - delivered.get ());
+            return records;
+        }
+    }
+
+    static class Consumer implements ICursorListener
+    {
+        private final List <String> records = new ArrayList <String> ();
+        private final AtomicLong delivered = new AtomicLong ();
+        private volatile boolean gaps;
+        private volatile Boolean complete;
+
+        @Override
+        public void onRecords (Cursor cursor, long offset, List <ByteString> batch)
+        {
+            if (offset != records.size ())
+                gaps = true;
+            for (ByteString record : batch)
+                records.add (record.toStringUtf8 ());
+            delivered.set (records.size ());
+        }
+
+        @Override
+        public void onEnd (Cursor cursor, boolean complete)
+        {
+            this.complete = complete;
+        }
+    }
+
+    //  Loses the first opens and credits it sends
+    static class LossyHandler extends CursorHandler
+    {
+        private int opens;
+        private int credits;
+
+        LossyHandler (int opens, int credits)
+        {
+            this.opens = opens;
+            this.credits = credits;
+        }
+
+        @Override
+        boolean send (String endpoint, Message body)
+        {
+            if (body instanceof Open && opens > 0) {
+                opens--;
+                return true;
+            }
+            if (body instanceof Credit && credits > 0) {
+                credits--;
+                return true;
+            }
+            return super.send (endpoint, body);
+        }
+    }
+
+    //  Runs test commands on the consumer agent thread
+    static class Driver implements IAgentHandler
+    {
+        private final CursorHandler cursors;
+        private final Consumer consumer;
+        private final String producer;
+        private ZyniAgent agent;
+
+        Driver (CursorHandler cursors, Consumer consumer, String producer)
+        {
+            this.cursors = cursors;
+            this.consumer = consumer;
+            this.producer = producer;
+        }
+
+        @Override
+        public void initialize (ZyniAgent agent, Object ... args)
+        {
+            this.agent = agent;
+        }
+
+        @Override
+        public int getSignature ()
+        {
+            return 0;
+        }
+
+        @Override
+        public void processCommand (String command, ZMsg msg)
+        {
+            if (command.equals ("TEST.OPEN"))
+                cursors.open (producer, "numbers", consumer);
+            else if (command.equals ("TEST.RESTART"))
+                agent.onEvent (ZyniEvent.PEER_RESTART, producer);
+        }
+
+        @Override
+        public void onEvent (ZyniEvent event, Object ... params)
+        {
+        }
+
+        @Override
+        public void processCallback (ZyniMsg msg)
+        {
+        }
+
+        @Override
+        public long processTimer (long interval)
+        {
+            return 0;
+        }
+
+        @Override
+        public void destroy ()
+        {
+        }
+    }
+
+    private static Properties conf (String bind)
+    {
+        Properties conf = new Properties ();
+        conf.setProperty ("bind", bind);
+        conf.setProperty ("heartbeat.endpoints", "");
+        conf.setProperty ("heartbeat.args.0", "1");
+        conf.setProperty ("cursor.window", String.valueOf (WINDOW));
+        conf.setProperty ("cursor.batch", "16");
+        return conf;
+    }
+
+    private static Socket producer (ZContext ctx, String bind, ICursorSource source)
+    {
+        ZyniAgent agent = new ZyniAgent (conf (bind));
+        CursorHandler cursors = new CursorHandler ();
+        cursors.registerSource ("numbers", source);
+        cursors.register (agent);
+        Socket pipe = ZThread.fork (ctx, agent);
+        pipe.setReceiveTimeOut (5000);
+        return pipe;
+    }
+
+    private static Socket consumer (ZContext ctx, String bind, String producer, Consumer consumer)
+    {
+        return consumer (ctx, conf (bind), producer, consumer, new CursorHandler ());
+    }
+
+    private static Socket consumer (ZContext ctx, Properties conf, String producer, Consumer consumer,
+                                    CursorHandler cursors)
+    {
+        ZyniAgent agent = new ZyniAgent (conf);
+        cursors.register (agent);
+        Driver driver = new Driver (cursors, consumer, producer);
+        agent.registerCommand ("TEST.OPEN", driver);
+        agent.registerCommand ("TEST.RESTART", driver);
+        Socket pipe = ZThread.fork (ctx, agent);
+        pipe.setReceiveTimeOut (5000);
+        return pipe;
+    }
+
+    @Test
+    public void testStream () throws Exception
+    {
+        ZContext ctx = new ZContext ();
+        Consumer consumer = new Consumer ();
+        NumberSource source = new NumberSource (TOTAL, consumer.delivered);
+        Socket producerPipe = producer (ctx, "127.0.0.1:5701", source);
+        Socket consumerPipe = consumer (ctx, "127.0.0.1:5702", "127.0.0.1:5701", consumer);
+
+        consumerPipe.send ("TEST.OPEN");
+        await (consumer);
+
+        assertEquals (Boolean.TRUE, consumer.complete);
+        assertRecords (consumer);
+        //  Never more than a window ahead of the consumer
+        assertTrue (String.valueOf (source.maxAhead), source.maxAhead <= WINDOW);
+
+        exit (producerPipe);
+        exit (consumerPipe);
+        ctx.destroy ();
+    }
+
+    @Test
+    public void testResume () throws Exception
+    {
+        String producer = "127.0.0.1:5703";
+        ZContext ctx = new ZContext ();
+        ZContext producerCtx = new ZContext ();
+        Consumer consumer = new Consumer ();
+        Socket producerPipe = producer (producerCtx, producer, new NumberSource (2000, consumer.delivered));
+        Socket consumerPipe = consumer (ctx, "127.0.0.1:5704", producer, consumer);
+
+        consumerPipe.send ("TEST.OPEN");
+        long deadline = System.currentTimeMillis () + 5000;
+        while (consumer.delivered.get () < 2000 && System.currentTimeMillis () < deadline)
+            Thread.sleep (10);
+        assertEquals (2000, consumer.delivered.get ());
+
+        //  The producer goes away with its streams, a new one has it all
+        exit (producerPipe);
+        producerCtx.destroy ();
+        producerCtx = new ZContext ();
+        producerPipe = producer (producerCtx, producer, new NumberSource (TOTAL, consumer.delivered));
+        consumerPipe.send ("TEST.RESTART");
+        await (consumer);
+
+        assertEquals (Boolean.TRUE, consumer.complete);
+        assertRecords (consumer);
+
+        exit (producerPipe);
+        exit (consumerPipe);
+        producerCtx.destroy ();
+        ctx.destroy ();
+    }
+
+    @Test
+    public void testLostMessages () throws Exception
+    {
+        ZContext ctx = new ZContext ();
+        Consumer consumer = new Consumer ();
+        Socket producerPipe = producer (ctx, "127.0.0.1:5720", new NumberSource (TOTAL, consumer.delivered));
+        Properties conf = conf ("127.0.0.1:5721");
+        conf.setProperty ("cursor.resend", "100");
+        //  The open, then every credit of a window, the last one would
+        //  stall the cursor
+        Socket consumerPipe = consumer (ctx, conf, "127.0.0.1:5720", consumer, new LossyHandler (1, 2));
+
+        consumerPipe.send ("TEST.OPEN");
+        await (consumer);
+
+        assertEquals (Boolean.TRUE, consumer.complete);
+        assertRecords (consumer);
+
+        exit (producerPipe);
+        exit (consumerPipe);
+        ctx.destroy ();
+    }
+
+    private static void await (Consumer consumer) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis () + 10000;
+        while (consumer.complete == null && System.currentTimeMillis () < deadline)
+            Thread.sleep (10);
+    }
+
+    private static void assertRecords (Consumer consumer)
+    {
+        assertTrue (!consumer.gaps);
+        assertEquals (TOTAL, consumer.records.size ());
+        for (int i = 0; i < TOTAL; i++)
+            assertEquals (String.valueOf (i), consumer.records.get (i));
+    }
+
+    private static void exit (Socket pipe)
+    {
+        pipe.send (ZyniEvent.SYSTEM_EXIT.toString ());
+        while (true) {
+            ZMsg msg = ZMsg.recvMsg (pipe);
+            assertNotNull (msg);
+            if (msg.popString ().equals (ZyniEvent.AGENT_EXIT.toString ()))
+                break;
+            msg.destroy ();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.zyni.group;
+
+import org.junit.Test;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+import org.zeromq.ZThread;
+import org.zyni.IAgentHandler;
+import org.zyni.ZyniAgent;
+import org.zyni.ZyniEvent;
+import org.zyni.ZyniMsg;
+import org.zyni.message.Common.Header;
+
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestGroup
+{
+    private static final String DONE = "TEST.DONE";
+
+    //  Reports shouted messages up the pipe
+    static class Listener implements IAgentHandler
+    {
+        private ZyniAgent agent;
+
+        @Override
+        public void initialize (ZyniAgent agent, Object ... args)
+        {
+            this.agent = agent;
+        }
+
+        @Override
+        public int getSignature ()
+        {
+            int signature = "test-zyni-agent".hashCode ();
+            ZyniMsg.register (signature, Header.getDefaultInstance ());
+            return signature;
+        }
+
+        @Override
+        public void processCommand (String command, ZMsg msg)
+        {
+        }
+
+        @Override
+        public void onEvent (ZyniEvent event, Object ... params)
+        {
+        }
+
+        @Override
+        public void processCallback (ZyniMsg msg)
+        {
+            agent.sendCommand (DONE, msg.getIdentityString (),
+                    String.valueOf (((Header) msg.getBody ()).getType ()));
+        }
+
+        @Override
+        public long processTimer (long interval)
+        {
+            return 0;
+        }
+
+        @Override
+        public void destroy ()
+        {
+        }
+    }
+
+    private static ZMsg awaitCommand (Socket pipe, String command)
+    {
+        while (true) {
+            ZMsg msg = ZMsg.recvMsg (pipe);
+            assertTrue ("no " + command, msg != null);
+            if (msg.popString ().equals (command))
+                return msg;
+            msg.destroy ();
+        }
+    }
+
+    private static ZyniAgent agent (String bind, String endpoints)
+    {
+        Properties conf = new Properties ();
+        conf.setProperty ("bind", bind);
+        conf.setProperty ("heartbeat.endpoints", endpoints);
+        conf.setProperty ("heartbeat.interval", "100");
+        conf.setProperty ("heartbeat.args.0", "1");
+        ZyniAgent agent = new ZyniAgent (conf);
+        new GroupHandler ().register (agent);
+        Listener listener = new Listener ();
+        agent.registerCallback (listener.getSignature (), listener);
+        return agent;
+    }
+
+    //  Commands as Zyni sends them
+    private static void command (Socket pipe, ZyniEvent command, String group, int type)
+    {
+        ZMsg msg = new ZMsg ();
+        msg.add (command.toString ());
+        msg.add (group);
+        if (command == ZyniEvent.GROUP_SHOUT) {
+            msg.add (Header.newBuilder ()
+                    .setType (ZyniMsg.typeOf (Header.getDescriptor ()))
+                    .setSignature ("test-zyni-agent".hashCode ())
+                    .build ().toByteArray ());
+            msg.add (Header.newBuilder ().setSignature (0).setType (type).build ().toByteArray ());
+        }
+        msg.send (pipe);
+    }
+
+    @Test
+    public void testShout () throws Exception
+    {
+        String first = "127.0.0.1:5708";
+        String second = "127.0.0.1:5709";
+        ZContext ctx = new ZContext ();
+
+        Socket firstPipe = ZThread.fork (ctx, agent (first, ""));
+        firstPipe.setReceiveTimeOut (5000);
+        Socket secondPipe = ZThread.fork (ctx, agent (second, first));
+        secondPipe.setReceiveTimeOut (5000);
+
+        //  The second node learns the group of the first by gossip
+        command (firstPipe, ZyniEvent.GROUP_JOIN, "chat", 0);
+        ZMsg joined = awaitCommand (secondPipe, ZyniEvent.GROUP_JOIN.toString ());
+        assertEquals ("chat", joined.popString ());
+        assertEquals (first, joined.popString ());
+        joined.destroy ();
+
+        //  Only members get it, the shouting node is not one
+        command (firstPipe, ZyniEvent.GROUP_SHOUT, "other", 1);
+        command (secondPipe, ZyniEvent.GROUP_SHOUT, "other", 2);
+        command (secondPipe, ZyniEvent.GROUP_SHOUT, "chat", 3);
+        ZMsg done = awaitCommand (firstPipe, DONE);
+        assertEquals (second, done.popString ());
+        assertEquals ("3", done.popString ());
+        done.destroy ();
+
+        command (firstPipe, ZyniEvent.GROUP_LEAVE, "chat", 0);
+        ZMsg left = awaitCommand (secondPipe, ZyniEvent.GROUP_LEAVE.toString ());
+        assertEquals ("chat", left.popString ());
+        assertEquals (first, left.popString ());
+        left.destroy ();
+
+        firstPipe.send (ZyniEvent.SYSTEM_EXIT.toString ());
+        awaitCommand (firstPipe, ZyniEvent.AGENT_EXIT.toString ()).destroy ();
+        secondPipe.send (ZyniEvent.SYSTEM_EXIT.toString ());
+        awaitCommand (secondPipe, ZyniEvent.AGENT_EXIT.toString ()).destroy ();
+        ctx.destroy ();
+    }
+}
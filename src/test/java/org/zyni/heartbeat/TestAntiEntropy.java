@@ -0,0 +1,231 @@
+package org.zyni.heartbeat;
+
+import org.junit.Test;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+import org.zeromq.ZThread;
+import org.zyni.IAgentHandler;
+import org.zyni.ZyniAgent;
+import org.zyni.ZyniEvent;
+import org.zyni.ZyniMsg;
+import org.zyni.ZyniMsg.VersionedMap;
+import org.zyni.ZyniPeer;
+import org.zyni.message.Common.VersionedValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestAntiEntropy
+{
+    private static final String DONE = "TEST.DONE";
+
+    private static VersionedValue value (String key, int version, String value)
+    {
+        return VersionedValue.newBuilder ().setKey (key).setVersion (version).setValue (value).build ();
+    }
+
+    @Test
+    public void testLimit ()
+    {
+        List <VersionedValue> values = new ArrayList <VersionedValue> ();
+        for (int i = 0; i < 10; i++)
+            values.add (value ("KEY." + i, 1 + i / 2, "0123456789"));
+        long size = AntiEntropy.size (values.get (0));
+
+        assertEquals (10, new AntiEntropy (0, 0).limit (values, 0));
+
+        //  Three values fit, the cut goes back to the version of the second
+        AntiEntropy entropy = new AntiEntropy (size * 3, 0);
+        assertEquals (2, entropy.limit (values, 0));
+
+        //  Out of budget, the first version still goes
+        assertEquals (2, entropy.limit (values.subList (2, 10), 0));
+
+        //  Refilled after a second, up to one second of budget
+        assertEquals (size * 3, entropy.available (5000000000L));
+        assertEquals (10, new AntiEntropy (size * 100, 0).limit (values, 0));
+    }
+
+    @Test
+    public void testSummary ()
+    {
+        VersionedMap origin = new VersionedMap ();
+        for (int i = 0; i < 100; i++)
+            origin.put ("KEY." + i, "value-" + i);
+        VersionedMap copy = new VersionedMap ();
+        copy.update (origin.newer (0));
+
+        int buckets = AntiEntropy.buckets (origin.size ());
+        assertEquals (16, buckets);
+        int version = AntiEntropy.lastVersion (origin);
+        assertEquals (100, version);
+
+        long [] sums = AntiEntropy.summarize (origin, buckets, version);
+        List <Long> remote = new ArrayList <Long> ();
+        for (long sum : sums)
+            remote.add (sum);
+        assertTrue (AntiEntropy.diff (AntiEntropy.summarize (copy, buckets, version), remote).isEmpty ());
+
+        //  A lost header and a stale one show in their buckets only
+        copy.remove ("KEY.7");
+        copy.update (Arrays.asList (value ("KEY.42", 42, "stale")));
+        List <Integer> differ = AntiEntropy.diff (AntiEntropy.summarize (copy, buckets, version), remote);
+        List <Integer> expected = new ArrayList <Integer> ();
+        expected.add (AntiEntropy.bucket ("KEY.7", buckets));
+        if (!expected.contains (AntiEntropy.bucket ("KEY.42", buckets)))
+            expected.add (AntiEntropy.bucket ("KEY.42", buckets));
+        Collections.sort (expected);
+        assertEquals (expected, differ);
+
+        //  Headers above the version of the summary are left out
+        copy.put ("KEY.200", "later");
+        assertEquals (differ, AntiEntropy.diff (AntiEntropy.summarize (copy, buckets, version), remote));
+    }
+
+    //  Reports and breaks the copy of the headers of a peer
+    static class Probe implements IAgentHandler
+    {
+        private ZyniAgent agent;
+
+        @Override
+        public void initialize (ZyniAgent agent, Object ... args)
+        {
+            this.agent = agent;
+        }
+
+        @Override
+        public int getSignature ()
+        {
+            return 0;
+        }
+
+        @Override
+        public void processCommand (String command, ZMsg msg)
+        {
+            ZyniPeer peer = agent.findPeer (msg.popString ());
+            VersionedMap headers = peer == null ? new VersionedMap () : peer.getHeaders ();
+            if (command.equals ("TEST.DROP"))
+                headers.remove (msg.popString ());
+            agent.sendCommand (DONE, String.valueOf (headers.size ()),
+                    String.valueOf (agent.getMetrics ().counter ("gossip.entropy.repaired").get ()));
+        }
+
+        @Override
+        public void onEvent (ZyniEvent event, Object ... params)
+        {
+        }
+
+        @Override
+        public void processCallback (ZyniMsg msg)
+        {
+        }
+
+        @Override
+        public long processTimer (long interval)
+        {
+            return 0;
+        }
+
+        @Override
+        public void destroy ()
+        {
+        }
+    }
+
+    private static ZMsg awaitCommand (Socket pipe, String command)
+    {
+        while (true) {
+            ZMsg msg = ZMsg.recvMsg (pipe);
+            assertTrue ("no " + command, msg != null);
+            if (msg.popString ().equals (command))
+                return msg;
+            msg.destroy ();
+        }
+    }
+
+    //  Header count of the copy of the peer and headers repaired so far
+    private static long [] probe (Socket pipe, String command, String ... args)
+    {
+        ZMsg msg = new ZMsg ();
+        msg.add (command);
+        for (String arg : args)
+            msg.add (arg);
+        msg.send (pipe);
+        ZMsg done = awaitCommand (pipe, DONE);
+        long [] counts = {Long.parseLong (done.popString ()), Long.parseLong (done.popString ())};
+        done.destroy ();
+        return counts;
+    }
+
+    private static long [] await (Socket pipe, String endpoint, int headers, long repaired)
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis () + 10000;
+        while (true) {
+            long [] counts = probe (pipe, "TEST.COUNT", endpoint);
+            if (counts [0] >= headers && counts [1] >= repaired
+                    || System.currentTimeMillis () > deadline)
+                return counts;
+            Thread.sleep (50);
+        }
+    }
+
+    @Test
+    public void testChunkAndRepair () throws Exception
+    {
+        String origin = "127.0.0.1:5710";
+        String copy = "127.0.0.1:5711";
+        ZContext ctx = new ZContext ();
+
+        Properties conf = new Properties ();
+        conf.setProperty ("bind", origin);
+        conf.setProperty ("heartbeat.endpoints", "");
+        conf.setProperty ("heartbeat.interval", "100");
+        conf.setProperty ("heartbeat.args.0", "1");
+        conf.setProperty ("heartbeat.entropy.bytes", "8000");
+        conf.setProperty ("heartbeat.entropy.rounds", "2");
+        ZyniAgent originAgent = new ZyniAgent (conf);
+        for (int i = 0; i < 400; i++)
+            originAgent.putHeader ("KEY." + i, "value-of-a-header-" + i);
+        Socket originPipe = ZThread.fork (ctx, originAgent);
+
+        conf = new Properties ();
+        conf.setProperty ("bind", copy);
+        conf.setProperty ("heartbeat.endpoints", origin);
+        conf.setProperty ("heartbeat.interval", "100");
+        conf.setProperty ("heartbeat.args.0", "1");
+        ZyniAgent agent = new ZyniAgent (conf);
+        Probe probe = new Probe ();
+        agent.registerCommand ("TEST.COUNT", probe);
+        agent.registerCommand ("TEST.DROP", probe);
+        Socket pipe = ZThread.fork (ctx, agent);
+        pipe.setReceiveTimeOut (5000);
+
+        //  400 headers of about 40 bytes take several rounds at 8000 bytes/s
+        //  The agent publishes headers of its own once started
+        await (pipe, origin, 400, 0);
+        int total = originAgent.getHeaders ().size ();
+        assertEquals (total, await (pipe, origin, total, 0) [0]);
+        assertTrue (originAgent.getMetrics ().counter ("gossip.entropy.chunked").get () > 0);
+
+        //  Versions do not tell the copy it lost one, the summary does
+        assertEquals (total - 1, probe (pipe, "TEST.DROP", origin, "KEY.7") [0]);
+        long [] counts = await (pipe, origin, total, 1);
+        assertEquals (total, counts [0]);
+        assertEquals (1, counts [1]);
+
+        pipe.send (ZyniEvent.SYSTEM_EXIT.toString ());
+        awaitCommand (pipe, ZyniEvent.AGENT_EXIT.toString ()).destroy ();
+        originPipe.send (ZyniEvent.SYSTEM_EXIT.toString ());
+        originPipe.setReceiveTimeOut (5000);
+        awaitCommand (originPipe, ZyniEvent.AGENT_EXIT.toString ()).destroy ();
+        ctx.destroy ();
+    }
+}
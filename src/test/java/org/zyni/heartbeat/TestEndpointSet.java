@@ -0,0 +1,75 @@
+package org.zyni.heartbeat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestEndpointSet
+{
+    @Test
+    public void testAddRemove ()
+    {
+        EndpointSet set = new EndpointSet (new Random (1));
+        assertTrue (set.add ("a"));
+        assertTrue (set.add ("b"));
+        assertFalse (set.add ("a"));
+        assertEquals (2, set.size ());
+
+        assertTrue (set.remove ("a"));
+        assertFalse (set.remove ("a"));
+        assertFalse (set.contains ("a"));
+        assertTrue (set.contains ("b"));
+        assertEquals ("b", set.random ());
+    }
+
+    @Test
+    public void testSample ()
+    {
+        EndpointSet set = new EndpointSet (new Random (1));
+        for (int i = 0; i < 10; i++)
+            set.add ("peer-" + i);
+
+        List <String> targets = new ArrayList <String> ();
+        assertEquals (3, set.sample (3, targets));
+        assertEquals (3, new HashSet <String> (targets).size ());
+
+        targets.clear ();
+        assertEquals (10, set.sample (20, targets));
+    }
+
+    @Test
+    public void testRoundRobin ()
+    {
+        EndpointSet set = new EndpointSet (new Random (1));
+        for (int i = 0; i < 10; i++)
+            set.add ("peer-" + i);
+
+        //  Every member once per cycle, even with members leaving and joining
+        Set <String> cycle = new HashSet <String> ();
+        List <String> targets = new ArrayList <String> ();
+        set.next (3, targets);
+        cycle.addAll (targets);
+
+        set.remove (targets.get (0));
+        cycle.remove (targets.get (0));
+        set.remove ("peer-9");
+        cycle.remove ("peer-9");
+        set.add ("peer-10");
+
+        while (cycle.size () < set.size ()) {
+            targets.clear ();
+            set.next (3, targets);
+            for (String target : targets)
+                assertTrue (target, cycle.add (target) || cycle.size () == set.size ());
+        }
+        assertTrue (cycle.contains ("peer-10"));
+    }
+}
@@ -0,0 +1,101 @@
+package org.zyni.heartbeat;
+
+import org.junit.Test;
+import org.zyni.Metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestFailureDetector
+{
+    @Test
+    public void testWindow ()
+    {
+        ArrivalWindow window = new ArrivalWindow (4, 1000, 10000);
+        long now = 1;
+        window.add (now);
+        assertEquals (1, window.size ());
+        assertEquals (500, window.mean (), 0.001);
+
+        //  Wraps around, only the last 4 intervals are kept
+        long [] intervals = {100, 200, 300, 400, 500, 600};
+        for (long interval : intervals)
+            window.add (now += interval);
+        assertEquals (4, window.size ());
+        assertEquals (1800, window.sum (), 0.001);
+        assertEquals (450, window.mean (), 0.001);
+        assertEquals (12500, window.variance (), 0.001);
+
+        //  Too long intervals are not recorded
+        window.add (now += 20000);
+        assertEquals (1800, window.sum (), 0.001);
+
+        window.clear ();
+        assertEquals (0, window.size ());
+        assertEquals (0.0, window.phi (now + 1000), 0.0);
+    }
+
+    @Test
+    public void testConvict ()
+    {
+        FailureDetector exponential = new FailureDetector (1000);
+        FailureDetector normal = new FailureDetector (1000, true);
+
+        long now = 1;
+        for (int i = 0; i < 2000; i++) {
+            exponential.report ("peer", now);
+            normal.report ("peer", now);
+            now += 1000;
+        }
+        now -= 1000;
+
+        assertFalse (exponential.interpret ("peer", now + 1000));
+        assertFalse (normal.interpret ("peer", now + 1000));
+
+        //  With regular arrivals the normal distribution convicts much sooner
+        assertFalse (exponential.interpret ("peer", now + 3000));
+        assertTrue (normal.interpret ("peer", now + 3000));
+        assertTrue (exponential.interpret ("peer", now + 20000));
+
+        assertFalse (normal.interpret ("unknown", now));
+    }
+
+    @Test
+    public void testLocalHealth ()
+    {
+        Metrics.Histogram lateness = new Metrics.Histogram ();
+        Metrics.Histogram loopTime = new Metrics.Histogram ();
+        LocalHealth health = new LocalHealth (lateness, loopTime, 100, 8, 0);
+        long now = 0;
+
+        //  On time timers and a mostly idle loop
+        lateness.record (1000);
+        loopTime.record (5000);
+        assertFalse (health.check (now += 100000000L));
+        assertEquals (1.0, health.multiplier (), 0.0);
+
+        //  A timer 2 seconds late, 20 rounds, raises to the highest score
+        lateness.record (2000000);
+        assertTrue (health.check (now += 100000000L));
+        assertEquals (9.0, health.multiplier (), 0.0);
+        health.lower ();
+        assertEquals (7, health.getScore ());
+
+        //  A saturated loop raises it a round at a time
+        loopTime.record (95000);
+        assertTrue (health.check (now += 100000000L));
+        assertEquals (8, health.getScore ());
+
+        //  A slow node convicts later
+        FailureDetector detector = new FailureDetector (1000);
+        long at = 1;
+        for (int i = 0; i < 100; i++) {
+            detector.report ("peer", at);
+            at += 1000;
+        }
+        assertTrue (detector.interpret ("peer", at + 20000));
+        detector.setThresholdMultiplier (health.multiplier ());
+        assertFalse (detector.interpret ("peer", at + 20000));
+    }
+}
@@ -0,0 +1,193 @@
+package org.zyni.heartbeat;
+
+import org.junit.Test;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+import org.zeromq.ZThread;
+import org.zyni.IAgentHandler;
+import org.zyni.ZyniAgent;
+import org.zyni.ZyniEvent;
+import org.zyni.ZyniMsg;
+import org.zyni.ZyniPeer;
+
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSwim
+{
+    private static final String DONE = "TEST.DONE";
+
+    //  Reports deaths and returns up the pipe, reads headers of peers and
+    //  stalls the agent thread
+    static class Watcher implements IAgentHandler
+    {
+        private ZyniAgent agent;
+
+        @Override
+        public void initialize (ZyniAgent agent, Object ... args)
+        {
+            this.agent = agent;
+        }
+
+        @Override
+        public int getSignature ()
+        {
+            return 0;
+        }
+
+        @Override
+        public void processCommand (String command, ZMsg msg)
+        {
+            if (command.equals ("TEST.PAUSE")) {
+                try {
+                    Thread.sleep (Long.parseLong (msg.popString ()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread ().interrupt ();
+                }
+                return;
+            }
+            if (command.equals ("TEST.SUSPECTED")) {
+                agent.sendCommand (DONE, String.valueOf (agent.getMetrics ().counter ("swim.suspected").get ()));
+                return;
+            }
+            ZyniPeer peer = agent.findPeer (msg.popString ());
+            String value = peer == null ? null : peer.getHeaders ().getValue (msg.popString ());
+            agent.sendCommand (DONE, value == null ? "" : value);
+        }
+
+        @Override
+        public void onEvent (ZyniEvent event, Object ... params)
+        {
+            if (event == ZyniEvent.PEER_DEAD || event == ZyniEvent.PEER_ALIVE)
+                agent.sendCommand (event.toString (), (String) params [0]);
+        }
+
+        @Override
+        public void processCallback (ZyniMsg msg)
+        {
+        }
+
+        @Override
+        public long processTimer (long interval)
+        {
+            return 0;
+        }
+
+        @Override
+        public void destroy ()
+        {
+        }
+    }
+
+    private static ZMsg awaitCommand (Socket pipe, String command)
+    {
+        while (true) {
+            ZMsg msg = ZMsg.recvMsg (pipe);
+            assertTrue ("no " + command, msg != null);
+            if (msg.popString ().equals (command))
+                return msg;
+            msg.destroy ();
+        }
+    }
+
+    private static void await (Socket pipe, ZyniEvent event, String endpoint)
+    {
+        while (true) {
+            ZMsg msg = awaitCommand (pipe, event.toString ());
+            String peer = msg.popString ();
+            msg.destroy ();
+            if (peer.equals (endpoint))
+                return;
+        }
+    }
+
+    private static String header (Socket pipe, String endpoint, String key)
+    {
+        ZMsg msg = new ZMsg ();
+        msg.add ("TEST.HEADER");
+        msg.add (endpoint);
+        msg.add (key);
+        msg.send (pipe);
+        ZMsg done = awaitCommand (pipe, DONE);
+        String value = done.popString ();
+        done.destroy ();
+        return value;
+    }
+
+    private static long suspected (Socket pipe)
+    {
+        pipe.send ("TEST.SUSPECTED");
+        ZMsg done = awaitCommand (pipe, DONE);
+        long suspected = Long.parseLong (done.popString ());
+        done.destroy ();
+        return suspected;
+    }
+
+    private static Socket start (ZContext ctx, String bind, String endpoints, String role)
+    {
+        Properties conf = new Properties ();
+        conf.setProperty ("bind", bind);
+        conf.setProperty ("heartbeat.strategy", "swim");
+        conf.setProperty ("heartbeat.endpoints", endpoints);
+        conf.setProperty ("heartbeat.interval", "100");
+        conf.setProperty ("heartbeat.args.0", "1");
+        ZyniAgent agent = new ZyniAgent (conf);
+        agent.putHeader ("ROLE", role);
+        Watcher watcher = new Watcher ();
+        agent.registerEventHandler (watcher);
+        agent.registerCommand ("TEST.HEADER", watcher);
+        agent.registerCommand ("TEST.PAUSE", watcher);
+        agent.registerCommand ("TEST.SUSPECTED", watcher);
+
+        Socket pipe = ZThread.fork (ctx, agent);
+        pipe.setReceiveTimeOut (5000);
+        return pipe;
+    }
+
+    @Test
+    public void testMembership () throws Exception
+    {
+        String first = "127.0.0.1:5712";
+        String second = "127.0.0.1:5713";
+        String third = "127.0.0.1:5714";
+        ZContext ctx = new ZContext ();
+
+        Socket firstPipe = start (ctx, first, "", "seed");
+        Socket secondPipe = start (ctx, second, first, "worker");
+        Socket thirdPipe = start (ctx, third, first, "worker");
+
+        //  The second node learns of the third from the seed
+        await (secondPipe, ZyniEvent.PEER_ENTER, third);
+        long deadline = System.currentTimeMillis () + 5000;
+        while (!header (secondPipe, third, "ROLE").equals ("worker")
+                && System.currentTimeMillis () < deadline)
+            Thread.sleep (50);
+        assertEquals ("worker", header (secondPipe, third, "ROLE"));
+
+        //  A stalled node is suspected then dead, and refutes it once back
+        long before = suspected (thirdPipe);
+        ZMsg pause = new ZMsg ();
+        pause.add ("TEST.PAUSE");
+        pause.add ("3000");
+        pause.send (thirdPipe);
+        await (firstPipe, ZyniEvent.PEER_DEAD, third);
+        await (firstPipe, ZyniEvent.PEER_ALIVE, third);
+
+        //  Knowing it was slow, it did not blame the others for it
+        assertEquals (before, suspected (thirdPipe));
+
+        //  A node leaving says so
+        thirdPipe.send (ZyniEvent.SYSTEM_EXIT.toString ());
+        awaitCommand (thirdPipe, ZyniEvent.AGENT_EXIT.toString ()).destroy ();
+        await (firstPipe, ZyniEvent.PEER_EXIT, third);
+
+        secondPipe.send (ZyniEvent.SYSTEM_EXIT.toString ());
+        awaitCommand (secondPipe, ZyniEvent.AGENT_EXIT.toString ()).destroy ();
+        firstPipe.send (ZyniEvent.SYSTEM_EXIT.toString ());
+        awaitCommand (firstPipe, ZyniEvent.AGENT_EXIT.toString ()).destroy ();
+        ctx.destroy ();
+    }
+}
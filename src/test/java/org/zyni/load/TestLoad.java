@@ -0,0 +1,120 @@
+package org.zyni.load;
+
+import org.junit.Test;
+import org.zyni.Metrics;
+import org.zyni.ZyniAgent;
+import org.zyni.ZyniEvent;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestLoad
+{
+    @Test
+    public void testFormat ()
+    {
+        Load load = new Load (0.756, 0.1, 12, 3);
+        assertEquals ("0.76,0.10,12,3", load.format ());
+
+        Load parsed = Load.parse (load.format ());
+        assertEquals (0.76, parsed.getCpu (), 1e-9);
+        assertEquals (12, parsed.getQueue ());
+        assertEquals (15, parsed.getBacklog ());
+
+        assertNull (Load.parse ("1,2,3"));
+        assertNull (Load.parse ("a,b,c,d"));
+    }
+
+    @Test
+    public void testDiffers ()
+    {
+        Load published = new Load (0.5, 0.2, 100, 0);
+        assertFalse (new Load (0.54, 0.23, 110, 7).differs (published));
+        assertTrue (new Load (0.62, 0.2, 100, 0).differs (published));
+        assertTrue (new Load (0.5, 0.2, 121, 0).differs (published));
+        assertTrue (new Load (0.5, 0.2, 100, 9).differs (published));
+        //  The step is a fifth of the published value, not of the new one
+        assertFalse (new Load (0.5, 0.2, 1000, 0).differs (new Load (0.5, 0.2, 1210, 0)));
+        assertTrue (new Load (0.5, 0.2, 1210, 0).differs (new Load (0.5, 0.2, 1000, 0)));
+    }
+
+    @Test
+    public void testReport ()
+    {
+        Properties conf = new Properties ();
+        conf.setProperty ("bind", "127.0.0.1:5705");
+        conf.setProperty ("load.inflight", "test.inflight");
+        ZyniAgent agent = new ZyniAgent (conf);
+        final double [] inflight = {20};
+        agent.getMetrics ().gauge ("test.inflight", new Metrics.Gauge ()
+        {
+            @Override
+            public double value ()
+            {
+                return inflight [0];
+            }
+        });
+
+        LoadReporter reporter = new LoadReporter ();
+        reporter.initialize (agent);
+        reporter.processTimer (1000);
+        Load published = Load.parse (agent.getHeaders ().getValue (Load.HEADER));
+        assertEquals (20, published.getInflight ());
+        int version = agent.getHeaders ().getMaxVersion ();
+
+        //  Small changes keep the header version
+        inflight [0] = 23;
+        reporter.processTimer (1000);
+        assertEquals (version, agent.getHeaders ().getMaxVersion ());
+
+        inflight [0] = 40;
+        reporter.processTimer (1000);
+        assertEquals (40, Load.parse (agent.getHeaders ().getValue (Load.HEADER)).getInflight ());
+        assertTrue (agent.getHeaders ().getMaxVersion () > version);
+    }
+
+    @Test
+    public void testChoose ()
+    {
+        Properties conf = new Properties ();
+        conf.setProperty ("bind", "127.0.0.1:5705");
+        LoadBalancer balancer = new LoadBalancer ();
+        balancer.initialize (new ZyniAgent (conf));
+        assertNull (balancer.choose ());
+
+        balancer.onEvent (ZyniEvent.PEER_ALIVE, "a");
+        balancer.onEvent (ZyniEvent.PEER_ALIVE, "b");
+        balancer.onEvent (ZyniEvent.PEER_ALIVE, "c");
+        balancer.onEvent (ZyniEvent.PEER_HEADER, "a", Load.HEADER, "0.10,0.10,0,0");
+        balancer.onEvent (ZyniEvent.PEER_HEADER, "b", Load.HEADER, "0.10,0.10,50,0");
+        balancer.onEvent (ZyniEvent.PEER_HEADER, "c", Load.HEADER, "0.10,0.10,1000,0");
+        balancer.onEvent (ZyniEvent.PEER_HEADER, "d", Load.HEADER, "0.10,0.10,0,0");
+
+        //  Of any two the busiest never wins
+        Map <String, Integer> chosen = new HashMap <String, Integer> ();
+        for (int i = 0; i < 300; i++) {
+            String endpoint = balancer.choose ();
+            chosen.put (endpoint, chosen.containsKey (endpoint) ? chosen.get (endpoint) + 1 : 1);
+        }
+        assertFalse (chosen.containsKey ("c"));
+        assertFalse (chosen.containsKey ("d"));
+        //  Work sent to a since its header caught up with b
+        assertTrue (chosen.toString (), chosen.get ("b") > 50);
+
+        //  A new header resets what was assigned since the last one
+        balancer.onEvent (ZyniEvent.PEER_HEADER, "c", Load.HEADER, "0.10,0.10,0,0");
+        assertEquals ("c", balancer.choose (Arrays.asList ("c", "b", "d")));
+
+        balancer.onEvent (ZyniEvent.PEER_DEAD, "c");
+        assertNull (balancer.getLoad ("c"));
+        assertNull (balancer.choose (Arrays.asList ("c", "d")));
+        assertEquals ("b", balancer.choose (Arrays.asList ("c", "b")));
+    }
+}
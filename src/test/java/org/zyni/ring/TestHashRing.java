@@ -0,0 +1,115 @@
+package org.zyni.ring;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestHashRing
+{
+    private static final int KEYS = 20000;
+
+    private Map <String, String> owners (HashRing ring)
+    {
+        Map <String, String> owners = new HashMap <String, String> ();
+        for (int i = 0; i < KEYS; i++)
+            owners.put ("key-" + i, ring.lookup ("key-" + i));
+        return owners;
+    }
+
+    //  Exactly the keys whose owner changed are in a moved range, with the
+    //  right owners
+    private void assertMoved (Map <String, String> before, HashRing ring, List <Range> moved)
+    {
+        for (Map.Entry <String, String> entry : before.entrySet ()) {
+            long hash = HashRing.hash (entry.getKey ());
+            String to = ring.lookup (hash);
+            Range found = null;
+            for (Range range : moved) {
+                if (range.contains (hash)) {
+                    assertNull ("overlapping ranges", found);
+                    found = range;
+                }
+            }
+            if (to.equals (entry.getValue ()))
+                assertNull (entry.getKey (), found);
+            else {
+                assertEquals (entry.getValue (), found.getFrom ());
+                assertEquals (to, found.getTo ());
+            }
+        }
+    }
+
+    @Test
+    public void testLookup ()
+    {
+        HashRing ring = new HashRing (64);
+        assertNull (ring.lookup ("key"));
+
+        List <Range> moved = ring.add ("a", 1);
+        assertEquals ("a", ring.lookup ("key"));
+        assertEquals (1, moved.size ());
+        assertNull (moved.get (0).getFrom ());
+        assertTrue (moved.get (0).contains (HashRing.hash ("key")));
+
+        ring.add ("b", 1);
+        ring.add ("c", 1);
+        assertTrue (ring.add ("c", 1).isEmpty ());
+        assertEquals (3, ring.getMembers ().size ());
+        assertEquals (3, ring.getVersion ());
+
+        List <String> replicas = ring.lookup ("key", 2);
+        assertEquals (2, replicas.size ());
+        assertEquals (ring.lookup ("key"), replicas.get (0));
+        assertFalse (replicas.get (0).equals (replicas.get (1)));
+        assertEquals (3, ring.lookup ("key", 5).size ());
+    }
+
+    @Test
+    public void testMoved ()
+    {
+        HashRing ring = new HashRing (64);
+        for (int i = 0; i < 5; i++)
+            ring.add ("node-" + i, 1);
+
+        Map <String, String> before = owners (ring);
+        List <Range> moved = ring.add ("node-5", 1);
+        assertMoved (before, ring, moved);
+        for (Range range : moved)
+            assertEquals ("node-5", range.getTo ());
+
+        before = owners (ring);
+        assertMoved (before, ring, ring.remove ("node-2"));
+        assertFalse (owners (ring).containsValue ("node-2"));
+
+        before = owners (ring);
+        assertMoved (before, ring, ring.add ("node-0", 3));
+
+        before = owners (ring);
+        assertMoved (before, ring, ring.add ("node-0", 0.5));
+
+        assertTrue (ring.remove ("node-2").isEmpty ());
+    }
+
+    @Test
+    public void testWeight ()
+    {
+        HashRing ring = new HashRing (128);
+        ring.add ("small", 1);
+        ring.add ("large", 3);
+
+        int large = 0;
+        for (String owner : owners (ring).values ())
+            if (owner.equals ("large"))
+                large++;
+
+        //  About three quarters of the keys
+        assertTrue (String.valueOf (large), large > KEYS * 0.65 && large < KEYS * 0.85);
+    }
+}
@@ -0,0 +1,102 @@
+package org.zyni.topology;
+
+import org.junit.Test;
+import org.zyni.ZyniAgent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestAcker
+{
+    static class Recorder implements Acker.Listener
+    {
+        private final List <Long> acked = new ArrayList <Long> ();
+        private final List <Long> failed = new ArrayList <Long> ();
+
+        @Override
+        public void complete (int origin, long id, boolean fail)
+        {
+            assertEquals (7, origin);
+            (fail ? failed : acked).add (id);
+        }
+    }
+
+    @Test
+    public void testTable ()
+    {
+        //  Small table, random operations checked against a map
+        AckTable table = new AckTable (4);
+        Map <Long, Long> expected = new HashMap <Long, Long> ();
+        Random random = new Random (1);
+        for (int i = 0; i < 100000; i++) {
+            long root = 1 + random.nextInt (500);
+            int idx = table.find (root);
+            assertEquals (expected.containsKey (root), idx >= 0);
+            if (idx >= 0 && random.nextBoolean ()) {
+                assertEquals ((long) expected.remove (root), table.id (idx));
+                table.remove (idx);
+            }
+            else if (idx < 0)  {
+                table.put (root, root, root * 3, 7);
+                expected.put (root, root * 3);
+            }
+            assertEquals (expected.size (), table.size ());
+        }
+        for (Map.Entry <Long, Long> entry : expected.entrySet ()) {
+            int idx = table.find (entry.getKey ());
+            assertEquals ((long) entry.getValue (), table.id (idx));
+            assertEquals (0, table.xor (idx, entry.getKey ()));
+        }
+
+        table.clear ();
+        assertEquals (0, table.size ());
+        assertEquals (4, table.capacity ());
+    }
+
+    @Test
+    public void testAcker ()
+    {
+        Properties conf = new Properties ();
+        conf.setProperty ("topology.acker.max", "3");
+        Recorder recorder = new Recorder ();
+        Acker acker = new Acker (recorder);
+        acker.initialize (new ZyniAgent (conf));
+
+        //  Acks in any order complete the tree
+        assertTrue (acker.init (1, 0x3 ^ 0x5, 100, 7));
+        acker.update (1, 0x5 ^ 0x9, false);
+        assertTrue (recorder.acked.isEmpty ());
+        acker.update (1, 0x9, false);
+        acker.update (1, 0x3, false);
+        assertEquals (100, (long) recorder.acked.get (0));
+
+        //  Nothing emitted, acked right away
+        assertTrue (acker.init (2, 0, 101, 7));
+        assertEquals (101, (long) recorder.acked.get (1));
+
+        assertTrue (acker.init (3, 0x3, 102, 7));
+        acker.update (3, 0x3, true);
+        assertEquals (102, (long) recorder.failed.get (0));
+
+        //  Bounded, then timed out after two rotations
+        assertTrue (acker.init (4, 0x1, 103, 7));
+        assertTrue (acker.init (5, 0x1, 104, 7));
+        assertTrue (acker.init (6, 0x1, 105, 7));
+        assertTrue (!acker.init (7, 0x1, 106, 7));
+        acker.processTimer (1);
+        acker.update (5, 0x1, false);
+        assertEquals (104, (long) recorder.acked.get (2));
+        acker.processTimer (1);
+        assertEquals (1, recorder.failed.size ());
+        acker.processTimer (1);
+        assertEquals (3, recorder.failed.size ());
+        assertEquals (0, acker.size ());
+    }
+}
@@ -0,0 +1,307 @@
+package org.zyni.topology;
+
+import org.junit.Test;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ.Socket;
+import org.zeromq.ZMsg;
+import org.zeromq.ZThread;
+import org.zyni.Metrics;
+import org.zyni.ZyniAgent;
+import org.zyni.ZyniEvent;
+import org.zyni.message.Topology.Tuple;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestTopology
+{
+    private static final int COUNT = 1000;
+    private static final String [] NODES = {"127.0.0.1:5697", "127.0.0.1:5698"};
+
+    private static volatile boolean go;
+    //  Number to the node and task that counted it
+    private static final ConcurrentMap <String, String> counted = new ConcurrentHashMap <String, String> ();
+    private static final ConcurrentMap <String, Integer> broadcast = new ConcurrentHashMap <String, Integer> ();
+    private static final List <String> twice = new CopyOnWriteArrayList <String> ();
+    private static final Set <Long> acked = Collections.newSetFromMap (new ConcurrentHashMap <Long, Boolean> ());
+    private static final Set <Long> failed = Collections.newSetFromMap (new ConcurrentHashMap <Long, Boolean> ());
+
+    //  Every task emits its share of the numbers
+    public static class NumberSpout implements ISpout
+    {
+        protected TaskContext context;
+        private Emitter emitter;
+        protected int next;
+
+        @Override
+        public void initialize (TaskContext context, Emitter emitter)
+        {
+            this.context = context;
+            this.emitter = emitter;
+            next = context.getTask ();
+        }
+
+        @Override
+        public boolean nextTuple ()
+        {
+            if (!go || next >= COUNT)
+                return false;
+            emitter.emit (String.valueOf (next));
+            next += context.getParallelism ();
+            return true;
+        }
+
+        @Override
+        public void destroy ()
+        {
+        }
+    }
+
+    public static class IdSpout extends NumberSpout implements IReliableSpout
+    {
+        private Emitter emitter;
+
+        @Override
+        public void initialize (TaskContext context, Emitter emitter)
+        {
+            super.initialize (context, emitter);
+            this.emitter = emitter;
+        }
+
+        @Override
+        public boolean nextTuple ()
+        {
+            if (!go || next >= COUNT)
+                return false;
+            emitter.emit (next, String.valueOf (next));
+            next += context.getParallelism ();
+            return true;
+        }
+
+        @Override
+        public void ack (long id)
+        {
+            acked.add (id);
+        }
+
+        @Override
+        public void fail (long id)
+        {
+            failed.add (id);
+        }
+    }
+
+    //  Two children per id, tracked with it
+    public static class SplitBolt implements IBolt
+    {
+        private Emitter emitter;
+
+        @Override
+        public void initialize (TaskContext context, Emitter emitter)
+        {
+            this.emitter = emitter;
+        }
+
+        @Override
+        public void process (Tuple tuple)
+        {
+            emitter.emit (tuple.getValues (0).toStringUtf8 (), "a");
+            emitter.emit (tuple.getValues (0).toStringUtf8 (), "b");
+        }
+
+        @Override
+        public void destroy ()
+        {
+        }
+    }
+
+    //  Fails one id in ten
+    public static class CheckBolt extends SplitBolt
+    {
+        @Override
+        public void process (Tuple tuple)
+        {
+            if (Integer.parseInt (tuple.getValues (0).toStringUtf8 ()) % 10 == 0
+                    && tuple.getValues (1).toStringUtf8 ().equals ("b"))
+                throw new IllegalArgumentException ("failing on purpose");
+        }
+    }
+
+    public static class CountBolt implements IBolt
+    {
+        private TaskContext context;
+
+        @Override
+        public void initialize (TaskContext context, Emitter emitter)
+        {
+            this.context = context;
+        }
+
+        @Override
+        public void process (Tuple tuple)
+        {
+            String where = context.getAgent ().getAddress () + "#" + context.getTask ();
+            String old = counted.putIfAbsent (tuple.getValues (0).toStringUtf8 (), where);
+            if (old != null)
+                twice.add (old + " and " + where);
+        }
+
+        @Override
+        public void destroy ()
+        {
+        }
+    }
+
+    public static class AllBolt extends CountBolt
+    {
+        @Override
+        public void process (Tuple tuple)
+        {
+            synchronized (broadcast) {
+                String number = tuple.getValues (0).toStringUtf8 ();
+                Integer seen = broadcast.get (number);
+                broadcast.put (number, seen == null ? 1 : seen + 1);
+            }
+        }
+    }
+
+    private static Topology numbers ()
+    {
+        TopologyBuilder builder = new TopologyBuilder ("numbers");
+        builder.setSpout ("numbers", NumberSpout.class, 2);
+        builder.setBolt ("count", CountBolt.class, 4).fieldsGrouping ("numbers", 0);
+        builder.setBolt ("all", AllBolt.class, 2).broadcastGrouping ("numbers");
+        return builder.build ();
+    }
+
+    private static Topology ids ()
+    {
+        TopologyBuilder builder = new TopologyBuilder ("ids");
+        builder.setSpout ("ids", IdSpout.class, 2);
+        builder.setBolt ("split", SplitBolt.class, 2).shuffleGrouping ("ids");
+        builder.setBolt ("check", CheckBolt.class, 3).fieldsGrouping ("split", 0, 1);
+        return builder.build ();
+    }
+
+    @Test
+    public void testBuild ()
+    {
+        TopologyBuilder builder = new TopologyBuilder ("bad");
+        builder.setSpout ("spout", NumberSpout.class, 1);
+        builder.setBolt ("a", CountBolt.class, 1).shuffleGrouping ("spout");
+        TopologyBuilder.BoltDeclarer b = builder.setBolt ("b", CountBolt.class, 1).shuffleGrouping ("a");
+        b.shuffleGrouping ("b");
+        try {
+            builder.build ();
+            fail ("cycle");
+        } catch (IllegalArgumentException e) {
+        }
+
+        try {
+            builder.setBolt ("c", CountBolt.class, 1).shuffleGrouping ("none");
+            fail ("unknown source");
+        } catch (IllegalArgumentException e) {
+        }
+
+        //  Every member gets an even share of every stage
+        Topology topology = numbers ();
+        assertEquals (8, topology.getTasks ());
+        String [][] owners = topology.place (Arrays.asList ("a", "b"));
+        for (String [] stage : owners) {
+            Map <String, Integer> share = new HashMap <String, Integer> ();
+            for (String owner : stage)
+                share.put (owner, share.containsKey (owner) ? share.get (owner) + 1 : 1);
+            assertEquals (stage.length / 2, (int) share.get ("a"));
+            assertEquals (stage.length / 2, (int) share.get ("b"));
+        }
+    }
+
+    @Test
+    public void testRun () throws Exception
+    {
+        ZContext ctx = new ZContext ();
+        List <Socket> pipes = new ArrayList <Socket> ();
+        List <ZyniAgent> agents = new ArrayList <ZyniAgent> ();
+        for (String node : NODES) {
+            Properties conf = new Properties ();
+            conf.setProperty ("bind", node);
+            conf.setProperty ("heartbeat.endpoints", NODES [0]);
+            conf.setProperty ("heartbeat.interval", "100");
+            conf.setProperty ("heartbeat.args.0", "1");
+
+            ZyniAgent agent = new ZyniAgent (conf);
+            new TopologyHandler (numbers (), ids ()).register (agent);
+            Socket pipe = ZThread.fork (ctx, agent);
+            pipe.setReceiveTimeOut (5000);
+            pipes.add (pipe);
+            agents.add (agent);
+        }
+
+        //  Both nodes agree on the placement before the spouts start
+        long deadline = System.currentTimeMillis () + 10000;
+        for (ZyniAgent agent : agents) {
+            for (String topology : new String [] {"numbers", "ids"}) {
+                Metrics.Gauge members = (Metrics.Gauge) agent.getMetrics ().get (
+                        "topology." + topology + ".members");
+                while (members.value () < NODES.length && System.currentTimeMillis () < deadline)
+                    Thread.sleep (50);
+                assertEquals (NODES.length, (int) members.value ());
+            }
+        }
+        go = true;
+
+        while ((counted.size () < COUNT || broadcast.size () < COUNT
+                || acked.size () + failed.size () < COUNT)
+                && System.currentTimeMillis () < deadline)
+            Thread.sleep (50);
+
+        assertEquals (COUNT, counted.size ());
+        assertTrue (twice.toString (), twice.isEmpty ());
+        Set <String> nodes = new HashSet <String> ();
+        for (String where : counted.values ())
+            nodes.add (where.split ("#") [0]);
+        assertEquals (NODES.length, nodes.size ());
+
+        assertEquals (COUNT, broadcast.size ());
+        for (int seen : broadcast.values ())
+            assertEquals (2, seen);
+
+        //  Acks and fails came back across both nodes
+        assertEquals (COUNT / 10, failed.size ());
+        assertEquals (COUNT - COUNT / 10, acked.size ());
+        for (long id : failed)
+            assertEquals (0, id % 10);
+
+        for (Socket pipe : pipes) {
+            pipe.send (ZyniEvent.SYSTEM_EXIT.toString ());
+            awaitCommand (pipe, ZyniEvent.AGENT_EXIT.toString ()).destroy ();
+        }
+        ctx.destroy ();
+    }
+
+    private ZMsg awaitCommand (Socket pipe, String command)
+    {
+        while (true) {
+            ZMsg msg = ZMsg.recvMsg (pipe);
+            assertNotNull ("timed out waiting for " + command, msg);
+            if (msg.popString ().equals (command))
+                return msg;
+            msg.destroy ();
+        }
+    }
+}